@@ -20,6 +20,9 @@ public class Constants {
     // Use the fake local server data or real remote server.
     public static boolean USE_FAKE_SERVER = false;
 
+    // Open a connection to the server in the background when the app starts.
+    public static boolean PREWARM_SERVER_CONNECTION = true;
+
     public static final String BASIC_SKU = "basic_subscription";
     public static final String PREMIUM_SKU = "premium_subscription";
     public static final String PLAY_STORE_SUBSCRIPTION_URL
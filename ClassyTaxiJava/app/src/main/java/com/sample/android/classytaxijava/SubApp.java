@@ -17,6 +17,7 @@
 package com.sample.android.classytaxijava;
 
 import android.app.Application;
+import android.util.Log;
 
 import com.sample.android.classytaxijava.billing.BillingClientLifecycle;
 import com.sample.android.classytaxijava.data.DataRepository;
@@ -26,13 +27,26 @@ import com.sample.android.classytaxijava.data.network.WebDataSource;
 import com.sample.android.classytaxijava.data.network.firebase.FakeServerFunctions;
 import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
 import com.sample.android.classytaxijava.data.network.retrofit.ServerFunctionImpl;
+import com.sample.android.classytaxijava.data.network.retrofit.authentication.SharedHttpClient;
+
+import static com.sample.android.classytaxijava.BuildConfig.SERVER_URL;
 
 /**
  * Android Application class. Used for accessing singletons.
  */
 public class SubApp extends Application {
+    private static final String TAG = "SubApp";
+
     private final AppExecutors executors = new AppExecutors();
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (!Constants.USE_FAKE_SERVER && Constants.PREWARM_SERVER_CONNECTION) {
+            SharedHttpClient.getInstance().prewarm(SERVER_URL);
+        }
+    }
+
     public AppDatabase getDatabase() {
         return AppDatabase.getInstance(this);
     }
@@ -53,6 +67,17 @@ public class SubApp extends Application {
         return WebDataSource.getInstance(executors, getServerFunctions());
     }
 
+    /**
+     * Log the request lock waits and, when talking to the real server, the HTTP connection reuse
+     * and handshake times. Called once, when the app is finishing.
+     */
+    public void logNetworkStats() {
+        Log.d(TAG, getWebDataSource().getLockWaitStats().toString());
+        if (!Constants.USE_FAKE_SERVER) {
+            Log.d(TAG, SharedHttpClient.getInstance().getMetrics().toString());
+        }
+    }
+
     public BillingClientLifecycle getBillingClientLifecycle() {
         return BillingClientLifecycle.getInstance(this);
     }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Acknowledges purchase tokens at most once, a few at a time.
+ * <p>
+ * The state of each token is tracked from the purchases reported by Google Play Billing, the
+ * acknowledgement state stored with the subscription, and the results of the acknowledgements
+ * sent from here. Tokens that are already acknowledged, or already queued or in flight, are
+ * skipped instead of making another call to Google Play. The rest are queued and sent with at
+ * most {@code maxConcurrent} calls in flight.
+ */
+public class AcknowledgementQueue {
+    private static final String TAG = "AckQueue";
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    /**
+     * Sends a single acknowledgement.
+     */
+    public interface Acknowledger {
+        void acknowledge(String purchaseToken, ResultListener listener);
+    }
+
+    /**
+     * Receives the result of a single acknowledgement.
+     */
+    public interface ResultListener {
+        void onResult(String purchaseToken, boolean success);
+    }
+
+    /**
+     * Counts of acknowledgement requests and what happened to them.
+     */
+    public static class Metrics {
+        public final long requested;
+        public final long skippedAcknowledged;
+        public final long skippedPending;
+        public final long sent;
+        public final long succeeded;
+        public final long failed;
+
+        Metrics(long requested, long skippedAcknowledged, long skippedPending, long sent,
+                long succeeded, long failed) {
+            this.requested = requested;
+            this.skippedAcknowledged = skippedAcknowledged;
+            this.skippedPending = skippedPending;
+            this.sent = sent;
+            this.succeeded = succeeded;
+            this.failed = failed;
+        }
+
+        /**
+         * Requests that would have been redundant calls to Google Play.
+         */
+        public long getRedundant() {
+            return skippedAcknowledged + skippedPending;
+        }
+
+        @Override
+        public String toString() {
+            return "AcknowledgementMetrics{" +
+                    "requested=" + requested +
+                    ", redundant=" + getRedundant() +
+                    " (acknowledged=" + skippedAcknowledged +
+                    ", pending=" + skippedPending + ")" +
+                    ", sent=" + sent +
+                    ", succeeded=" + succeeded +
+                    ", failed=" + failed +
+                    '}';
+        }
+    }
+
+    private final Acknowledger acknowledger;
+    private final int maxConcurrent;
+    private final ResultListener resultListener = new ResultListener() {
+        @Override
+        public void onResult(String purchaseToken, boolean success) {
+            onAcknowledgeResult(purchaseToken, success);
+        }
+    };
+
+    private final Set<String> acknowledged = new HashSet<>();
+    // Tokens that are queued or in flight.
+    private final Set<String> pending = new HashSet<>();
+    private final ArrayDeque<String> queue = new ArrayDeque<>();
+    private int inFlight = 0;
+
+    private long requested = 0;
+    private long skippedAcknowledged = 0;
+    private long skippedPending = 0;
+    private long sent = 0;
+    private long succeeded = 0;
+    private long failed = 0;
+
+    public AcknowledgementQueue(Acknowledger acknowledger, int maxConcurrent) {
+        this.acknowledger = acknowledger;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Record the tokens that Google Play Billing reports as acknowledged.
+     */
+    public synchronized void onPurchasesUpdated(@Nullable List<Purchase> purchases) {
+        if (purchases == null) {
+            return;
+        }
+        for (Purchase purchase : purchases) {
+            if (purchase.isAcknowledged()) {
+                acknowledged.add(purchase.getPurchaseToken());
+            }
+        }
+    }
+
+    /**
+     * Acknowledge the token unless it is known to be acknowledged, queued or in flight.
+     *
+     * @param knownAcknowledged true if the stored subscription for the token is acknowledged
+     */
+    public void acknowledge(@Nullable String purchaseToken, boolean knownAcknowledged) {
+        if (purchaseToken == null) {
+            return;
+        }
+        synchronized (this) {
+            requested++;
+            if (knownAcknowledged) {
+                acknowledged.add(purchaseToken);
+            }
+            if (acknowledged.contains(purchaseToken)) {
+                skippedAcknowledged++;
+                return;
+            }
+            if (!pending.add(purchaseToken)) {
+                skippedPending++;
+                return;
+            }
+            queue.add(purchaseToken);
+        }
+        drain();
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(requested, skippedAcknowledged, skippedPending, sent, succeeded,
+                failed);
+    }
+
+    private void onAcknowledgeResult(String purchaseToken, boolean success) {
+        synchronized (this) {
+            inFlight--;
+            pending.remove(purchaseToken);
+            if (success) {
+                succeeded++;
+                acknowledged.add(purchaseToken);
+            } else {
+                // The token will be acknowledged again on the next update.
+                failed++;
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Send queued tokens until the concurrency limit is reached.
+     */
+    private void drain() {
+        List<String> toSend = new ArrayList<>();
+        synchronized (this) {
+            while (inFlight < maxConcurrent && !queue.isEmpty()) {
+                toSend.add(queue.poll());
+                inFlight++;
+                sent++;
+            }
+        }
+        for (String purchaseToken : toSend) {
+            Log.d(TAG, "Acknowledging " + purchaseToken);
+            acknowledger.acknowledge(purchaseToken, resultListener);
+        }
+    }
+}
@@ -79,6 +79,18 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
     private Application app;
     private BillingClient billingClient;
 
+    /**
+     * Acknowledges each purchase token once, with a bounded number of calls in flight.
+     */
+    private final AcknowledgementQueue acknowledgementQueue = new AcknowledgementQueue(
+            new AcknowledgementQueue.Acknowledger() {
+                @Override
+                public void acknowledge(String purchaseToken,
+                                        AcknowledgementQueue.ResultListener listener) {
+                    sendAcknowledgement(purchaseToken, listener);
+                }
+            }, AcknowledgementQueue.DEFAULT_MAX_CONCURRENT);
+
     private BillingClientLifecycle(Application app) {
         this.app = app;
     }
@@ -113,6 +125,7 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
     @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
     public void destroy() {
         Log.d(TAG, "ON_DESTROY");
+        Log.d(TAG, acknowledgementQueue.getMetrics().toString());
         if (billingClient.isReady()) {
             Log.d(TAG, "BillingClient can only be used once -- closing connection");
             // BillingClient can only be used once.
@@ -275,6 +288,7 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
         } else {
             Log.d(TAG, "processPurchases: with no purchases");
         }
+        acknowledgementQueue.onPurchasesUpdated(purchasesList);
         if (isUnchangedPurchaseList(purchasesList)) {
             Log.d(TAG, "processPurchases: Purchase list has not changed");
             return;
@@ -368,8 +382,32 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
      * user has successfully received access to the content.
      * This eliminates a category of issues where users complain to developers
      * that they paid for something that the app is not giving to them.
+     * <p>
+     * Tokens that Google Play Billing already reports as acknowledged, or that are already
+     * being acknowledged, are skipped.
      */
     public void acknowledgePurchase(String purchaseToken) {
+        acknowledgePurchase(purchaseToken, false);
+    }
+
+    /**
+     * Acknowledge a purchase, unless it is known to be acknowledged already.
+     *
+     * @param knownAcknowledged true if the app's own record says the token is acknowledged
+     */
+    public void acknowledgePurchase(String purchaseToken, boolean knownAcknowledged) {
+        acknowledgementQueue.acknowledge(purchaseToken, knownAcknowledged);
+    }
+
+    /**
+     * Counts of acknowledgements requested, skipped as redundant, sent and completed.
+     */
+    public AcknowledgementQueue.Metrics getAcknowledgementMetrics() {
+        return acknowledgementQueue.getMetrics();
+    }
+
+    private void sendAcknowledgement(final String purchaseToken,
+                                     final AcknowledgementQueue.ResultListener listener) {
         Log.d(TAG, "acknowledgePurchase");
         AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
                 .setPurchaseToken(purchaseToken)
@@ -380,6 +418,8 @@ public class BillingClientLifecycle implements LifecycleObserver, PurchasesUpdat
                 int responseCode = billingResult.getResponseCode();
                 String debugMessage = billingResult.getDebugMessage();
                 Log.d(TAG, "acknowledgePurchase: " + responseCode + " " + debugMessage);
+                listener.onResult(purchaseToken,
+                        responseCode == BillingClient.BillingResponseCode.OK);
             }
         });
     }
@@ -17,7 +17,7 @@
 package com.sample.android.classytaxijava.billing;
 
 import com.android.billingclient.api.Purchase;
-import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.HasEntitlementFlags;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.List;
@@ -105,67 +105,53 @@ public class BillingUtilities {
     /**
      * Returns true if the grace period option should be shown.
      */
-    public static boolean isGracePeriod(@Nullable SubscriptionStatus subscription) {
-        return subscription != null &&
-                subscription.isEntitlementActive() &&
-                subscription.isGracePeriod() &&
-                !subscription.isSubAlreadyOwned();
+    public static boolean isGracePeriod(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_GRACE_PERIOD);
     }
 
     /**
      * Returns true if the subscription restore option should be shown.
      */
-    public static boolean isSubscriptionRestore(@Nullable SubscriptionStatus subscription) {
-        return subscription != null &&
-                subscription.isEntitlementActive() &&
-                !subscription.isWillRenew() &&
-                !subscription.isSubAlreadyOwned();
+    public static boolean isSubscriptionRestore(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_RESTORE);
     }
 
     /**
      * Returns true if the basic content should be shown.
      */
-    public static boolean isBasicContent(@Nullable SubscriptionStatus subscription) {
-        return subscription != null &&
-                subscription.isEntitlementActive() &&
-                Constants.BASIC_SKU.equals(subscription.getSku()) &&
-                !subscription.isSubAlreadyOwned();
+    public static boolean isBasicContent(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_BASIC_CONTENT);
     }
 
     /**
      * Returns true if premium content should be shown.
      */
-    public static boolean isPremiumContent(@Nullable SubscriptionStatus subscription) {
-        return subscription != null &&
-                subscription.isEntitlementActive() &&
-                Constants.PREMIUM_SKU.equals(subscription.getSku()) &&
-                !subscription.isSubAlreadyOwned();
+    public static boolean isPremiumContent(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_PREMIUM_CONTENT);
     }
 
     /**
      * Returns true if account hold should be shown.
      */
-    public static boolean isAccountHold(SubscriptionStatus subscription) {
-        return subscription != null &&
-                !subscription.isEntitlementActive() &&
-                subscription.isAccountHold() &&
-                !subscription.isSubAlreadyOwned();
+    public static boolean isAccountHold(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_ACCOUNT_HOLD);
     }
 
     /**
      * Returns true if account pause should be shown.
      */
-    public static boolean isPaused(SubscriptionStatus subscription) {
-        return subscription != null &&
-                !subscription.isEntitlementActive() &&
-                subscription.isPaused() &&
-                !subscription.isSubAlreadyOwned();
+    public static boolean isPaused(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_PAUSED);
     }
 
     /**
      * Returns true if the subscription is already owned and requires a transfer to this account.
      */
-    public static boolean isTransferRequired(SubscriptionStatus subscription) {
-        return subscription != null && subscription.isSubAlreadyOwned();
+    public static boolean isTransferRequired(@Nullable HasEntitlementFlags subscription) {
+        return hasFlag(subscription, SubscriptionStatus.FLAG_TRANSFER_REQUIRED);
+    }
+
+    private static boolean hasFlag(@Nullable HasEntitlementFlags subscription, int flag) {
+        return subscription != null && (subscription.getEntitlementFlags() & flag) != 0;
     }
 }
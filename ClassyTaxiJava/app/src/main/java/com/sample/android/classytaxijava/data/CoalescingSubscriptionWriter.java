@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.sample.android.classytaxijava.data.disk.LocalDataSource;
+
+import java.util.List;
+
+/**
+ * Coalesces subscription writes that arrive close together into a single write.
+ * <p>
+ * Every update is a complete list of subscriptions, so merging a batch means keeping the last
+ * list submitted: the last writer wins, in the order the updates were submitted. A write is made
+ * once no update has arrived for the coalescing window, or once the oldest update in the batch
+ * has waited for the maximum delay, whichever comes first. Updates for different users are never
+ * merged: an update for another user writes the pending batch first.
+ */
+public class CoalescingSubscriptionWriter {
+    private static final String TAG = "SubscriptionWriter";
+
+    public static final long DEFAULT_WINDOW_MILLIS = 250L;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 1000L;
+
+    /**
+     * Makes a single write of a complete list of subscriptions.
+     */
+    public interface Writer {
+        void updateSubscriptions(String userId, List<SubscriptionStatus> subscriptions);
+    }
+
+    /**
+     * Runs the delayed flush. Times are in the uptime base of {@link SystemClock#uptimeMillis()}.
+     */
+    public interface Scheduler {
+        long uptimeMillis();
+
+        void postAtTime(Runnable task, long uptimeMillis);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * Counts of updates submitted and writes made.
+     */
+    public static class BatchStats {
+        public final long updates;
+        public final long writes;
+        public final int lastBatchSize;
+        public final int maxBatchSize;
+
+        BatchStats(long updates, long writes, int lastBatchSize, int maxBatchSize) {
+            this.updates = updates;
+            this.writes = writes;
+            this.lastBatchSize = lastBatchSize;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        @Override
+        public String toString() {
+            return "BatchStats{" +
+                    "updates=" + updates +
+                    ", writes=" + writes +
+                    ", lastBatchSize=" + lastBatchSize +
+                    ", maxBatchSize=" + maxBatchSize +
+                    '}';
+        }
+    }
+
+    private final Writer writer;
+    private final Scheduler scheduler;
+    private final long windowMillis;
+    private final long maxDelayMillis;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // The pending batch.
+    private String pendingUserId = null;
+    private List<SubscriptionStatus> pending = null;
+    private int pendingCount = 0;
+    private long firstPendingMillis = 0L;
+
+    private long updates = 0;
+    private long writes = 0;
+    private int lastBatchSize = 0;
+    private int maxBatchSize = 0;
+
+    public CoalescingSubscriptionWriter(LocalDataSource localDataSource) {
+        this(localDataSource, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public CoalescingSubscriptionWriter(final LocalDataSource localDataSource, long windowMillis,
+                                        long maxDelayMillis) {
+        this(new Writer() {
+            @Override
+            public void updateSubscriptions(String userId,
+                                            List<SubscriptionStatus> subscriptions) {
+                localDataSource.updateSubscriptions(userId, subscriptions);
+            }
+        }, new Scheduler() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void postAtTime(Runnable task, long uptimeMillis) {
+                handler.postAtTime(task, uptimeMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        }, windowMillis, maxDelayMillis);
+    }
+
+    CoalescingSubscriptionWriter(Writer writer, Scheduler scheduler, long windowMillis,
+                                 long maxDelayMillis) {
+        this.writer = writer;
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxDelayMillis = Math.max(windowMillis, maxDelayMillis);
+    }
+
+    /**
+     * Submit a complete list of subscriptions of a user to be written. It replaces any list of
+     * the same user that is still waiting to be written.
+     */
+    public synchronized void submit(String userId, List<SubscriptionStatus> subscriptions) {
+        if (pending != null && !pendingUserId.equals(userId)) {
+            flush();
+        }
+        long now = scheduler.uptimeMillis();
+        if (pending == null) {
+            firstPendingMillis = now;
+        }
+        pendingUserId = userId;
+        pending = subscriptions;
+        pendingCount++;
+        updates++;
+        // Restart the window, but don't hold the batch for longer than the maximum delay.
+        long flushAt = Math.min(now + windowMillis, firstPendingMillis + maxDelayMillis);
+        scheduler.removeCallbacks(flushRunnable);
+        scheduler.postAtTime(flushRunnable, flushAt);
+    }
+
+    /**
+     * Write the pending batch now, if there is one. Call this before anything that changes
+     * where subscriptions are written, such as switching users.
+     */
+    public void flush() {
+        int batchSize;
+        synchronized (this) {
+            scheduler.removeCallbacks(flushRunnable);
+            if (pending == null) {
+                return;
+            }
+            String userId = pendingUserId;
+            List<SubscriptionStatus> subscriptions = pending;
+            batchSize = pendingCount;
+            pendingUserId = null;
+            pending = null;
+            pendingCount = 0;
+            writes++;
+            lastBatchSize = batchSize;
+            maxBatchSize = Math.max(maxBatchSize, batchSize);
+            // Write inside the lock, so batches reach the local data source in order.
+            writer.updateSubscriptions(userId, subscriptions);
+        }
+        Log.d(TAG, "Wrote " + batchSize + " update(s) as one write: " + getBatchStats());
+    }
+
+    /**
+     * Return the counts so far. The difference between updates and writes is the number of
+     * writes saved by coalescing.
+     */
+    public synchronized BatchStats getBatchStats() {
+        return new BatchStats(updates, writes, lastBatchSize, maxBatchSize);
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.sample.android.classytaxijava.data;
 
-import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.billingclient.api.Purchase;
@@ -26,7 +25,9 @@ import com.sample.android.classytaxijava.data.disk.LocalDataSource;
 import com.sample.android.classytaxijava.data.network.WebDataSource;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
@@ -40,6 +41,11 @@ public class DataRepository {
     private final WebDataSource webDataSource;
     private final BillingClientLifecycle billingClientLifecycle;
 
+    /**
+     * Coalesces writes from the network, purchases and push messages into single writes.
+     */
+    private final CoalescingSubscriptionWriter subscriptionWriter;
+
     /**
      * {@link MediatorLiveData} to coordinate updates from the database and the network.
      * <p>
@@ -61,12 +67,25 @@ public class DataRepository {
      */
     private MediatorLiveData<ContentResource> premiumContent = new MediatorLiveData<>();
 
+    /**
+     * The last list published to {@link #subscriptions}. Only used on the main thread.
+     */
+    @Nullable
+    private List<SubscriptionStatus> publishedSubscriptions = null;
+
+    /**
+     * The last list handed to the local data source.
+     */
+    @Nullable
+    private List<SubscriptionStatus> storedSubscriptions = null;
+
     private DataRepository(final LocalDataSource localDataSource,
                            WebDataSource webDataSource,
                            BillingClientLifecycle billingClientLifecycle) {
         this.localDataSource = localDataSource;
         this.webDataSource = webDataSource;
         this.billingClientLifecycle = billingClientLifecycle;
+        this.subscriptionWriter = new CoalescingSubscriptionWriter(localDataSource);
 
         // Update content from the web.
         // We are using a MediatorLiveData so that we can clear the data immediately
@@ -90,10 +109,18 @@ public class DataRepository {
                 new Observer<List<SubscriptionStatus>>() {
                     @Override
                     public void onChanged(List<SubscriptionStatus> subscriptionStatuses) {
-                        int numOfSubscriptions = subscriptionStatuses == null ?
-                                0 : subscriptionStatuses.size();
+                        // Compared with what the ViewModel last saw, not with what was last
+                        // stored: rows written by another path still have to be published.
+                        SubscriptionDiff diff = SubscriptionDiff.compute(
+                                publishedSubscriptions, subscriptionStatuses);
+                        if (publishedSubscriptions != null && diff.isEmpty()) {
+                            // Room republishes the whole table after every write.
+                            Log.d("Repository", "Subscriptions unchanged");
+                            return;
+                        }
+                        publishedSubscriptions = diff.getSnapshot();
                         Log.d("Repository", "Subscriptions updated: "
-                                + numOfSubscriptions);
+                                + diff.getSnapshot().size() + " " + diff);
                         subscriptions.postValue(subscriptionStatuses);
                     }
                 });
@@ -103,10 +130,11 @@ public class DataRepository {
         // We could write different logic to ensure that the network call completes when
         // the UI component is inactive.
         subscriptions.addSource(webDataSource.getSubscriptions(),
-                new Observer<List<SubscriptionStatus>>() {
+                new Observer<SubscriptionStatusList>() {
                     @Override
-                    public void onChanged(List<SubscriptionStatus> subscriptionStatuses) {
-                        updateSubscriptionsFromNetwork(subscriptionStatuses);
+                    public void onChanged(SubscriptionStatusList subscriptionStatusList) {
+                        updateSubscriptionsFromNetwork(subscriptionStatusList.getUserId(),
+                                subscriptionStatusList.getSubscriptions());
                     }
                 });
 
@@ -117,11 +145,18 @@ public class DataRepository {
         subscriptions.addSource(billingClientLifecycle.purchases, new Observer<List<Purchase>>() {
             @Override
             public void onChanged(List<Purchase> purchases) {
-                List<SubscriptionStatus> subscriptionStatuses = subscriptions.getValue();
-                if (subscriptionStatuses != null) {
-                    boolean hasChanged = updateLocalPurchaseTokens(subscriptionStatuses, purchases);
+                List<SubscriptionStatus> currentSubscriptions = subscriptions.getValue();
+                if (currentSubscriptions != null) {
+                    // Work on copies, the published records are the base of the next diff.
+                    List<SubscriptionStatus> subscriptionStatuses = new ArrayList<>();
+                    for (SubscriptionStatus subscription : currentSubscriptions) {
+                        subscriptionStatuses.add(subscription.copy());
+                    }
+                    boolean hasChanged = SubscriptionMerger.updateLocalPurchaseTokens(
+                            subscriptionStatuses, SubscriptionMerger.PurchaseIndex.of(purchases));
                     if (hasChanged) {
-                        localDataSource.updateSubscriptions(subscriptionStatuses);
+                        storeSubscriptions(localDataSource.getCurrentUserId(),
+                                subscriptionStatuses);
                     }
                 }
             }
@@ -150,6 +185,14 @@ public class DataRepository {
         return subscriptions;
     }
 
+    /**
+     * Entitlement columns of every subscription. Cheaper to observe than
+     * {@link #getSubscriptions()} when the subscription JSON is not needed.
+     */
+    public LiveData<List<SubscriptionEntitlement>> getEntitlements() {
+        return localDataSource.getEntitlements();
+    }
+
     public MediatorLiveData<ContentResource> getBasicContent() {
         return basicContent;
     }
@@ -158,19 +201,34 @@ public class DataRepository {
         return premiumContent;
     }
 
-    public void updateSubscriptionsFromNetwork(
+    /**
+     * Merge subscriptions from the server into the local data.
+     * <p>
+     * Subscriptions of a user other than the active one are dropped. They belong to a request
+     * made before the user changed, and would otherwise be merged into the new user's data.
+     *
+     * @param userId Firebase uid of the user the subscriptions were requested for
+     */
+    public void updateSubscriptionsFromNetwork(@Nullable String userId,
             @Nullable List<SubscriptionStatus> remoteSubscriptions) {
+        if (!localDataSource.getCurrentUserId().equals(userId)) {
+            Log.d("Repository", "Ignoring subscriptions of a previous user");
+            return;
+        }
         List<SubscriptionStatus> oldSubscriptions = subscriptions.getValue();
         List<Purchase> purchases = billingClientLifecycle.purchases.getValue();
-        List<SubscriptionStatus> subscriptions =
-                mergeSubscriptionsAndPurchases(oldSubscriptions, remoteSubscriptions, purchases);
+        List<SubscriptionStatus> subscriptions = SubscriptionMerger.merge(oldSubscriptions,
+                remoteSubscriptions,
+                purchases == null ? null : SubscriptionMerger.PurchaseIndex.of(purchases));
         if (remoteSubscriptions != null) {
             acknowledgeRegisteredPurchaseTokens(remoteSubscriptions);
         }
         // Store the subscription information when it changes.
-        localDataSource.updateSubscriptions(subscriptions);
+        storeSubscriptions(userId, subscriptions);
 
         // Update the content when the subscription changes.
+        // The web data source serves content from its cache while it is fresh and revalidates
+        // it with a conditional request once it isn't, so asking for it again is cheap.
         if (remoteSubscriptions != null) {
             // Figure out which content we need to fetch.
             boolean updateBasic = false;
@@ -203,102 +261,48 @@ public class DataRepository {
     }
 
     /**
-     * Acknowledge subscriptions that have been registered by the server.
-     */
-    private void acknowledgeRegisteredPurchaseTokens(List<SubscriptionStatus> remoteSubscriptions) {
-        for (SubscriptionStatus remoteSubscription : remoteSubscriptions) {
-            String purchaseTkn = remoteSubscription.getPurchaseToken();
-            billingClientLifecycle.acknowledgePurchase(purchaseTkn);
-        }
-    }
-
-
-    /**
-     * TODO(122273956) - Simplify / improve merge algorithm
-     * Merge the previous subscriptions and new subscriptions by looking at on-device purchases.
+     * Store the subscriptions in the local data source, unless they are structurally the same
+     * as the last subscriptions that were stored. Writes that follow each other closely are
+     * coalesced by {@link #subscriptionWriter}.
      * <p>
-     * We want to return the list of new subscriptions, possibly with some modifications
-     * based on old subscriptions and the on-devices purchases from Google Play Billing.
-     * Old subscriptions should be retained if they are owned by someone else (subAlreadyOwned)
-     * and the purchase token for the subscription is still on this device.
+     * This only decides whether to write at all. The local data source diffs the list again
+     * against the rows in the database when the write runs, since coalescing means the rows may
+     * no longer be the last list submitted here.
      */
-    private List<SubscriptionStatus> mergeSubscriptionsAndPurchases(
-            @Nullable List<SubscriptionStatus> oldSubscriptions,
-            @Nullable List<SubscriptionStatus> newSubscriptions,
-            @Nullable List<Purchase> purchases) {
-        List<SubscriptionStatus> subscriptionStatuses = new ArrayList<>();
-        if (purchases != null) {
-            // Record which purchases are local and can be managed on this device.
-            updateLocalPurchaseTokens(newSubscriptions, purchases);
-        }
-        if (newSubscriptions != null) {
-            subscriptionStatuses.addAll(newSubscriptions);
-        }
-        // Find old subscriptions that are in purchases but not in new subscriptions.
-        if (purchases != null && oldSubscriptions != null) {
-            for (SubscriptionStatus oldSubscription : oldSubscriptions) {
-                if (oldSubscription.isSubAlreadyOwned() && oldSubscription.isLocalPurchase()) {
-                    // This old subscription was previously marked as "already owned" by
-                    // another user. It should be included in the output if the SKU
-                    // and purchase token match their previous value.
-                    for (Purchase purchase : purchases) {
-                        if (purchase.getSkus().get(0).equals(oldSubscription.getSku()) &&
-                                purchase.getPurchaseToken().equals(oldSubscription.getPurchaseToken())) {
-                            // The old subscription that was already owned subscription should
-                            // be added to the new subscriptions.
-                            // Look through the new subscriptions to see if it is there.
-                            boolean foundNewSubscription = false;
-                            if (newSubscriptions != null) {
-                                for (SubscriptionStatus newSubscription : newSubscriptions) {
-                                    if (TextUtils.equals(newSubscription.getSku(),
-                                            oldSubscription.getSku())) {
-                                        foundNewSubscription = true;
-                                    }
-                                }
-                            }
-                            if (!foundNewSubscription) {
-                                // The old subscription should be added to the output.
-                                // It matches a local purchase.
-                                subscriptionStatuses.add(oldSubscription);
-                            }
-                        }
-                    }
-                }
-            }
+    private synchronized void storeSubscriptions(String userId,
+                                                 List<SubscriptionStatus> subscriptions) {
+        SubscriptionDiff diff = SubscriptionDiff.compute(storedSubscriptions, subscriptions);
+        if (storedSubscriptions != null && diff.isEmpty()) {
+            Log.d("Repository", "Skip storing unchanged subscriptions");
+            return;
         }
-        return subscriptionStatuses;
+        storedSubscriptions = subscriptions;
+        subscriptionWriter.submit(userId, subscriptions);
     }
 
     /**
-     * Modify the subscriptions isLocalPurchase field based on the list of local purchases.
-     * Return true if any of the values changed.
+     * Acknowledge subscriptions that have been registered by the server.
      */
-    private boolean updateLocalPurchaseTokens(
-            @Nullable List<SubscriptionStatus> subscriptions,
-            @Nullable List<Purchase> purchases) {
-        boolean hasChanged = false;
-        if (subscriptions != null) {
-            for (SubscriptionStatus subscription : subscriptions) {
-                boolean isLocalPurchase = false;
-                String purchaseToken = subscription.getPurchaseToken();
-                if (purchases != null) {
-                    for (Purchase purchase : purchases) {
-                        if (TextUtils.equals(subscription.getSku(), purchase.getSkus().get(0))) {
-                            isLocalPurchase = true;
-                            purchaseToken = purchase.getPurchaseToken();
-                        }
-                    }
-                }
-                if (subscription.isLocalPurchase() != isLocalPurchase) {
-                    subscription.setLocalPurchase(isLocalPurchase);
-                    subscription.setPurchaseToken(purchaseToken);
-                    hasChanged = true;
+    private void acknowledgeRegisteredPurchaseTokens(List<SubscriptionStatus> remoteSubscriptions) {
+        // Tokens that the stored subscriptions already record as acknowledged.
+        Set<String> acknowledgedTokens = new HashSet<>();
+        List<SubscriptionStatus> currentSubscriptions = subscriptions.getValue();
+        if (currentSubscriptions != null) {
+            for (SubscriptionStatus subscription : currentSubscriptions) {
+                if (subscription.isAcknowledged()) {
+                    acknowledgedTokens.add(subscription.getPurchaseToken());
                 }
             }
         }
-        return hasChanged;
+        for (SubscriptionStatus remoteSubscription : remoteSubscriptions) {
+            String purchaseTkn = remoteSubscription.getPurchaseToken();
+            boolean isAcknowledged = remoteSubscription.isAcknowledged()
+                    || acknowledgedTokens.contains(purchaseTkn);
+            billingClientLifecycle.acknowledgePurchase(purchaseTkn, isAcknowledged);
+        }
     }
 
+
     /**
      * Fetch subscriptions from the server and update local data source.
      */
@@ -335,10 +339,41 @@ public class DataRepository {
     }
 
     /**
-     * Delete local user data when the user signs out.
+     * Switch to the local data of another user.
+     * <p>
+     * The subscriptions cached for the user are shown immediately. Content is cleared, since
+     * it depends on the subscriptions of the previous user.
+     *
+     * @param userId Firebase uid, or null when nobody is signed in
+     * @return true if a different user was active before
+     */
+    public boolean switchUser(@Nullable String userId) {
+        // Pending writes belong to the previous user.
+        subscriptionWriter.flush();
+        if (!localDataSource.switchUser(userId)) {
+            return false;
+        }
+        synchronized (this) {
+            // The last stored subscriptions belong to the previous user.
+            storedSubscriptions = null;
+        }
+        webDataSource.clearContent();
+        basicContent.postValue(null);
+        premiumContent.postValue(null);
+        return true;
+    }
+
+    /**
+     * Delete the local data of the active user.
      */
     public void deleteLocalUserData() {
+        synchronized (this) {
+            storedSubscriptions = new ArrayList<>();
+        }
+        // Write what is pending first, so it can't bring the data back.
+        subscriptionWriter.flush();
         localDataSource.deleteLocalUserData();
+        webDataSource.clearContent();
         basicContent.postValue(null);
         premiumContent.postValue(null);
     }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Used to parse the response to a batch register or transfer request.
+ * <p>
+ * The response holds the subscriptions of this account after the request, and the
+ * subscriptions from the request that could not be registered because they are already owned
+ * by a different account (the batch equivalent of HTTP 409 CONFLICT).
+ */
+public class SubscriptionBatchResponse {
+    @Nullable
+    @SerializedName("subscriptions")
+    private List<SubscriptionStatus> subscriptionStatuses;
+
+    @Nullable
+    @SerializedName("alreadyOwned")
+    private List<SubscriptionStatus> alreadyOwned;
+
+    @Nullable
+    public List<SubscriptionStatus> getSubscriptions() {
+        return subscriptionStatuses;
+    }
+
+    public void setSubscriptions(@Nullable List<SubscriptionStatus> subscriptionStatuses) {
+        this.subscriptionStatuses = subscriptionStatuses;
+    }
+
+    @Nullable
+    public List<SubscriptionStatus> getAlreadyOwned() {
+        return alreadyOwned;
+    }
+
+    public void setAlreadyOwned(@Nullable List<SubscriptionStatus> alreadyOwned) {
+        this.alreadyOwned = alreadyOwned;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Structural difference between two lists of subscriptions.
+ * <p>
+ * Subscriptions are matched by their natural key, the SKU and the purchase token. Subscriptions
+ * left over on both sides are then matched by SKU alone, since the purchase token of a
+ * subscription is rewritten when it becomes a local purchase. A subscription that only appears in
+ * the new list is added, one that only appears in the old list is removed, and one that appears
+ * in both but with different values is changed, along with the fields that changed. The local
+ * primary key is not compared, because it is reassigned every time the subscriptions are stored.
+ * <p>
+ * The repository uses it to skip publishing and storing lists that didn't change, and the local
+ * data source to write only the rows that did.
+ */
+public class SubscriptionDiff {
+
+    /**
+     * Fields of {@link SubscriptionStatus} that are compared.
+     */
+    public enum Field {
+        PURCHASE_TOKEN,
+        SUBSCRIPTION_STATUS_JSON,
+        SUB_ALREADY_OWNED,
+        LOCAL_PURCHASE,
+        ENTITLEMENT_ACTIVE,
+        WILL_RENEW,
+        ACTIVE_UNTIL,
+        FREE_TRIAL,
+        GRACE_PERIOD,
+        ACCOUNT_HOLD,
+        PAUSED,
+        ACKNOWLEDGED,
+        AUTO_RESUME_TIME
+    }
+
+    /**
+     * Natural key of a subscription.
+     */
+    public static class Key {
+        @Nullable
+        public final String sku;
+        @Nullable
+        public final String purchaseToken;
+
+        public Key(@Nullable String sku, @Nullable String purchaseToken) {
+            this.sku = sku;
+            this.purchaseToken = purchaseToken;
+        }
+
+        public static Key of(SubscriptionStatus subscription) {
+            return new Key(subscription.getSku(), subscription.getPurchaseToken());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(sku, key.sku) && Objects.equals(purchaseToken, key.purchaseToken);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sku, purchaseToken);
+        }
+
+        @Override
+        public String toString() {
+            return sku + "/" + purchaseToken;
+        }
+    }
+
+    /**
+     * A subscription that is in both lists, with the fields that differ. The key is the key of
+     * the new subscription.
+     */
+    public static class Change {
+        public final Key key;
+        public final SubscriptionStatus oldSubscription;
+        public final SubscriptionStatus newSubscription;
+        public final Set<Field> fields;
+
+        Change(Key key, SubscriptionStatus oldSubscription, SubscriptionStatus newSubscription,
+               Set<Field> fields) {
+            this.key = key;
+            this.oldSubscription = oldSubscription;
+            this.newSubscription = newSubscription;
+            this.fields = Collections.unmodifiableSet(fields);
+        }
+
+        @Override
+        public String toString() {
+            return key + " " + fields;
+        }
+    }
+
+    private final List<SubscriptionStatus> snapshot;
+    private final List<SubscriptionStatus> added;
+    private final List<SubscriptionStatus> removed;
+    private final List<Change> changed;
+
+    private SubscriptionDiff(List<SubscriptionStatus> snapshot, List<SubscriptionStatus> added,
+                             List<SubscriptionStatus> removed, List<Change> changed) {
+        this.snapshot = snapshot;
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * Compute the difference from the old list to the new list. Null lists are treated as empty.
+     * If a key appears more than once in a list, the last subscription with that key is used.
+     * The other subscriptions with that key are removed if they are in the old list, so storing
+     * the diff deletes duplicate rows, and ignored if they are in the new list.
+     */
+    public static SubscriptionDiff compute(@Nullable List<SubscriptionStatus> oldSubscriptions,
+                                           @Nullable List<SubscriptionStatus> newSubscriptions) {
+        List<SubscriptionStatus> snapshot = newSubscriptions == null
+                ? Collections.<SubscriptionStatus>emptyList() : newSubscriptions;
+        List<SubscriptionStatus> added = new ArrayList<>();
+        List<SubscriptionStatus> removed = new ArrayList<>();
+        Map<Key, SubscriptionStatus> oldByKey = index(oldSubscriptions, removed);
+        Map<Key, SubscriptionStatus> newByKey = index(newSubscriptions, null);
+        List<Change> changed = new ArrayList<>();
+        List<SubscriptionStatus> unmatched = new ArrayList<>();
+        for (Map.Entry<Key, SubscriptionStatus> entry : newByKey.entrySet()) {
+            SubscriptionStatus oldSubscription = oldByKey.remove(entry.getKey());
+            if (oldSubscription == null) {
+                unmatched.add(entry.getValue());
+                continue;
+            }
+            addIfChanged(changed, entry.getKey(), oldSubscription, entry.getValue());
+        }
+        // What is left of the old list can only match by SKU, with a new purchase token.
+        Map<String, List<SubscriptionStatus>> oldBySku = new HashMap<>();
+        for (SubscriptionStatus oldSubscription : oldByKey.values()) {
+            List<SubscriptionStatus> sameSku = oldBySku.get(oldSubscription.getSku());
+            if (sameSku == null) {
+                sameSku = new ArrayList<>();
+                oldBySku.put(oldSubscription.getSku(), sameSku);
+            }
+            sameSku.add(oldSubscription);
+        }
+        for (SubscriptionStatus newSubscription : unmatched) {
+            List<SubscriptionStatus> sameSku = oldBySku.get(newSubscription.getSku());
+            if (sameSku == null || sameSku.isEmpty()) {
+                added.add(newSubscription);
+                continue;
+            }
+            SubscriptionStatus oldSubscription = sameSku.remove(0);
+            oldByKey.remove(Key.of(oldSubscription));
+            addIfChanged(changed, Key.of(newSubscription), oldSubscription, newSubscription);
+        }
+        removed.addAll(oldByKey.values());
+        return new SubscriptionDiff(snapshot, added, removed, changed);
+    }
+
+    private static void addIfChanged(List<Change> changed, Key key,
+                                     SubscriptionStatus oldSubscription,
+                                     SubscriptionStatus newSubscription) {
+        Set<Field> fields = changedFields(oldSubscription, newSubscription);
+        if (!fields.isEmpty()) {
+            changed.add(new Change(key, oldSubscription, newSubscription, fields));
+        }
+    }
+
+    /**
+     * Index the subscriptions by key. Subscriptions replaced by a later one with the same key are
+     * added to duplicates, if it is not null.
+     */
+    private static Map<Key, SubscriptionStatus> index(
+            @Nullable List<SubscriptionStatus> subscriptions,
+            @Nullable List<SubscriptionStatus> duplicates) {
+        Map<Key, SubscriptionStatus> byKey = new LinkedHashMap<>();
+        if (subscriptions != null) {
+            for (SubscriptionStatus subscription : subscriptions) {
+                SubscriptionStatus replaced = byKey.put(Key.of(subscription), subscription);
+                if (replaced != null && duplicates != null) {
+                    duplicates.add(replaced);
+                }
+            }
+        }
+        return byKey;
+    }
+
+    /**
+     * Return the fields that differ between two subscriptions.
+     */
+    public static Set<Field> changedFields(SubscriptionStatus a, SubscriptionStatus b) {
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        if (!Objects.equals(a.getPurchaseToken(), b.getPurchaseToken())) {
+            fields.add(Field.PURCHASE_TOKEN);
+        }
+        if (!Objects.equals(a.getSubscriptionStatusJson(), b.getSubscriptionStatusJson())) {
+            fields.add(Field.SUBSCRIPTION_STATUS_JSON);
+        }
+        if (a.isSubAlreadyOwned() != b.isSubAlreadyOwned()) {
+            fields.add(Field.SUB_ALREADY_OWNED);
+        }
+        if (a.isLocalPurchase() != b.isLocalPurchase()) {
+            fields.add(Field.LOCAL_PURCHASE);
+        }
+        if (a.isEntitlementActive() != b.isEntitlementActive()) {
+            fields.add(Field.ENTITLEMENT_ACTIVE);
+        }
+        if (a.isWillRenew() != b.isWillRenew()) {
+            fields.add(Field.WILL_RENEW);
+        }
+        if (!Objects.equals(a.getActiveUntilMillisec(), b.getActiveUntilMillisec())) {
+            fields.add(Field.ACTIVE_UNTIL);
+        }
+        if (a.isFreeTrial() != b.isFreeTrial()) {
+            fields.add(Field.FREE_TRIAL);
+        }
+        if (a.isGracePeriod() != b.isGracePeriod()) {
+            fields.add(Field.GRACE_PERIOD);
+        }
+        if (a.isAccountHold() != b.isAccountHold()) {
+            fields.add(Field.ACCOUNT_HOLD);
+        }
+        if (a.isPaused() != b.isPaused()) {
+            fields.add(Field.PAUSED);
+        }
+        if (a.isAcknowledged() != b.isAcknowledged()) {
+            fields.add(Field.ACKNOWLEDGED);
+        }
+        if (!Objects.equals(a.getAutoResumeTimeMillis(), b.getAutoResumeTimeMillis())) {
+            fields.add(Field.AUTO_RESUME_TIME);
+        }
+        return fields;
+    }
+
+    /**
+     * The new list of subscriptions.
+     */
+    public List<SubscriptionStatus> getSnapshot() {
+        return snapshot;
+    }
+
+    public List<SubscriptionStatus> getAdded() {
+        return added;
+    }
+
+    public List<SubscriptionStatus> getRemoved() {
+        return removed;
+    }
+
+    public List<Change> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Return true if the two lists are structurally the same.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "SubscriptionDiff{" +
+                "added=" + added.size() +
+                ", removed=" + removed.size() +
+                ", changed=" + changed +
+                '}';
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import androidx.annotation.Nullable;
+import androidx.room.Ignore;
+
+/**
+ * The columns of a {@link SubscriptionStatus} that decide what the user is entitled to.
+ * <p>
+ * Room fills this in from narrow queries, so screens that only need to know which
+ * subscriptions are active don't load the subscription JSON of every row. The entitlement flags
+ * and SKU ordinal are the same as those of the {@link SubscriptionStatus} of the row.
+ */
+public class SubscriptionEntitlement implements HasEntitlementFlags {
+    /**
+     * Columns to select for this projection.
+     */
+    public static final String COLUMNS = "sku, purchaseToken, isEntitlementActive, willRenew, "
+            + "activeUntilMillisec, isGracePeriod, isAccountHold, isPaused, "
+            + "autoResumeTimeMillis, subAlreadyOwned, isLocalPurchase";
+
+    @Nullable
+    public String sku;
+    @Nullable
+    public String purchaseToken;
+    public boolean isEntitlementActive;
+    public boolean willRenew;
+    public Long activeUntilMillisec;
+    public boolean isGracePeriod;
+    public boolean isAccountHold;
+    public boolean isPaused;
+    public Long autoResumeTimeMillis;
+    public boolean subAlreadyOwned;
+    public boolean isLocalPurchase;
+
+    // Derived fields, computed on first use like those of SubscriptionStatus.
+    @Ignore
+    private int entitlementFlags = SubscriptionStatus.FLAGS_NOT_COMPUTED;
+    @Ignore
+    private int skuOrdinal = SubscriptionStatus.SKU_UNKNOWN;
+
+    /**
+     * Return the entitlement flags, see {@link SubscriptionStatus#getEntitlementFlags()}.
+     */
+    @Override
+    public int getEntitlementFlags() {
+        int flags = entitlementFlags;
+        if (flags == SubscriptionStatus.FLAGS_NOT_COMPUTED) {
+            skuOrdinal = SubscriptionStatus.skuOrdinalOf(sku);
+            flags = SubscriptionStatus.entitlementFlagsOf(skuOrdinal, subAlreadyOwned,
+                    isEntitlementActive, isGracePeriod, willRenew, isAccountHold, isPaused);
+            entitlementFlags = flags;
+        }
+        return flags;
+    }
+
+    /**
+     * Return {@link SubscriptionStatus#SKU_BASIC}, {@link SubscriptionStatus#SKU_PREMIUM} or
+     * {@link SubscriptionStatus#SKU_UNKNOWN}.
+     */
+    public int getSkuOrdinal() {
+        getEntitlementFlags();
+        return skuOrdinal;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionEntitlement{" +
+                "sku='" + sku + '\'' +
+                ", purchaseToken='" + purchaseToken + '\'' +
+                ", isEntitlementActive=" + isEntitlementActive +
+                ", willRenew=" + willRenew +
+                ", isGracePeriod=" + isGracePeriod +
+                ", isAccountHold=" + isAccountHold +
+                ", isPaused=" + isPaused +
+                ", subAlreadyOwned=" + subAlreadyOwned +
+                '}';
+    }
+}
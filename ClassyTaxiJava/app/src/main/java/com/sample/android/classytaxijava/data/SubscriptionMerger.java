@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Merges subscriptions from the server with the purchases that Google Play Billing reports on
+ * this device.
+ * <p>
+ * The purchases are indexed once per merge, by SKU and by purchase token, and the new
+ * subscriptions are indexed by SKU, so a merge is linear in the number of subscriptions and
+ * purchases instead of multiplying them together. Users with a long history of subscriptions
+ * across many SKUs get the same result as before, just without the nested loops.
+ */
+public class SubscriptionMerger {
+
+    private SubscriptionMerger() {
+    }
+
+    /**
+     * On-device purchases, indexed for the merge.
+     */
+    public static class PurchaseIndex {
+        /**
+         * Purchase token of the last purchase for each SKU.
+         */
+        private final Map<String, String> tokenBySku = new HashMap<>();
+
+        /**
+         * SKU of each purchase, keyed by its purchase token.
+         */
+        private final Map<String, String> skuByToken = new HashMap<>();
+
+        PurchaseIndex() {
+        }
+
+        /**
+         * Index a list of purchases. A null list gives an empty index.
+         */
+        public static PurchaseIndex of(@Nullable List<Purchase> purchases) {
+            PurchaseIndex index = new PurchaseIndex();
+            if (purchases != null) {
+                for (Purchase purchase : purchases) {
+                    index.add(purchase.getSkus().get(0), purchase.getPurchaseToken());
+                }
+            }
+            return index;
+        }
+
+        void add(String sku, String purchaseToken) {
+            // Later purchases for the same SKU win, like they did in the linear search.
+            tokenBySku.put(sku, purchaseToken);
+            skuByToken.put(purchaseToken, sku);
+        }
+
+        boolean hasSku(@Nullable String sku) {
+            return sku != null && tokenBySku.containsKey(sku);
+        }
+
+        @Nullable
+        String getPurchaseToken(@Nullable String sku) {
+            return sku == null ? null : tokenBySku.get(sku);
+        }
+
+        boolean contains(@Nullable String sku, @Nullable String purchaseToken) {
+            return sku != null && purchaseToken != null
+                    && sku.equals(skuByToken.get(purchaseToken));
+        }
+
+        boolean isEmpty() {
+            return tokenBySku.isEmpty();
+        }
+    }
+
+    /**
+     * Merge the previous subscriptions and new subscriptions by looking at on-device purchases.
+     * <p>
+     * We want to return the list of new subscriptions, possibly with some modifications
+     * based on old subscriptions and the on-devices purchases from Google Play Billing.
+     * Old subscriptions should be retained if they are owned by someone else (subAlreadyOwned)
+     * and the purchase token for the subscription is still on this device.
+     *
+     * @param purchases the on-device purchases, or null if they are not known yet
+     */
+    public static List<SubscriptionStatus> merge(
+            @Nullable List<SubscriptionStatus> oldSubscriptions,
+            @Nullable List<SubscriptionStatus> newSubscriptions,
+            @Nullable PurchaseIndex purchases) {
+        List<SubscriptionStatus> subscriptionStatuses = new ArrayList<>();
+        if (purchases != null) {
+            // Record which purchases are local and can be managed on this device.
+            updateLocalPurchaseTokens(newSubscriptions, purchases);
+        }
+        if (newSubscriptions != null) {
+            subscriptionStatuses.addAll(newSubscriptions);
+        }
+        // Find old subscriptions that are in purchases but not in new subscriptions.
+        if (purchases == null || purchases.isEmpty() || oldSubscriptions == null) {
+            return subscriptionStatuses;
+        }
+        Set<String> newSkus = null;
+        for (SubscriptionStatus oldSubscription : oldSubscriptions) {
+            // This old subscription was previously marked as "already owned" by
+            // another user. It should be included in the output if the SKU
+            // and purchase token match their previous value.
+            if (!oldSubscription.isSubAlreadyOwned() || !oldSubscription.isLocalPurchase()
+                    || !purchases.contains(oldSubscription.getSku(),
+                    oldSubscription.getPurchaseToken())) {
+                continue;
+            }
+            if (newSkus == null) {
+                newSkus = new HashSet<>();
+                if (newSubscriptions != null) {
+                    for (SubscriptionStatus newSubscription : newSubscriptions) {
+                        newSkus.add(newSubscription.getSku());
+                    }
+                }
+            }
+            if (!newSkus.contains(oldSubscription.getSku())) {
+                // The old subscription should be added to the output.
+                // It matches a local purchase.
+                subscriptionStatuses.add(oldSubscription);
+            }
+        }
+        return subscriptionStatuses;
+    }
+
+    /**
+     * Modify the subscriptions isLocalPurchase field based on the on-device purchases.
+     * Return true if any of the values changed.
+     *
+     * @param purchases the on-device purchases; null is treated as no purchases
+     */
+    public static boolean updateLocalPurchaseTokens(
+            @Nullable List<SubscriptionStatus> subscriptions,
+            @Nullable PurchaseIndex purchases) {
+        boolean hasChanged = false;
+        if (subscriptions != null) {
+            for (SubscriptionStatus subscription : subscriptions) {
+                String sku = subscription.getSku();
+                boolean isLocalPurchase = purchases != null && purchases.hasSku(sku);
+                if (subscription.isLocalPurchase() != isLocalPurchase) {
+                    subscription.setLocalPurchase(isLocalPurchase);
+                    if (isLocalPurchase) {
+                        subscription.setPurchaseToken(purchases.getPurchaseToken(sku));
+                    }
+                    hasChanged = true;
+                }
+            }
+        }
+        return hasChanged;
+    }
+}
@@ -16,19 +16,57 @@
 
 package com.sample.android.classytaxijava.data;
 
+import com.sample.android.classytaxijava.Constants;
+
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 /**
  * Local subscription data. This is stored on disk in a database.
+ * <p>
+ * Each user has at most one row per SKU and purchase token. Rows without a purchase token are
+ * not covered, since SQLite treats every NULL as distinct. Every query selects the rows of one
+ * user, which the same index serves, so there are no other indices to keep up to date.
  */
-@Entity(tableName = "subscriptions")
-public class SubscriptionStatus {
+@Entity(tableName = "subscriptions",
+        indices = {@Index(value = {"userId", "sku", "purchaseToken"}, unique = true)})
+public class SubscriptionStatus implements HasEntitlementFlags {
+
+    /*
+     * Entitlement flags, derived from the remote fields. Each flag is the result of one of the
+     * predicates in BillingUtilities, so checking a predicate is a single bit test.
+     */
+    public static final int FLAG_GRACE_PERIOD = 1;
+    public static final int FLAG_RESTORE = 1 << 1;
+    public static final int FLAG_BASIC_CONTENT = 1 << 2;
+    public static final int FLAG_PREMIUM_CONTENT = 1 << 3;
+    public static final int FLAG_ACCOUNT_HOLD = 1 << 4;
+    public static final int FLAG_PAUSED = 1 << 5;
+    public static final int FLAG_TRANSFER_REQUIRED = 1 << 6;
+    static final int FLAGS_NOT_COMPUTED = -1;
+
+    /*
+     * SKU ordinals, so known SKUs can be compared without string compares.
+     */
+    public static final int SKU_UNKNOWN = 0;
+    public static final int SKU_BASIC = 1;
+    public static final int SKU_PREMIUM = 2;
+
+    /**
+     * User ID for subscriptions stored while nobody is signed in.
+     */
+    public static final String NO_USER = "";
 
     // Local fields
     @PrimaryKey(autoGenerate = true)
     private int primaryKey = 0;
+    // Firebase uid of the user these subscriptions were fetched for.
+    @NonNull
+    private String userId = NO_USER;
     @Nullable
     private String subscriptionStatusJson;
     private boolean subAlreadyOwned;
@@ -49,12 +87,21 @@ public class SubscriptionStatus {
     private boolean isAcknowledged;
     private Long autoResumeTimeMillis;
 
+    // Derived fields
+    // Computed on first use, since Gson and Room fill in the fields above without a hook.
+    // Transient, so they are not sent to the server.
+    @Ignore
+    private transient int entitlementFlags = FLAGS_NOT_COMPUTED;
+    @Ignore
+    private transient int skuOrdinal = SKU_UNKNOWN;
+
     public boolean isWillRenew() {
         return willRenew;
     }
 
     public void setWillRenew(boolean willRenew) {
         this.willRenew = willRenew;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
     }
 
     @Nullable
@@ -72,6 +119,7 @@ public class SubscriptionStatus {
 
     public void setGracePeriod(boolean gracePeriod) {
         isGracePeriod = gracePeriod;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
     }
 
     public boolean isEntitlementActive() {
@@ -80,6 +128,7 @@ public class SubscriptionStatus {
 
     public void setEntitlementActive(boolean entitlementActive) {
         isEntitlementActive = entitlementActive;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
     }
 
     public Long getActiveUntilMillisec() {
@@ -105,6 +154,7 @@ public class SubscriptionStatus {
 
     public void setSku(String sku) {
         this.sku = sku;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
     }
 
     public boolean isAccountHold() {
@@ -113,6 +163,7 @@ public class SubscriptionStatus {
 
     public void setAccountHold(boolean accountHold) {
         isAccountHold = accountHold;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
     }
 
     public boolean isPaused() {
@@ -121,6 +172,7 @@ public class SubscriptionStatus {
 
     public void setPaused(boolean paused) {
         isPaused = paused;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
     }
 
     public Long getAutoResumeTimeMillis() {
@@ -139,6 +191,15 @@ public class SubscriptionStatus {
         this.primaryKey = primaryKey;
     }
 
+    @NonNull
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@NonNull String userId) {
+        this.userId = userId;
+    }
+
     @Nullable
     public String getSubscriptionStatusJson() {
         return subscriptionStatusJson;
@@ -154,6 +215,15 @@ public class SubscriptionStatus {
 
     public void setSubAlreadyOwned(boolean subAlreadyOwned) {
         this.subAlreadyOwned = subAlreadyOwned;
+        entitlementFlags = FLAGS_NOT_COMPUTED;
+    }
+
+    public boolean isAcknowledged() {
+        return isAcknowledged;
+    }
+
+    public void setAcknowledged(boolean acknowledged) {
+        isAcknowledged = acknowledged;
     }
 
     public boolean isLocalPurchase() {
@@ -164,6 +234,80 @@ public class SubscriptionStatus {
         isLocalPurchase = localPurchase;
     }
 
+    /**
+     * Return the entitlement flags for this subscription, computing them the first time.
+     */
+    @Override
+    public int getEntitlementFlags() {
+        int flags = entitlementFlags;
+        if (flags == FLAGS_NOT_COMPUTED) {
+            flags = computeEntitlementFlags();
+        }
+        return flags;
+    }
+
+    /**
+     * Return {@link #SKU_BASIC}, {@link #SKU_PREMIUM} or {@link #SKU_UNKNOWN}.
+     */
+    public int getSkuOrdinal() {
+        getEntitlementFlags();
+        return skuOrdinal;
+    }
+
+    private int computeEntitlementFlags() {
+        int ordinal = skuOrdinalOf(sku);
+        int flags = entitlementFlagsOf(ordinal, subAlreadyOwned, isEntitlementActive,
+                isGracePeriod, willRenew, isAccountHold, isPaused);
+        skuOrdinal = ordinal;
+        entitlementFlags = flags;
+        return flags;
+    }
+
+    /**
+     * Return the ordinal of a SKU, see {@link #getSkuOrdinal()}.
+     */
+    static int skuOrdinalOf(@Nullable String sku) {
+        if (Constants.BASIC_SKU.equals(sku)) {
+            return SKU_BASIC;
+        } else if (Constants.PREMIUM_SKU.equals(sku)) {
+            return SKU_PREMIUM;
+        }
+        return SKU_UNKNOWN;
+    }
+
+    /**
+     * Compute the entitlement flags from the remote fields. Shared with
+     * {@link SubscriptionEntitlement}, so both give the same answer for the same row.
+     */
+    static int entitlementFlagsOf(int ordinal, boolean subAlreadyOwned,
+                                  boolean isEntitlementActive, boolean isGracePeriod,
+                                  boolean willRenew, boolean isAccountHold, boolean isPaused) {
+        int flags = 0;
+        if (subAlreadyOwned) {
+            flags |= FLAG_TRANSFER_REQUIRED;
+        } else if (isEntitlementActive) {
+            if (isGracePeriod) {
+                flags |= FLAG_GRACE_PERIOD;
+            }
+            if (!willRenew) {
+                flags |= FLAG_RESTORE;
+            }
+            if (ordinal == SKU_BASIC) {
+                flags |= FLAG_BASIC_CONTENT;
+            } else if (ordinal == SKU_PREMIUM) {
+                flags |= FLAG_PREMIUM_CONTENT;
+            }
+        } else {
+            if (isAccountHold) {
+                flags |= FLAG_ACCOUNT_HOLD;
+            }
+            if (isPaused) {
+                flags |= FLAG_PAUSED;
+            }
+        }
+        return flags;
+    }
+
     /**
      * Create a record for a subscription that is already owned by a different user.
      * <p>
@@ -179,6 +323,31 @@ public class SubscriptionStatus {
         return subscriptionStatus;
     }
 
+    /**
+     * Create a copy of this record, so it can be modified without changing records that have
+     * already been published.
+     */
+    public SubscriptionStatus copy() {
+        SubscriptionStatus copy = new SubscriptionStatus();
+        copy.primaryKey = primaryKey;
+        copy.userId = userId;
+        copy.subscriptionStatusJson = subscriptionStatusJson;
+        copy.subAlreadyOwned = subAlreadyOwned;
+        copy.isLocalPurchase = isLocalPurchase;
+        copy.sku = sku;
+        copy.purchaseToken = purchaseToken;
+        copy.isEntitlementActive = isEntitlementActive;
+        copy.willRenew = willRenew;
+        copy.activeUntilMillisec = activeUntilMillisec;
+        copy.isFreeTrial = isFreeTrial;
+        copy.isGracePeriod = isGracePeriod;
+        copy.isAccountHold = isAccountHold;
+        copy.isPaused = isPaused;
+        copy.isAcknowledged = isAcknowledged;
+        copy.autoResumeTimeMillis = autoResumeTimeMillis;
+        return copy;
+    }
+
     @Override
     public String toString() {
         return "SubscriptionStatus{" +
@@ -24,12 +24,28 @@ import androidx.annotation.Nullable;
 
 /**
  * Used to parse through a list of {@link SubscriptionStatus} HTTP response objects.
+ * <p>
+ * Lists posted by the network layer also record the Firebase uid they were requested for, so
+ * results that arrive after the user changed can be recognized.
  */
 public class SubscriptionStatusList {
     @Nullable
     @SerializedName("subscriptions")
     private List<SubscriptionStatus> subscriptionStatuses;
 
+    // Not part of the HTTP response.
+    @Nullable
+    private transient String userId;
+
+    public SubscriptionStatusList() {
+    }
+
+    public SubscriptionStatusList(@Nullable String userId,
+                                  @Nullable List<SubscriptionStatus> subscriptionStatuses) {
+        this.userId = userId;
+        this.subscriptionStatuses = subscriptionStatuses;
+    }
+
     public List<SubscriptionStatus> getSubscriptions() {
         return subscriptionStatuses;
     }
@@ -37,4 +53,16 @@ public class SubscriptionStatusList {
     public void setSubscriptions(List<SubscriptionStatus> subscriptionStatuses) {
         this.subscriptionStatuses = subscriptionStatuses;
     }
+
+    /**
+     * The Firebase uid these subscriptions were requested for.
+     */
+    @Nullable
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(@Nullable String userId) {
+        this.userId = userId;
+    }
 }
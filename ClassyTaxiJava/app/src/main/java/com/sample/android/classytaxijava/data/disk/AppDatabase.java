@@ -24,7 +24,7 @@ import androidx.room.RoomDatabase;
 
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
-@Database(entities = SubscriptionStatus.class, version = 2)
+@Database(entities = {SubscriptionStatus.class, CachedUser.class}, version = 6)
 public abstract class AppDatabase extends RoomDatabase {
 
     private static volatile AppDatabase INSTANCE = null;
@@ -33,6 +33,8 @@ public abstract class AppDatabase extends RoomDatabase {
 
     public abstract SubscriptionStatusDao subscriptionStatusDao();
 
+    public abstract CachedUserDao cachedUserDao();
+
     public static AppDatabase getInstance(Context context) {
         if (INSTANCE == null) {
             synchronized (AppDatabase.class) {
@@ -16,21 +16,54 @@
 
 package com.sample.android.classytaxijava.data.disk;
 
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.arch.core.util.Function;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Transformations;
 
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
 import com.sample.android.classytaxijava.AppExecutors;
+import com.sample.android.classytaxijava.data.SubscriptionDiff;
+import com.sample.android.classytaxijava.data.SubscriptionEntitlement;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+/**
+ * Local subscription data, partitioned by user.
+ * <p>
+ * Subscriptions are stored with the Firebase uid of the user they belong to, and only the
+ * partition of the active user is exposed. The subscriptions of the last
+ * {@link #MAX_CACHED_USERS} users are kept, so switching back to one of them shows their
+ * subscriptions immediately while they are revalidated with the server. Older users are evicted.
+ */
 public class LocalDataSource {
+    private static final String TAG = "LocalDataSource";
     private static volatile LocalDataSource INSTANCE = null;
 
+    /**
+     * Number of users whose subscriptions are kept on disk.
+     */
+    public static final int MAX_CACHED_USERS = 3;
+
     private final Executor executor;
     private final AppDatabase appDatabase;
 
+    /**
+     * The user whose partition is exposed. Starts with the signed-in Firebase user.
+     */
+    private final MutableLiveData<String> activeUserId = new MutableLiveData<>();
+
+    @Nullable
+    private volatile String currentUserId = null;
+
     /**
      * Get the list of subscriptions from the localDataSource and get notified when the data changes.
      */
@@ -40,7 +73,19 @@ public class LocalDataSource {
         this.executor = executor;
         this.appDatabase = appDatabase;
 
-        subscriptions = appDatabase.subscriptionStatusDao().getAll();
+        final SubscriptionStatusDao dao = appDatabase.subscriptionStatusDao();
+        subscriptions = Transformations.switchMap(activeUserId,
+                new Function<String, LiveData<List<SubscriptionStatus>>>() {
+                    @Override
+                    public LiveData<List<SubscriptionStatus>> apply(String userId) {
+                        return dao.getAll(userId);
+                    }
+                });
+
+        // Expose the partition of the signed-in user right away, instead of waiting for the UI
+        // to switch to it.
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        switchUser(user == null ? null : user.getUid());
     }
 
     public static LocalDataSource getInstance(AppExecutors executors, AppDatabase database) {
@@ -54,17 +99,125 @@ public class LocalDataSource {
         return INSTANCE;
     }
 
-    public void updateSubscriptions(final List<SubscriptionStatus> subscriptions) {
+    /**
+     * Expose the partition of the given user, and mark the user as the most recently active.
+     * Users beyond {@link #MAX_CACHED_USERS} are evicted in the background.
+     *
+     * @param userId Firebase uid, or null when nobody is signed in
+     * @return true if a different user was active before
+     */
+    public synchronized boolean switchUser(@Nullable String userId) {
+        final String newUserId = userId == null ? SubscriptionStatus.NO_USER : userId;
+        String oldUserId = currentUserId;
+        if (newUserId.equals(oldUserId)) {
+            return false;
+        }
+        currentUserId = newUserId;
+        activeUserId.postValue(newUserId);
+        if (!SubscriptionStatus.NO_USER.equals(newUserId)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    touchUser(newUserId);
+                }
+            });
+        }
+        return oldUserId != null;
+    }
+
+    private void touchUser(final String userId) {
+        final CachedUserDao cachedUserDao = appDatabase.cachedUserDao();
+        appDatabase.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                CachedUser user = new CachedUser();
+                user.userId = userId;
+                user.lastActiveMillis = System.currentTimeMillis();
+                cachedUserDao.insert(user);
+                List<String> evicted = cachedUserDao.getLeastRecentlyActive(MAX_CACHED_USERS);
+                if (!evicted.isEmpty()) {
+                    Log.d(TAG, "Evicting subscriptions of " + evicted.size() + " user(s)");
+                    appDatabase.subscriptionStatusDao().deleteForUsers(evicted);
+                    cachedUserDao.deleteAll(evicted);
+                }
+            }
+        });
+    }
+
+    /**
+     * The Firebase uid of the active user, or {@link SubscriptionStatus#NO_USER}.
+     */
+    @NonNull
+    public String getCurrentUserId() {
+        String userId = currentUserId;
+        return userId == null ? SubscriptionStatus.NO_USER : userId;
+    }
+
+    /**
+     * Get the entitlement columns of every subscription, without the subscription JSON.
+     */
+    public LiveData<List<SubscriptionEntitlement>> getEntitlements() {
+        final SubscriptionStatusDao dao = appDatabase.subscriptionStatusDao();
+        return Transformations.switchMap(activeUserId,
+                new Function<String, LiveData<List<SubscriptionEntitlement>>>() {
+                    @Override
+                    public LiveData<List<SubscriptionEntitlement>> apply(String userId) {
+                        return dao.getEntitlements(userId);
+                    }
+                });
+    }
+
+    /**
+     * Store the subscriptions of a user, writing only the rows that changed.
+     * <p>
+     * The rows go to the partition of the given user even if another user is active by the
+     * time they are written.
+     * <p>
+     * Rows are matched with the current rows by their natural key, the SKU and the purchase
+     * token. Changed rows keep their primary key, so the table is not rewritten and row ids are
+     * not churned. Rows that duplicate another row's key are deleted. When nothing changed, no
+     * transaction is run and observers of {@link #subscriptions} are not invalidated.
+     */
+    public void updateSubscriptions(@NonNull final String userId,
+                                    final List<SubscriptionStatus> subscriptions) {
+        final List<SubscriptionStatus> rows = new ArrayList<>();
+        for (SubscriptionStatus subscription : subscriptions) {
+            SubscriptionStatus row = subscription.copy();
+            row.setUserId(userId);
+            rows.add(row);
+        }
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                // The executor is the only writer, so the rows can't change before the
+                // transaction below runs.
+                final SubscriptionStatusDao dao = appDatabase.subscriptionStatusDao();
+                final SubscriptionDiff diff =
+                        SubscriptionDiff.compute(dao.getAllSync(userId), rows);
+                if (diff.isEmpty()) {
+                    return;
+                }
+                final List<SubscriptionStatus> changed = new ArrayList<>();
+                for (SubscriptionDiff.Change change : diff.getChanged()) {
+                    change.newSubscription.setPrimaryKey(change.oldSubscription.getPrimaryKey());
+                    changed.add(change.newSubscription);
+                }
+                for (SubscriptionStatus added : diff.getAdded()) {
+                    // New rows get a new primary key, the one they carry may be another row's.
+                    added.setPrimaryKey(0);
+                }
                 appDatabase.runInTransaction(new Runnable() {
                     @Override
                     public void run() {
-                        // Delete existing subscriptions.
-                        appDatabase.subscriptionStatusDao().deleteAll();
-                        // Put new subscriptions data into localDataSource.
-                        appDatabase.subscriptionStatusDao().insertAll(subscriptions);
+                        if (!diff.getRemoved().isEmpty()) {
+                            dao.deleteAll(diff.getRemoved());
+                        }
+                        if (!changed.isEmpty()) {
+                            dao.updateAll(changed);
+                        }
+                        if (!diff.getAdded().isEmpty()) {
+                            dao.insertAll(diff.getAdded());
+                        }
                     }
                 });
             }
@@ -72,9 +225,9 @@ public class LocalDataSource {
     }
 
     /**
-     * Delete local user data when the user signs out.
+     * Delete the local data of the active user.
      */
     public void deleteLocalUserData() {
-        updateSubscriptions(new ArrayList<SubscriptionStatus>());
+        updateSubscriptions(getCurrentUserId(), new ArrayList<SubscriptionStatus>());
     }
 }
@@ -16,24 +16,40 @@
 
 package com.sample.android.classytaxijava.data.disk;
 
+import com.sample.android.classytaxijava.data.SubscriptionEntitlement;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.List;
 
 import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
+import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Update;
 
 @Dao
 interface SubscriptionStatusDao {
-    @Query("SELECT * FROM subscriptions")
-    LiveData<List<SubscriptionStatus>> getAll();
+    @Query("SELECT * FROM subscriptions WHERE userId = :userId")
+    LiveData<List<SubscriptionStatus>> getAll(String userId);
+
+    @Query("SELECT * FROM subscriptions WHERE userId = :userId")
+    List<SubscriptionStatus> getAllSync(String userId);
+
+    @Query("SELECT " + SubscriptionEntitlement.COLUMNS + " FROM subscriptions"
+            + " WHERE userId = :userId")
+    LiveData<List<SubscriptionEntitlement>> getEntitlements(String userId);
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     void insertAll(List<SubscriptionStatus> comments);
 
-    @Query("DELETE FROM subscriptions")
-    void deleteAll();
+    @Update
+    void updateAll(List<SubscriptionStatus> subscriptions);
+
+    @Delete
+    void deleteAll(List<SubscriptionStatus> subscriptions);
+
+    @Query("DELETE FROM subscriptions WHERE userId IN (:userIds)")
+    void deleteForUsers(List<String> userIds);
 }
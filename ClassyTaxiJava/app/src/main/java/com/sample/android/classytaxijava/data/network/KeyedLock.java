@@ -0,0 +1,236 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes asynchronous requests per key instead of globally.
+ * <p>
+ * Each key has a queue of requests. A request holds its keys from the time it starts until it
+ * reports that it is done, which for a network request is when the response or the failure
+ * arrives, not when the call is enqueued. Requests that share a key run one at a time, in the
+ * order they were submitted, while requests on different keys run concurrently. A request can
+ * hold several keys; it joins the queues of all of them at once, so two requests can't wait for
+ * each other. Queues are created on demand and dropped when they are empty.
+ * <p>
+ * The time spent waiting for keys and the time they are held are recorded, to compare with the
+ * single global lock this replaces.
+ */
+public class KeyedLock {
+
+    /**
+     * A request that holds keys until it calls {@code done}.
+     */
+    public interface Request {
+        /**
+         * Start the request. {@code done} must be called once the request has completed, on any
+         * thread. Calling it more than once has no effect.
+         */
+        void start(Runnable done);
+    }
+
+    /**
+     * Counts of requests, the time they waited for their keys and the time they held them.
+     */
+    public static class WaitStats {
+        public final long acquisitions;
+        public final long contended;
+        public final long totalWaitNanos;
+        public final long maxWaitNanos;
+        public final long releases;
+        public final long totalHoldNanos;
+        public final long maxHoldNanos;
+
+        WaitStats(long acquisitions, long contended, long totalWaitNanos, long maxWaitNanos,
+                  long releases, long totalHoldNanos, long maxHoldNanos) {
+            this.acquisitions = acquisitions;
+            this.contended = contended;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.releases = releases;
+            this.totalHoldNanos = totalHoldNanos;
+            this.maxHoldNanos = maxHoldNanos;
+        }
+
+        public double getAverageWaitMillis() {
+            return acquisitions == 0 ? 0.0 : totalWaitNanos / 1e6 / acquisitions;
+        }
+
+        public double getAverageHoldMillis() {
+            return releases == 0 ? 0.0 : totalHoldNanos / 1e6 / releases;
+        }
+
+        @Override
+        public String toString() {
+            return "WaitStats{" +
+                    "acquisitions=" + acquisitions +
+                    ", contended=" + contended +
+                    ", averageWaitMillis=" + getAverageWaitMillis() +
+                    ", maxWaitMillis=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) +
+                    ", releases=" + releases +
+                    ", averageHoldMillis=" + getAverageHoldMillis() +
+                    ", maxHoldMillis=" + TimeUnit.NANOSECONDS.toMillis(maxHoldNanos) +
+                    '}';
+        }
+    }
+
+    private static class Holder {
+        final Request request;
+        final String[] keys;
+        final long submitNanos = System.nanoTime();
+        // Number of queues in which this holder is not at the head yet.
+        int blocked = 0;
+        long startNanos;
+        boolean released = false;
+
+        Holder(Request request, String[] keys) {
+            this.request = request;
+            this.keys = keys;
+        }
+    }
+
+    private final Executor executor;
+    private final Map<String, ArrayDeque<Holder>> queues = new HashMap<>();
+
+    private long acquisitions = 0;
+    private long contended = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long releases = 0;
+    private long totalHoldNanos = 0;
+    private long maxHoldNanos = 0;
+
+    /**
+     * @param executor runs requests once they hold their keys
+     */
+    public KeyedLock(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Start the request on the executor once it holds all the keys. Null keys are ignored.
+     */
+    public void submit(Request request, String... keys) {
+        Holder holder = new Holder(request, sortedDistinct(keys));
+        synchronized (this) {
+            for (String key : holder.keys) {
+                ArrayDeque<Holder> queue = queues.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    queues.put(key, queue);
+                }
+                if (!queue.isEmpty()) {
+                    holder.blocked++;
+                }
+                queue.add(holder);
+            }
+            if (holder.blocked > 0) {
+                contended++;
+                return;
+            }
+        }
+        start(holder);
+    }
+
+    public synchronized WaitStats getWaitStats() {
+        return new WaitStats(acquisitions, contended, totalWaitNanos, maxWaitNanos,
+                releases, totalHoldNanos, maxHoldNanos);
+    }
+
+    private void start(final Holder holder) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                synchronized (KeyedLock.this) {
+                    holder.startNanos = now;
+                    long waitNanos = now - holder.submitNanos;
+                    acquisitions++;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                }
+                Runnable done = new Runnable() {
+                    @Override
+                    public void run() {
+                        release(holder);
+                    }
+                };
+                try {
+                    holder.request.start(done);
+                } catch (RuntimeException e) {
+                    // A request that didn't start can't report that it is done.
+                    release(holder);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private void release(Holder holder) {
+        List<Holder> ready = new ArrayList<>();
+        synchronized (this) {
+            if (holder.released) {
+                return;
+            }
+            holder.released = true;
+            long holdNanos = System.nanoTime() - holder.startNanos;
+            releases++;
+            totalHoldNanos += holdNanos;
+            maxHoldNanos = Math.max(maxHoldNanos, holdNanos);
+            for (String key : holder.keys) {
+                ArrayDeque<Holder> queue = queues.get(key);
+                // The holder is at the head of the queue of every key it holds.
+                queue.poll();
+                Holder next = queue.peek();
+                if (next == null) {
+                    queues.remove(key);
+                } else if (--next.blocked == 0) {
+                    ready.add(next);
+                }
+            }
+        }
+        for (Holder next : ready) {
+            start(next);
+        }
+    }
+
+    private static String[] sortedDistinct(String[] keys) {
+        String[] sorted = new String[keys.length];
+        int count = 0;
+        for (String key : keys) {
+            if (key != null) {
+                sorted[count++] = key;
+            }
+        }
+        Arrays.sort(sorted, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || !sorted[i].equals(sorted[distinct - 1])) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects subscription register and transfer calls over a short window and sends each kind as
+ * one batch request.
+ * <p>
+ * Purchases usually arrive together, for example when purchases are restored or the user signs
+ * in, and used to turn into one request per purchase. The window starts with the first call and
+ * is not extended by later calls, so no call waits longer than the window. Calls for the same
+ * SKU and purchase token within a window are sent once. A batch of one goes to the single
+ * endpoint.
+ */
+public class SubscriptionRequestBatcher {
+    private static final String TAG = "RequestBatcher";
+
+    public static final long DEFAULT_WINDOW_MILLIS = 100L;
+
+    /**
+     * Sends the requests collected during a window.
+     */
+    public interface Sender {
+        void registerSubscription(String sku, String purchaseToken);
+
+        void registerSubscriptions(List<SubscriptionStatus> registrations);
+
+        void transferSubscription(String sku, String purchaseToken);
+
+        void transferSubscriptions(List<SubscriptionStatus> transfers);
+    }
+
+    private final Sender sender;
+    private final long windowMillis;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // The pending requests, keyed by SKU and purchase token.
+    private Map<String, SubscriptionStatus> registrations = new LinkedHashMap<>();
+    private Map<String, SubscriptionStatus> transfers = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+
+    public SubscriptionRequestBatcher(Sender sender) {
+        this(sender, DEFAULT_WINDOW_MILLIS);
+    }
+
+    public SubscriptionRequestBatcher(Sender sender, long windowMillis) {
+        this.sender = sender;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Adds a registration to the current batch. May be called from any thread.
+     */
+    public void registerSubscription(String sku, String purchaseToken) {
+        synchronized (this) {
+            registrations.put(key(sku, purchaseToken), request(sku, purchaseToken));
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Adds a transfer to the current batch. May be called from any thread.
+     */
+    public void transferSubscription(String sku, String purchaseToken) {
+        synchronized (this) {
+            transfers.put(key(sku, purchaseToken), request(sku, purchaseToken));
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Sends the pending requests now instead of waiting for the window to close.
+     * Registrations are sent before transfers.
+     */
+    public void flush() {
+        List<SubscriptionStatus> registerBatch;
+        List<SubscriptionStatus> transferBatch;
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+            registerBatch = new ArrayList<>(registrations.values());
+            transferBatch = new ArrayList<>(transfers.values());
+            registrations = new LinkedHashMap<>();
+            transfers = new LinkedHashMap<>();
+        }
+        if (registerBatch.size() == 1) {
+            SubscriptionStatus registration = registerBatch.get(0);
+            sender.registerSubscription(registration.getSku(), registration.getPurchaseToken());
+        } else if (!registerBatch.isEmpty()) {
+            Log.d(TAG, "Registering " + registerBatch.size() + " subscriptions in one request");
+            sender.registerSubscriptions(registerBatch);
+        }
+        if (transferBatch.size() == 1) {
+            SubscriptionStatus transfer = transferBatch.get(0);
+            sender.transferSubscription(transfer.getSku(), transfer.getPurchaseToken());
+        } else if (!transferBatch.isEmpty()) {
+            Log.d(TAG, "Transferring " + transferBatch.size() + " subscriptions in one request");
+            sender.transferSubscriptions(transferBatch);
+        }
+    }
+
+    // Must hold the lock.
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        handler.postDelayed(flushRunnable, windowMillis);
+    }
+
+    private static String key(String sku, String purchaseToken) {
+        return sku + "/" + purchaseToken;
+    }
+
+    private static SubscriptionStatus request(String sku, String purchaseToken) {
+        SubscriptionStatus data = new SubscriptionStatus();
+        data.setSku(sku);
+        data.setPurchaseToken(purchaseToken);
+        return data;
+    }
+}
@@ -18,22 +18,86 @@ package com.sample.android.classytaxijava.data.network;
 
 import androidx.lifecycle.LiveData;
 
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
 import com.sample.android.classytaxijava.AppExecutors;
 import com.sample.android.classytaxijava.data.ContentResource;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 
 /**
  * Execute network requests on the network thread.
  * Fetch data from a {@link ServerFunctions} object and expose with {@link #getSubscriptions()}.
+ * <p>
+ * Requests are serialized per key rather than globally. Requests for the same SKU or purchase
+ * token run in order, and so do Instance ID requests, while unrelated requests run concurrently
+ * on the network threads. A request holds its keys until the server has responded, so requests
+ * for the same key are never in flight at the same time.
+ * <p>
+ * Register and transfer calls are collected by a {@link SubscriptionRequestBatcher}, so
+ * purchases that arrive together are sent in one request.
+ * <p>
+ * Subscription requests are made for the user that is signed in when they are sent, which is
+ * the user they are authenticated as, and their results are posted with that user's uid.
  */
 public class WebDataSource {
+    private static final String KEY_SUBSCRIPTION_STATUS = "subscription_status";
+    private static final String KEY_INSTANCE_ID = "instance_id";
+
     private static volatile WebDataSource INSTANCE = null;
-    private Executor executor;
     private ServerFunctions serverFunctions;
+    private final KeyedLock keyedLock;
+    private final SubscriptionRequestBatcher requestBatcher =
+            new SubscriptionRequestBatcher(new SubscriptionRequestBatcher.Sender() {
+                @Override
+                public void registerSubscription(final String sku, final String purchaseToken) {
+                    keyedLock.submit(new KeyedLock.Request() {
+                        @Override
+                        public void start(Runnable done) {
+                            serverFunctions.registerSubscription(getCurrentUserId(), sku,
+                                    purchaseToken, done);
+                        }
+                    }, skuKey(sku), tokenKey(purchaseToken));
+                }
+
+                @Override
+                public void registerSubscriptions(final List<SubscriptionStatus> registrations) {
+                    keyedLock.submit(new KeyedLock.Request() {
+                        @Override
+                        public void start(Runnable done) {
+                            serverFunctions.registerSubscriptions(getCurrentUserId(),
+                                    registrations, done);
+                        }
+                    }, keys(registrations));
+                }
+
+                @Override
+                public void transferSubscription(final String sku, final String purchaseToken) {
+                    keyedLock.submit(new KeyedLock.Request() {
+                        @Override
+                        public void start(Runnable done) {
+                            serverFunctions.transferSubscription(getCurrentUserId(), sku,
+                                    purchaseToken, done);
+                        }
+                    }, skuKey(sku), tokenKey(purchaseToken));
+                }
+
+                @Override
+                public void transferSubscriptions(final List<SubscriptionStatus> transfers) {
+                    keyedLock.submit(new KeyedLock.Request() {
+                        @Override
+                        public void start(Runnable done) {
+                            serverFunctions.transferSubscriptions(getCurrentUserId(),
+                                    transfers, done);
+                        }
+                    }, keys(transfers));
+                }
+            });
 
     public static WebDataSource getInstance(AppExecutors executors,
                                             ServerFunctions callableFunctions) {
@@ -48,8 +112,43 @@ public class WebDataSource {
     }
 
     private WebDataSource(Executor executor, ServerFunctions serverFunctions) {
-        this.executor = executor;
         this.serverFunctions = serverFunctions;
+        this.keyedLock = new KeyedLock(executor);
+    }
+
+    /**
+     * Time spent waiting for other requests with the same key, and time the keys were held.
+     */
+    public KeyedLock.WaitStats getLockWaitStats() {
+        return keyedLock.getWaitStats();
+    }
+
+    /**
+     * Firebase uid of the signed-in user, or {@link SubscriptionStatus#NO_USER}.
+     */
+    private static String getCurrentUserId() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        return user == null ? SubscriptionStatus.NO_USER : user.getUid();
+    }
+
+    private static String skuKey(String sku) {
+        return sku == null ? null : "sku:" + sku;
+    }
+
+    private static String tokenKey(String purchaseToken) {
+        return purchaseToken == null ? null : "token:" + purchaseToken;
+    }
+
+    /**
+     * The SKU and purchase token keys of every subscription in a batch.
+     */
+    private static String[] keys(List<SubscriptionStatus> batch) {
+        List<String> keys = new ArrayList<>(batch.size() * 2);
+        for (SubscriptionStatus status : batch) {
+            keys.add(skuKey(status.getSku()));
+            keys.add(tokenKey(status.getPurchaseToken()));
+        }
+        return keys.toArray(new String[0]);
     }
 
     /**
@@ -59,7 +158,10 @@ public class WebDataSource {
         return serverFunctions.getLoading();
     }
 
-    public LiveData<List<SubscriptionStatus>> getSubscriptions() {
+    /**
+     * Subscriptions from the server, with the uid they were requested for.
+     */
+    public LiveData<SubscriptionStatusList> getSubscriptions() {
         return serverFunctions.getSubscriptions();
     }
 
@@ -79,73 +181,66 @@ public class WebDataSource {
         serverFunctions.updatePremiumContent();
     }
 
+    /**
+     * Forget the content of the previous user.
+     */
+    public void clearContent() {
+        serverFunctions.clearContent();
+    }
+
     /**
      * GET request for subscription status.
      */
     public void updateSubscriptionStatus() {
-        executor.execute(new Runnable() {
+        keyedLock.submit(new KeyedLock.Request() {
             @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.updateSubscriptionStatus();
-                }
+            public void start(Runnable done) {
+                serverFunctions.updateSubscriptionStatus(getCurrentUserId(), done);
             }
-        });
+        }, KEY_SUBSCRIPTION_STATUS);
     }
 
     /**
      * POST request to register subscription.
+     * <p>
+     * Registrations made within {@link SubscriptionRequestBatcher#DEFAULT_WINDOW_MILLIS} of
+     * each other are sent in one request.
      */
     public void registerSubscription(final String sku, final String purchaseToken) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.registerSubscription(sku, purchaseToken);
-                }
-            }
-        });
+        requestBatcher.registerSubscription(sku, purchaseToken);
     }
 
     /**
      * POST request to transfer a subscription that is owned by someone else.
+     * <p>
+     * Transfers made within {@link SubscriptionRequestBatcher#DEFAULT_WINDOW_MILLIS} of each
+     * other are sent in one request.
      */
     public void postTransferSubscriptionSync(final String sku, final String purchaseToken) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.transferSubscription(sku, purchaseToken);
-                }
-            }
-        });
+        requestBatcher.transferSubscription(sku, purchaseToken);
     }
 
     /**
      * POST request to register an Instance ID.
      */
     public void postRegisterInstanceId(final String instanceId) {
-        executor.execute(new Runnable() {
+        keyedLock.submit(new KeyedLock.Request() {
             @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.registerInstanceId(instanceId);
-                }
+            public void start(Runnable done) {
+                serverFunctions.registerInstanceId(instanceId, done);
             }
-        });
+        }, KEY_INSTANCE_ID);
     }
 
     /**
      * POST request to unregister an Instance ID.
      */
     public void postUnregisterInstanceId(final String instanceId) {
-        executor.execute(new Runnable() {
+        keyedLock.submit(new KeyedLock.Request() {
             @Override
-            public void run() {
-                synchronized (WebDataSource.class) {
-                    serverFunctions.unregisterInstanceId(instanceId);
-                }
+            public void start(Runnable done) {
+                serverFunctions.unregisterInstanceId(instanceId, done);
             }
-        });
+        }, KEY_INSTANCE_ID);
     }
 }
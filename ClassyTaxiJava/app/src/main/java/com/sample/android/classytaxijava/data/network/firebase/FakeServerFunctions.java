@@ -20,6 +20,7 @@ import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.billing.BillingUtilities;
 import com.sample.android.classytaxijava.data.ContentResource;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -45,7 +46,7 @@ public class FakeServerFunctions implements ServerFunctions {
      * Use this class by observing the subscriptions {@link LiveData}.
      * Fake data will be communicated through this LiveData.
      */
-    private final MutableLiveData<List<SubscriptionStatus>> subscriptions = new MutableLiveData<>();
+    private final MutableLiveData<SubscriptionStatusList> subscriptions = new MutableLiveData<>();
 
     /**
      * The basic content URL.
@@ -77,7 +78,7 @@ public class FakeServerFunctions implements ServerFunctions {
     }
 
     @Override
-    public LiveData<List<SubscriptionStatus>> getSubscriptions() {
+    public LiveData<SubscriptionStatusList> getSubscriptions() {
         return subscriptions;
     }
 
@@ -97,7 +98,7 @@ public class FakeServerFunctions implements ServerFunctions {
      */
     @Override
     public void updateBasicContent() {
-        List<SubscriptionStatus> subs = subscriptions.getValue();
+        List<SubscriptionStatus> subs = getLastSubscriptions();
         if (subs == null || subs.isEmpty()) {
             basicContent.postValue(null);
             return;
@@ -117,7 +118,7 @@ public class FakeServerFunctions implements ServerFunctions {
      */
     @Override
     public void updatePremiumContent() {
-        List<SubscriptionStatus> subs = subscriptions.getValue();
+        List<SubscriptionStatus> subs = getLastSubscriptions();
         if (subs == null || subs.isEmpty()) {
             premiumContent.postValue(null);
             return;
@@ -129,17 +130,25 @@ public class FakeServerFunctions implements ServerFunctions {
         }
     }
 
+    /**
+     * Fake content is not cached.
+     */
+    @Override
+    public void clearContent() {
+    }
+
     /**
      * Fetches fake subscription data and posts successful results to {@link #subscriptions}.
      */
     @Override
-    public void updateSubscriptionStatus() {
+    public void updateSubscriptionStatus(String userId, Runnable onComplete) {
         List<SubscriptionStatus> nextSub = new ArrayList<>();
         SubscriptionStatus subscriptionStatus = nextFakeSubscription();
         if (subscriptionStatus != null) {
             nextSub.add(subscriptionStatus);
         }
-        subscriptions.postValue(nextSub);
+        postSubscriptions(userId, nextSub);
+        onComplete.run();
     }
 
     /**
@@ -147,48 +156,113 @@ public class FakeServerFunctions implements ServerFunctions {
      * {@link #subscriptions}.
      */
     @Override
-    public void registerSubscription(String sku, String purchaseToken) {
+    public void registerSubscription(String userId, String sku, String purchaseToken,
+                                     Runnable onComplete) {
         // When successful, return subscription results.
         // When response code is HTTP 409 CONFLICT create an already owned subscription.
         switch (sku) {
             case Constants.BASIC_SKU:
-                subscriptions.postValue(Collections.singletonList(createFakeBasicSubscription()));
+                postSubscriptions(userId,
+                        Collections.singletonList(createFakeBasicSubscription()));
                 break;
             case Constants.PREMIUM_SKU:
-                subscriptions.postValue(Collections.singletonList(createFakePremiumSubscription()));
+                postSubscriptions(userId,
+                        Collections.singletonList(createFakePremiumSubscription()));
                 break;
             default:
-                subscriptions.postValue(Collections.singletonList(
+                postSubscriptions(userId, Collections.singletonList(
                         createAlreadyOwnedSubscription(sku, purchaseToken)));
 
         }
+        onComplete.run();
     }
 
     /**
      * Transfer subscription to this account posts successful results to {@link #subscriptions}.
      */
     @Override
-    public void transferSubscription(String sku, String purchaseToken) {
+    public void transferSubscription(String userId, String sku, String purchaseToken,
+                                     Runnable onComplete) {
         SubscriptionStatus subscription = createFakeBasicSubscription();
         subscription.setSku(sku);
         subscription.setPurchaseToken(purchaseToken);
         subscription.setSubAlreadyOwned(false);
         subscription.setEntitlementActive(true);
-        subscriptions.postValue(Collections.singletonList(subscription));
+        postSubscriptions(userId, Collections.singletonList(subscription));
+        onComplete.run();
+    }
+
+    /**
+     * Register several subscriptions and post the results to {@link #subscriptions} at once.
+     * <p>
+     * Stands in for the batch endpoint of the server: each subscription gets the same result as
+     * {@link #registerSubscription}, and subscriptions with an unknown SKU come back as already
+     * owned, like the alreadyOwned part of the batch response.
+     */
+    @Override
+    public void registerSubscriptions(String userId, List<SubscriptionStatus> registrations,
+                                      Runnable onComplete) {
+        List<SubscriptionStatus> results = new ArrayList<>();
+        for (SubscriptionStatus registration : registrations) {
+            String sku = registration.getSku();
+            SubscriptionStatus result;
+            if (Constants.BASIC_SKU.equals(sku)) {
+                result = createFakeBasicSubscription();
+            } else if (Constants.PREMIUM_SKU.equals(sku)) {
+                result = createFakePremiumSubscription();
+            } else {
+                result = createAlreadyOwnedSubscription(sku, registration.getPurchaseToken());
+            }
+            results.add(result);
+        }
+        postSubscriptions(userId, results);
+        onComplete.run();
+    }
+
+    /**
+     * Transfer several subscriptions to this account and post the results to
+     * {@link #subscriptions} at once.
+     */
+    @Override
+    public void transferSubscriptions(String userId, List<SubscriptionStatus> transfers,
+                                      Runnable onComplete) {
+        List<SubscriptionStatus> results = new ArrayList<>();
+        for (SubscriptionStatus transfer : transfers) {
+            SubscriptionStatus subscription = createFakeBasicSubscription();
+            subscription.setSku(transfer.getSku());
+            subscription.setPurchaseToken(transfer.getPurchaseToken());
+            subscription.setSubAlreadyOwned(false);
+            subscription.setEntitlementActive(true);
+            results.add(subscription);
+        }
+        postSubscriptions(userId, results);
+        onComplete.run();
     }
 
     /**
      * Register Instance ID when the user signs in or the token is refreshed.
      */
     @Override
-    public void registerInstanceId(String instanceId) {
+    public void registerInstanceId(String instanceId, Runnable onComplete) {
+        onComplete.run();
     }
 
     /**
      * Unregister when the user signs out.
      */
     @Override
-    public void unregisterInstanceId(String instanceId) {
+    public void unregisterInstanceId(String instanceId, Runnable onComplete) {
+        onComplete.run();
+    }
+
+    private void postSubscriptions(String userId, List<SubscriptionStatus> results) {
+        subscriptions.postValue(new SubscriptionStatusList(userId, results));
+    }
+
+    @Nullable
+    private List<SubscriptionStatus> getLastSubscriptions() {
+        SubscriptionStatusList lastSubscriptions = subscriptions.getValue();
+        return lastSubscriptions == null ? null : lastSubscriptions.getSubscriptions();
     }
 
     /**
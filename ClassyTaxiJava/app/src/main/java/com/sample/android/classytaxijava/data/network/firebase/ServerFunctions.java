@@ -3,6 +3,7 @@ package com.sample.android.classytaxijava.data.network.firebase;
 import androidx.lifecycle.LiveData;
 
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 import com.sample.android.classytaxijava.data.ContentResource;
 
 import java.util.List;
@@ -13,6 +14,12 @@ import java.util.List;
  *
  * Use this class by observing the {@link #getSubscriptions} LiveData.
  * Any server updates will be communicated through this LiveData.
+ *
+ * Subscription requests take the Firebase uid of the user they are made for, and the results
+ * are posted with that uid, so results for a previous user can be told apart.
+ *
+ * Calls that take an onComplete callback run it once the server has responded or the call has
+ * failed, after any results have been posted.
  */
 public interface ServerFunctions {
     /**
@@ -21,11 +28,11 @@ public interface ServerFunctions {
     LiveData<Boolean> getLoading();
 
     /**
-     * The latest subscription data from the server.
+     * The latest subscription data from the server, with the uid it was requested for.
      *
      * Must be observed and active in order to receive updates from the server.
      */
-    LiveData<List<SubscriptionStatus>> getSubscriptions();
+    LiveData<SubscriptionStatusList> getSubscriptions();
 
     /**
      * The basic content URL.
@@ -49,31 +56,58 @@ public interface ServerFunctions {
      */
     void updatePremiumContent();
 
+    /**
+     * Forget any content fetched for the previous user, including requests that are still in
+     * flight.
+     */
+    void clearContent();
+
     /**
      * Fetches subscription data from the server and posts successful results to
      * {@link #getSubscriptions}.
      */
-    void updateSubscriptionStatus();
+    void updateSubscriptionStatus(String userId, Runnable onComplete);
 
     /**
      * Register a subscription with the server and posts successful results to
      * {@link #getSubscriptions}.
      */
-    void registerSubscription(String sku, String purchaseToken);
+    void registerSubscription(String userId, String sku, String purchaseToken,
+                              Runnable onComplete);
 
     /**
      * Transfer subscription to this account posts successful results to
      * {@link #getSubscriptions}.
      */
-    void transferSubscription(String sku, String purchaseToken);
+    void transferSubscription(String userId, String sku, String purchaseToken,
+                              Runnable onComplete);
+
+    /**
+     * Register several subscriptions with the server in one request and post the results to
+     * {@link #getSubscriptions}. Subscriptions owned by a different user are posted as already
+     * owned.
+     *
+     * @param registrations subscriptions with only the SKU and purchase token set
+     */
+    void registerSubscriptions(String userId, List<SubscriptionStatus> registrations,
+                               Runnable onComplete);
+
+    /**
+     * Transfer several subscriptions to this account in one request and post the results to
+     * {@link #getSubscriptions}.
+     *
+     * @param transfers subscriptions with only the SKU and purchase token set
+     */
+    void transferSubscriptions(String userId, List<SubscriptionStatus> transfers,
+                               Runnable onComplete);
 
     /**
      * Register Instance ID when the user signs in or the token is refreshed.
      */
-    void registerInstanceId(String instanceId);
+    void registerInstanceId(String instanceId, Runnable onComplete);
 
     /**
      * Unregister when the user signs out.
      */
-    void unregisterInstanceId(String instanceId);
+    void unregisterInstanceId(String instanceId, Runnable onComplete);
 }
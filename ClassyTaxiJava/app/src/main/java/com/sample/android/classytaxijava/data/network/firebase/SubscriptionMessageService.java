@@ -18,6 +18,8 @@ package com.sample.android.classytaxijava.data.network.firebase;
 
 import android.util.Log;
 
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 import com.google.gson.Gson;
@@ -53,10 +55,14 @@ public class SubscriptionMessageService extends FirebaseMessagingService {
         }
 
         SubscriptionStatusList result = gson.fromJson(data.get(REMOTE_MESSAGE_SUBSCRIPTIONS_KEY), SubscriptionStatusList.class);
+        // Messages are sent to the Instance ID of the signed-in user.
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
         if (result == null) {
             Log.e(TAG, "Received null subscription data");
+        } else if (user == null) {
+            Log.i(TAG, "Received subscription data while signed out");
         } else {
-            ((SubApp) getApplication()).getRepository().updateSubscriptionsFromNetwork(result.getSubscriptions());
+            ((SubApp) getApplication()).getRepository().updateSubscriptionsFromNetwork(user.getUid(), result.getSubscriptions());
         }
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import android.os.SystemClock;
+
+import com.sample.android.classytaxijava.data.ContentResource;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Cache of the last content returned by each content endpoint.
+ * <p>
+ * Each entry keeps the {@link ContentResource} with the ETag and Last-Modified headers it was
+ * served with, so the next request can be made conditional. An entry that was fetched or
+ * revalidated within the freshness window is served without making a request at all. Requests
+ * that are already in flight are not repeated, so a burst of updates makes a single request.
+ * <p>
+ * Content belongs to the signed-in user, so the cache is cleared when the user changes. Each
+ * request carries the generation of the cache it was started in, and the response to a request
+ * started before the last {@link #clear()} is ignored.
+ */
+public class ContentCache {
+
+    /**
+     * How long content is served from the cache without asking the server.
+     */
+    public static final long DEFAULT_FRESHNESS_WINDOW_MILLIS = 60_000L;
+
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    /**
+     * Returned by {@link #startRequest(String)} when a request is already in flight.
+     */
+    public static final int NO_REQUEST = -1;
+
+    /**
+     * Source of the time content was validated at, in the time base of
+     * {@link SystemClock#elapsedRealtime()}.
+     */
+    public interface Clock {
+        long elapsedRealtime();
+    }
+
+    /**
+     * Cached content for one endpoint.
+     */
+    public static class Entry {
+        public final ContentResource content;
+        @Nullable
+        public final String etag;
+        @Nullable
+        public final String lastModified;
+        private long validatedAtMillis;
+
+        Entry(ContentResource content, @Nullable String etag, @Nullable String lastModified,
+              long validatedAtMillis) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.validatedAtMillis = validatedAtMillis;
+        }
+    }
+
+    private final Clock clock;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private long freshnessWindowMillis = DEFAULT_FRESHNESS_WINDOW_MILLIS;
+    private int generation = 0;
+
+    public ContentCache() {
+        this(new Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+        });
+    }
+
+    ContentCache(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Set how long content is served without a request. Zero makes every fetch a conditional
+     * request.
+     */
+    public synchronized void setFreshnessWindow(long millis) {
+        freshnessWindowMillis = Math.max(0L, millis);
+    }
+
+    /**
+     * Return the content for the endpoint if it is still within the freshness window.
+     */
+    @Nullable
+    public synchronized ContentResource getFresh(String endpoint) {
+        Entry entry = entries.get(endpoint);
+        if (entry == null) {
+            return null;
+        }
+        long age = clock.elapsedRealtime() - entry.validatedAtMillis;
+        return age < freshnessWindowMillis ? entry.content : null;
+    }
+
+    /**
+     * Return the cached entry for the endpoint, fresh or not, to build a conditional request.
+     */
+    @Nullable
+    public synchronized Entry get(String endpoint) {
+        return entries.get(endpoint);
+    }
+
+    /**
+     * Mark a request to the endpoint as started.
+     *
+     * @return the generation to pass back with the response, or {@link #NO_REQUEST} if a request
+     * to the endpoint is already in flight
+     */
+    public synchronized int startRequest(String endpoint) {
+        return inFlight.add(endpoint) ? generation : NO_REQUEST;
+    }
+
+    /**
+     * Return true if the cache has not been cleared since the request was started.
+     */
+    public synchronized boolean isCurrent(int requestGeneration) {
+        return requestGeneration == generation;
+    }
+
+    /**
+     * Store new content returned by the server and end the request.
+     *
+     * @return false if the request is stale and the content was not stored
+     */
+    public synchronized boolean put(int requestGeneration, String endpoint,
+                                    ContentResource content, @Nullable String etag,
+                                    @Nullable String lastModified) {
+        if (requestGeneration != generation) {
+            return false;
+        }
+        entries.put(endpoint,
+                new Entry(content, etag, lastModified, clock.elapsedRealtime()));
+        inFlight.remove(endpoint);
+        return true;
+    }
+
+    /**
+     * The server confirmed that the cached content has not been modified. Restart its freshness
+     * window and end the request.
+     *
+     * @return the cached content, or null if there is none or the request is stale
+     */
+    @Nullable
+    public synchronized ContentResource revalidate(int requestGeneration, String endpoint) {
+        if (requestGeneration != generation) {
+            return null;
+        }
+        inFlight.remove(endpoint);
+        Entry entry = entries.get(endpoint);
+        if (entry == null) {
+            return null;
+        }
+        entry.validatedAtMillis = clock.elapsedRealtime();
+        return entry.content;
+    }
+
+    /**
+     * The request failed. Drop the cached content, the user may no longer be entitled to it.
+     */
+    public synchronized void fail(int requestGeneration, String endpoint) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        inFlight.remove(endpoint);
+        entries.remove(endpoint);
+    }
+
+    /**
+     * Drop all content and forget the requests in flight, e.g. when the user changes. Responses
+     * to those requests are ignored.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        inFlight.clear();
+        generation++;
+    }
+
+}
@@ -42,6 +42,8 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
 
     private final String methodName;
     private final PendingRequestCounter pendingRequestCounter;
+    @Nullable
+    private final Runnable onComplete;
 
     /**
      * @param methodName for logging success/error
@@ -49,8 +51,19 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
      *
      */
     public RetrofitResponseHandlerCallback(String methodName, PendingRequestCounter pendingRequestCounter) {
+        this(methodName, pendingRequestCounter, null);
+    }
+
+    /**
+     * @param methodName for logging success/error
+     * @param pendingRequestCounter pendingRequestCounter for tracking the number of pending network calls
+     * @param onComplete run after the response or the failure has been handled
+     */
+    public RetrofitResponseHandlerCallback(String methodName, PendingRequestCounter pendingRequestCounter,
+                                           @Nullable Runnable onComplete) {
         this.methodName = methodName;
         this.pendingRequestCounter = pendingRequestCounter;
+        this.onComplete = onComplete;
     }
 
     /**
@@ -62,9 +75,17 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
     @Override
     public final void onResponse(@NonNull Call<T> call, @NonNull Response<T> response) {
         pendingRequestCounter.decrementRequestCount();
+        try {
+            handleResponse(response);
+        } finally {
+            complete();
+        }
+    }
+
+    private void handleResponse(Response<T> response) {
         if (response.isSuccessful()) {
             Log.i(TAG, methodName + " returned successfully");
-            onSuccess(response.body());
+            onSuccessfulResponse(response);
             return;
         }
         // Non 2xx response, get the details and call onError
@@ -91,7 +112,17 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
     @Override
     public final void onFailure(@NonNull Call<T> call, @NonNull Throwable t) {
         pendingRequestCounter.decrementRequestCount();
-        onError(NO_HTTP_CODE, t.getMessage());
+        try {
+            onError(NO_HTTP_CODE, t.getMessage());
+        } finally {
+            complete();
+        }
+    }
+
+    private void complete() {
+        if (onComplete != null) {
+            onComplete.run();
+        }
     }
 
     /**
@@ -101,6 +132,18 @@ public abstract class RetrofitResponseHandlerCallback<T> implements Callback<T>
      */
     protected abstract void onSuccess(T response);
 
+    /**
+     * Called with the whole {@link Response} when a successful response returns from the server
+     * <p>
+     * The default implementation just calls {@link #onSuccess(Object)} with the body. Override
+     * to read the response headers.
+     *
+     * @param response Successful HTTPS call's {@link Response} object
+     */
+    protected void onSuccessfulResponse(Response<T> response) {
+        onSuccess(response.body());
+    }
+
     /**
      * Called when any error happens such as a connection failure or a 500 server response
      * <p>
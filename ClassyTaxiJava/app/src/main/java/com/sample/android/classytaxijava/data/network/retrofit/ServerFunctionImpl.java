@@ -20,6 +20,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchResponse;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 import com.sample.android.classytaxijava.data.network.firebase.ServerFunctions;
@@ -30,11 +31,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
+import retrofit2.Call;
+import retrofit2.Response;
 
 import static com.sample.android.classytaxijava.BuildConfig.SERVER_URL;
 
@@ -46,12 +50,16 @@ public class ServerFunctionImpl implements ServerFunctions {
 
     private static final String TAG = "RemoteServerFunction";
     private static volatile ServerFunctions INSTANCE = null;
-    private final MutableLiveData<List<SubscriptionStatus>> subscriptions = new MutableLiveData<>();
+    private final MutableLiveData<SubscriptionStatusList> subscriptions = new MutableLiveData<>();
     private final MutableLiveData<ContentResource> basicContent = new MutableLiveData<>();
     private final MutableLiveData<ContentResource> premiumContent = new MutableLiveData<>();
     private MutableLiveData<Boolean> loading = new MutableLiveData<>();
     private final RetrofitClient<SubscriptionStatusApiCall> retrofitClient = new RetrofitClient<>(SERVER_URL, SubscriptionStatusApiCall.class);
     private final PendingRequestCounter pendingRequestCounter = new PendingRequestCounter();
+    private final ContentCache contentCache = new ContentCache();
+    // Set once the server has answered a batch request with HTTP 404 NOT FOUND. The batch
+    // endpoints are not deployed, so later batches are sent one by one right away.
+    private volatile boolean batchEndpointsMissing = false;
 
     private ServerFunctionImpl() {
     }
@@ -80,10 +88,11 @@ public class ServerFunctionImpl implements ServerFunctions {
      * The latest subscription data from the Firebase server.
      * <p>
      * Use this class by observing the subscriptions LiveData.
-     * Any server updates will be communicated through this LiveData.
+     * Any server updates will be communicated through this LiveData, together with the uid
+     * they were requested for.
      */
     @Override
-    public LiveData<List<SubscriptionStatus>> getSubscriptions() {
+    public LiveData<SubscriptionStatusList> getSubscriptions() {
         return subscriptions;
     }
 
@@ -104,19 +113,28 @@ public class ServerFunctionImpl implements ServerFunctions {
     }
 
 
+    /**
+     * Set how long content is served from the cache before the server is asked again.
+     */
+    public void setContentFreshnessWindow(long millis) {
+        contentCache.setFreshnessWindow(millis);
+    }
+
+    /**
+     * Drops cached content and ignores the content requests in flight.
+     */
+    @Override
+    public void clearContent() {
+        contentCache.clear();
+    }
+
     /**
      * Fetches basic content and posts results to {@link #basicContent}.
      * This will fail if the user does not have a basic subscription.
      */
     @Override
     public void updateBasicContent() {
-        final String method = "updateBasicContent";
-        pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().fetchBasicContent().enqueue(new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
-            protected void onSuccess(ContentResource response) {
-                basicContent.postValue(response);
-            }
-        });
+        fetchContent("updateBasicContent", SubscriptionStatusApiCall.BASIC_CONTENT, basicContent);
     }
 
     /**
@@ -124,12 +142,73 @@ public class ServerFunctionImpl implements ServerFunctions {
      * This will fail if the user does not have a premium subscription.
      */
     public void updatePremiumContent() {
-        final String method = "updatePremiumContent";
+        fetchContent("updatePremiumContent", SubscriptionStatusApiCall.PREMIUM_CONTENT,
+                premiumContent);
+    }
+
+    /**
+     * Fetches content through {@link #contentCache} and posts results to the LiveData.
+     * <p>
+     * Fresh content is posted without a request. Otherwise the request is conditional on the
+     * cached ETag and Last-Modified, and a 304 response posts the cached content again. Nothing
+     * is posted for a request that was started before the cache was last cleared.
+     */
+    private void fetchContent(final String method, final String endpoint,
+                              final MutableLiveData<ContentResource> content) {
+        ContentResource freshContent = contentCache.getFresh(endpoint);
+        if (freshContent != null) {
+            Log.d(TAG, method + " served from cache");
+            content.postValue(freshContent);
+            return;
+        }
+        final int generation = contentCache.startRequest(endpoint);
+        if (generation == ContentCache.NO_REQUEST) {
+            Log.d(TAG, method + " already in flight");
+            return;
+        }
+        ContentCache.Entry cached = contentCache.get(endpoint);
+        String etag = cached == null ? null : cached.etag;
+        String lastModified = cached == null ? null : cached.lastModified;
+        SubscriptionStatusApiCall service = retrofitClient.getService();
+        Call<ContentResource> call = SubscriptionStatusApiCall.BASIC_CONTENT.equals(endpoint)
+                ? service.fetchBasicContent(etag, lastModified)
+                : service.fetchPremiumContent(etag, lastModified);
         pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().fetchPremiumContent().enqueue(new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
+        call.enqueue(new RetrofitResponseHandlerCallback<ContentResource>(method, pendingRequestCounter) {
+            @Override
+            protected void onSuccessfulResponse(Response<ContentResource> response) {
+                if (response.body() == null) {
+                    contentCache.fail(generation, endpoint);
+                } else if (!contentCache.put(generation, endpoint, response.body(),
+                        response.headers().get(ContentCache.HEADER_ETAG),
+                        response.headers().get(ContentCache.HEADER_LAST_MODIFIED))) {
+                    Log.d(TAG, method + " ignored, the content cache was cleared");
+                    return;
+                }
+                super.onSuccessfulResponse(response);
+            }
+
             @Override
             protected void onSuccess(ContentResource response) {
-                premiumContent.postValue(response);
+                content.postValue(response);
+            }
+
+            @Override
+            protected void onError(int errorCode, @Nullable String errorMessage) {
+                if (!contentCache.isCurrent(generation)) {
+                    Log.d(TAG, method + " ignored, the content cache was cleared");
+                    return;
+                }
+                if (errorCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    ContentResource cachedContent = contentCache.revalidate(generation, endpoint);
+                    if (cachedContent != null) {
+                        Log.d(TAG, method + " not modified");
+                        content.postValue(cachedContent);
+                        return;
+                    }
+                }
+                contentCache.fail(generation, endpoint);
+                super.onError(errorCode, errorMessage);
             }
         });
     }
@@ -137,13 +216,13 @@ public class ServerFunctionImpl implements ServerFunctions {
     /**
      * Fetches the Subscription Status from the server.
      */
-    public void updateSubscriptionStatus() {
+    public void updateSubscriptionStatus(final String userId, Runnable onComplete) {
         final String method = "updateSubscriptionStatus";
         pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().fetchSubscriptionStatus().enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
+        retrofitClient.getService().fetchSubscriptionStatus().enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter, onComplete) {
             @Override
             protected void onSuccess(SubscriptionStatusList response) {
-                onSuccessfulSubscriptionCall(response, subscriptions);
+                onSuccessfulSubscriptionCall(userId, response, subscriptions);
             }
         });
     }
@@ -152,19 +231,22 @@ public class ServerFunctionImpl implements ServerFunctions {
      * Registers a subscription with the server and posts successful results to
      * {@link #subscriptions}.
      *
+     * @param userId        Firebase uid of the user the subscription is registered for
      * @param sku           the ID of a specific product type
      * @param purchaseToken string that represents a buyer's entitlement to a product on Google Play
+     * @param onComplete    run once the server has responded or the call has failed
      */
-    public void registerSubscription(String sku, String purchaseToken) {
+    public void registerSubscription(final String userId, String sku, String purchaseToken,
+                                     Runnable onComplete) {
         final String method = "registerSubscription";
         SubscriptionStatus data = new SubscriptionStatus();
         data.setSku(sku);
         data.setPurchaseToken(purchaseToken);
         pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().registerSubscription(data).enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
+        retrofitClient.getService().registerSubscription(data).enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter, onComplete) {
             @Override
             protected void onSuccess(SubscriptionStatusList response) {
-                onSuccessfulSubscriptionCall(response, subscriptions);
+                onSuccessfulSubscriptionCall(userId, response, subscriptions);
             }
 
             @Override
@@ -172,14 +254,15 @@ public class ServerFunctionImpl implements ServerFunctions {
                 if (errorCode == HttpURLConnection.HTTP_CONFLICT) {
                     Log.w(TAG, "Subscription already exists");
                     List<SubscriptionStatus> oldSubscriptions =
-                            subscriptions.getValue();
+                            getLastSubscriptions(userId);
                     SubscriptionStatus newSubscription =
                             SubscriptionStatus
                                     .alreadyOwnedSubscription(sku, purchaseToken);
                     List<SubscriptionStatus> newSubscriptions =
                             insertOrUpdateSubscription(oldSubscriptions,
                                     newSubscription);
-                    subscriptions.postValue(newSubscriptions);
+                    subscriptions.postValue(
+                            new SubscriptionStatusList(userId, newSubscriptions));
                 }
                 super.logError(errorCode, errorMessage);
             }
@@ -189,36 +272,140 @@ public class ServerFunctionImpl implements ServerFunctions {
     /**
      * Transfers subscription to this account posts successful results to {@link #subscriptions}.
      *
+     * @param userId        Firebase uid of the user the subscription is transferred to
      * @param sku           the ID of a specific product type
      * @param purchaseToken string that represents a buyer's entitlement to a product on Google Play
+     * @param onComplete    run once the server has responded or the call has failed
      */
-    public void transferSubscription(String sku, String purchaseToken) {
+    public void transferSubscription(final String userId, String sku, String purchaseToken,
+                                     Runnable onComplete) {
         final String method = "transferSubscription";
         SubscriptionStatus data = new SubscriptionStatus();
         data.setSku(sku);
         data.setPurchaseToken(purchaseToken);
         pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().transferSubscription(data).enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter) {
+        retrofitClient.getService().transferSubscription(data).enqueue(new RetrofitResponseHandlerCallback<SubscriptionStatusList>(method, pendingRequestCounter, onComplete) {
             @Override
             protected void onSuccess(SubscriptionStatusList response) {
-                onSuccessfulSubscriptionCall(response, subscriptions);
+                onSuccessfulSubscriptionCall(userId, response, subscriptions);
+            }
+        });
+    }
+
+    /**
+     * Registers several subscriptions with the server in one request and posts successful results
+     * to {@link #subscriptions}.
+     * <p>
+     * Falls back to one request per subscription if the server doesn't have the batch endpoint.
+     * In that case onComplete runs once all of them have completed, and later batches skip the
+     * batch endpoint.
+     *
+     * @param registrations subscriptions with only the SKU and purchase token set
+     */
+    @Override
+    public void registerSubscriptions(final String userId,
+                                      final List<SubscriptionStatus> registrations,
+                                      Runnable onComplete) {
+        final String method = "registerSubscriptions";
+        final CompletionGroup completion = new CompletionGroup(onComplete);
+        if (batchEndpointsMissing) {
+            registerOneByOne(userId, registrations, completion);
+            completion.run();
+            return;
+        }
+        pendingRequestCounter.incrementRequestCount();
+        retrofitClient.getService().registerSubscriptions(toRequestList(registrations)).enqueue(new RetrofitResponseHandlerCallback<SubscriptionBatchResponse>(method, pendingRequestCounter, completion) {
+            @Override
+            protected void onSuccess(SubscriptionBatchResponse response) {
+                onSuccessfulBatchCall(userId, response);
+            }
+
+            @Override
+            protected void onError(int errorCode, @Nullable String errorMessage) {
+                if (errorCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                    Log.w(TAG, method + " not supported, registering one by one from now on");
+                    batchEndpointsMissing = true;
+                    registerOneByOne(userId, registrations, completion);
+                    return;
+                }
+                super.onError(errorCode, errorMessage);
+            }
+        });
+    }
+
+    private void registerOneByOne(String userId, List<SubscriptionStatus> registrations,
+                                  CompletionGroup completion) {
+        completion.join(registrations.size());
+        for (SubscriptionStatus registration : registrations) {
+            registerSubscription(userId, registration.getSku(), registration.getPurchaseToken(),
+                    completion);
+        }
+    }
+
+    /**
+     * Transfers several subscriptions to this account in one request and posts successful results
+     * to {@link #subscriptions}.
+     * <p>
+     * Falls back to one request per subscription if the server doesn't have the batch endpoint.
+     * In that case onComplete runs once all of them have completed, and later batches skip the
+     * batch endpoint.
+     *
+     * @param transfers subscriptions with only the SKU and purchase token set
+     */
+    @Override
+    public void transferSubscriptions(final String userId,
+                                      final List<SubscriptionStatus> transfers,
+                                      Runnable onComplete) {
+        final String method = "transferSubscriptions";
+        final CompletionGroup completion = new CompletionGroup(onComplete);
+        if (batchEndpointsMissing) {
+            transferOneByOne(userId, transfers, completion);
+            completion.run();
+            return;
+        }
+        pendingRequestCounter.incrementRequestCount();
+        retrofitClient.getService().transferSubscriptions(toRequestList(transfers)).enqueue(new RetrofitResponseHandlerCallback<SubscriptionBatchResponse>(method, pendingRequestCounter, completion) {
+            @Override
+            protected void onSuccess(SubscriptionBatchResponse response) {
+                onSuccessfulBatchCall(userId, response);
+            }
+
+            @Override
+            protected void onError(int errorCode, @Nullable String errorMessage) {
+                if (errorCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                    Log.w(TAG, method + " not supported, transferring one by one from now on");
+                    batchEndpointsMissing = true;
+                    transferOneByOne(userId, transfers, completion);
+                    return;
+                }
+                super.onError(errorCode, errorMessage);
             }
         });
     }
 
+    private void transferOneByOne(String userId, List<SubscriptionStatus> transfers,
+                                  CompletionGroup completion) {
+        completion.join(transfers.size());
+        for (SubscriptionStatus transfer : transfers) {
+            transferSubscription(userId, transfer.getSku(), transfer.getPurchaseToken(),
+                    completion);
+        }
+    }
+
     /**
      * Registers Instance ID for Firebase Cloud Messaging.
      *
      * @param instanceId an FCM registration/instance token returned by
      *                   {@link com.sample.android.classytaxijava.FcmRegistrationTokenService}
+     * @param onComplete run once the server has responded or the call has failed
      */
     @Override
-    public void registerInstanceId(String instanceId) {
+    public void registerInstanceId(String instanceId, Runnable onComplete) {
         final String method = "registerInstanceId";
         Map<String, String> data = new HashMap<>();
         data.put("instanceId", instanceId);
         pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().registerInstanceID(data).enqueue(new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter) {
+        retrofitClient.getService().registerInstanceID(data).enqueue(new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter, onComplete) {
             @Override
             protected void onSuccess(String response) {
                 // A production app may want to track whether registration has been successful to allow for retrying.
@@ -231,14 +418,15 @@ public class ServerFunctionImpl implements ServerFunctions {
      *
      * @param instanceId an FCM registration/instance token returned by
      *                   {@link com.sample.android.classytaxijava.FcmRegistrationTokenService}
+     * @param onComplete run once the server has responded or the call has failed
      */
     @Override
-    public void unregisterInstanceId(String instanceId) {
+    public void unregisterInstanceId(String instanceId, Runnable onComplete) {
         final String method = "unregisterInstanceId";
         Map<String, String> data = new HashMap<>();
         data.put("instanceId", instanceId);
         pendingRequestCounter.incrementRequestCount();
-        retrofitClient.getService().unregisterInstanceID(data).enqueue(new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter) {
+        retrofitClient.getService().unregisterInstanceID(data).enqueue(new RetrofitResponseHandlerCallback<String>(method, pendingRequestCounter, onComplete) {
             @Override
             protected void onSuccess(String response) {
                 // A production app may want to track whether un-registration has been successful to allow for retrying.
@@ -248,6 +436,43 @@ public class ServerFunctionImpl implements ServerFunctions {
 
     // Helper functions
 
+    /**
+     * Runs a callback once every request in the group has completed. The group starts with one
+     * request; more join before they are sent.
+     */
+    private static class CompletionGroup implements Runnable {
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final Runnable onComplete;
+
+        CompletionGroup(Runnable onComplete) {
+            this.onComplete = onComplete;
+        }
+
+        void join(int requests) {
+            pending.addAndGet(requests);
+        }
+
+        @Override
+        public void run() {
+            if (pending.decrementAndGet() == 0) {
+                onComplete.run();
+            }
+        }
+    }
+
+    /**
+     * The subscriptions last posted for the user, or null if they were posted for someone else.
+     */
+    @Nullable
+    private List<SubscriptionStatus> getLastSubscriptions(String userId) {
+        SubscriptionStatusList lastSubscriptions = subscriptions.getValue();
+        if (lastSubscriptions == null
+                || !TextUtils.equals(lastSubscriptions.getUserId(), userId)) {
+            return null;
+        }
+        return lastSubscriptions.getSubscriptions();
+    }
+
     /**
      * Inserts or updates the subscription to the list of existing subscriptions.
      * <p>
@@ -281,20 +506,64 @@ public class ServerFunctionImpl implements ServerFunctions {
         return subscriptionStatuses;
     }
 
+    /**
+     * Copies only the SKU and purchase token, which is all the server needs to know.
+     */
+    private static SubscriptionStatusList toRequestList(List<SubscriptionStatus> statuses) {
+        List<SubscriptionStatus> requests = new ArrayList<>(statuses.size());
+        for (SubscriptionStatus status : statuses) {
+            SubscriptionStatus data = new SubscriptionStatus();
+            data.setSku(status.getSku());
+            data.setPurchaseToken(status.getPurchaseToken());
+            requests.add(data);
+        }
+        SubscriptionStatusList requestList = new SubscriptionStatusList();
+        requestList.setSubscriptions(requests);
+        return requestList;
+    }
+
+    /**
+     * Called when a successful response returns from the server for a batch register or
+     * transfer call.
+     * <p>
+     * Subscriptions owned by a different user are added as already owned, the same way a single
+     * registration handles HTTP 409 CONFLICT, and everything is posted once.
+     */
+    private void onSuccessfulBatchCall(String userId, SubscriptionBatchResponse response) {
+        List<SubscriptionStatus> newSubscriptions = response.getSubscriptions();
+        List<SubscriptionStatus> alreadyOwned = response.getAlreadyOwned();
+        if (alreadyOwned != null) {
+            for (SubscriptionStatus owned : alreadyOwned) {
+                Log.w(TAG, "Subscription already exists");
+                newSubscriptions = insertOrUpdateSubscription(newSubscriptions,
+                        SubscriptionStatus.alreadyOwnedSubscription(
+                                owned.getSku(), owned.getPurchaseToken()));
+            }
+        }
+        if (newSubscriptions == null || newSubscriptions.isEmpty()) {
+            Log.w(TAG, "Invalid subscription data");
+            return;
+        }
+        Log.i(TAG, "Valid subscription data");
+        subscriptions.postValue(new SubscriptionStatusList(userId, newSubscriptions));
+    }
+
     /**
      * Called when a successful response returns from the server
      * for a {@link SubscriptionStatus} HTTPS call
      *
+     * @param userId Firebase uid of the user the call was made for
      * @param subscriptionStatusList  Successful {@link SubscriptionStatusList} response object
      * @param subscriptions LiveData subscription list
      */
-    protected void onSuccessfulSubscriptionCall(SubscriptionStatusList subscriptionStatusList, @Nullable MutableLiveData<List<SubscriptionStatus>> subscriptions) {
+    protected void onSuccessfulSubscriptionCall(String userId, SubscriptionStatusList subscriptionStatusList, @Nullable MutableLiveData<SubscriptionStatusList> subscriptions) {
         if (subscriptionStatusList.getSubscriptions() == null || subscriptionStatusList.getSubscriptions().isEmpty()) {
             Log.w(TAG, "Invalid subscription data");
             return;
         }
         Log.i(TAG, "Valid subscription data");
-        subscriptions.postValue(subscriptionStatusList.getSubscriptions());
+        subscriptionStatusList.setUserId(userId);
+        subscriptions.postValue(subscriptionStatusList);
     }
 }
 
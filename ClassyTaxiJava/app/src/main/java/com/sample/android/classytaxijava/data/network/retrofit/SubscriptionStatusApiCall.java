@@ -17,6 +17,7 @@
 package com.sample.android.classytaxijava.data.network.retrofit;
 
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionBatchResponse;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 import com.sample.android.classytaxijava.data.SubscriptionStatusList;
 
@@ -25,6 +26,7 @@ import java.util.Map;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.PUT;
 
 /**
@@ -36,16 +38,21 @@ public interface SubscriptionStatusApiCall {
     public static final String SUBSCRIPTION_STATUS = "subscription_status";
     public static final String REGISTER_SUBSCRIPTION = "subscription_register";
     public static final String TRANSFER_SUBSCRIPTION = "subscription_transfer";
+    public static final String REGISTER_SUBSCRIPTIONS = "subscription_register_batch";
+    public static final String TRANSFER_SUBSCRIPTIONS = "subscription_transfer_batch";
     public static final String REGISTER_INSTANCE_ID = "instanceId_register";
     public static final String UNREGISTER_INSTANCE_ID = "instanceId_unregister";
 
     // Fetch Basic content.
+    // The conditional headers are left out when null.
     @GET(BASIC_CONTENT)
-    Call<ContentResource> fetchBasicContent();
+    Call<ContentResource> fetchBasicContent(@Header("If-None-Match") String etag,
+                                            @Header("If-Modified-Since") String lastModified);
 
     // Fetch Premium content.
     @GET(PREMIUM_CONTENT)
-    Call<ContentResource> fetchPremiumContent();
+    Call<ContentResource> fetchPremiumContent(@Header("If-None-Match") String etag,
+                                              @Header("If-Modified-Since") String lastModified);
 
     // Fetch Subscription Status.
     @GET(SUBSCRIPTION_STATUS)
@@ -66,4 +73,14 @@ public interface SubscriptionStatusApiCall {
     // Transfers subscription status to another account.
     @PUT(TRANSFER_SUBSCRIPTION)
     Call<SubscriptionStatusList> transferSubscription(@Body SubscriptionStatus transferStatus);
+
+    // Registers several subscriptions to the server in one request.
+    @PUT(REGISTER_SUBSCRIPTIONS)
+    Call<SubscriptionBatchResponse> registerSubscriptions(
+            @Body SubscriptionStatusList registerStatuses);
+
+    // Transfers several subscriptions to this account in one request.
+    @PUT(TRANSFER_SUBSCRIPTIONS)
+    Call<SubscriptionBatchResponse> transferSubscriptions(
+            @Body SubscriptionStatusList transferStatuses);
 }
\ No newline at end of file
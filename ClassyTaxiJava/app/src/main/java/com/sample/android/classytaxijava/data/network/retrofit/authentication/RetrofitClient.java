@@ -16,45 +16,15 @@
 
 package com.sample.android.classytaxijava.data.network.retrofit.authentication;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.sample.android.classytaxijava.data.network.retrofit.ServerFunctionImpl;
-
-import java.util.concurrent.TimeUnit;
-
-import okhttp3.OkHttpClient;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
-import retrofit2.converter.scalars.ScalarsConverterFactory;
-
 /**
- * Creates Retrofit instances that
- * {@link ServerFunctionImpl}
- * uses to make authenticated HTTPS requests.
- *
- * @param <S>
+ * Creates a service on the process-wide {@link SharedHttpClient}, so every service shares the
+ * same connections.
  */
 public class RetrofitClient<S> {
     private final S service;
-    private static final int NETWORK_TIMEOUT_SECONDS = 60;
 
     public RetrofitClient(String baseUrl, Class<S> serviceClass) {
-        final OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                .connectTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .readTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .writeTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .addInterceptor(new UserIdTokenInterceptor())
-                .build();
-
-        final Gson gson = new GsonBuilder().create();
-
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(baseUrl)
-                .client(okHttpClient)
-                .addConverterFactory(ScalarsConverterFactory.create())
-                .addConverterFactory(GsonConverterFactory.create(gson))
-                .build();
-        service = retrofit.create(serviceClass);
+        service = SharedHttpClient.getInstance().getRetrofit(baseUrl).create(serviceClass);
     }
 
     public S getService() {
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit.authentication;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.converter.scalars.ScalarsConverterFactory;
+
+/**
+ * The process-wide HTTP client, Gson and Retrofit instances.
+ * <p>
+ * Every {@link RetrofitClient} shares one connection pool and dispatcher, so a connection opened
+ * by one service is reused by the others. The app talks to a single server, so the pool keeps a
+ * few idle connections alive for longer than the OkHttp default and the dispatcher allows more
+ * concurrent requests to that host.
+ * <p>
+ * {@link #prewarm(String)} opens a connection to the server in the background, so the DNS, TCP
+ * and TLS setup is not paid by the first request the user waits for. Connection reuse and
+ * handshake times are counted by an {@link EventListener} and exposed with {@link #getMetrics()}.
+ */
+public class SharedHttpClient {
+    private static final String TAG = "SharedHttpClient";
+
+    private static final int NETWORK_TIMEOUT_SECONDS = 60;
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 8;
+
+    /**
+     * Counts of connections acquired by calls, and of the connections that had to be opened.
+     */
+    public static class Metrics {
+        public final long connectionsAcquired;
+        public final long connectionsReused;
+        public final long connects;
+        public final long totalConnectNanos;
+        public final long handshakes;
+        public final long totalHandshakeNanos;
+        public final long maxHandshakeNanos;
+
+        Metrics(long connectionsAcquired, long connectionsReused, long connects,
+                long totalConnectNanos, long handshakes, long totalHandshakeNanos,
+                long maxHandshakeNanos) {
+            this.connectionsAcquired = connectionsAcquired;
+            this.connectionsReused = connectionsReused;
+            this.connects = connects;
+            this.totalConnectNanos = totalConnectNanos;
+            this.handshakes = handshakes;
+            this.totalHandshakeNanos = totalHandshakeNanos;
+            this.maxHandshakeNanos = maxHandshakeNanos;
+        }
+
+        /**
+         * Fraction of acquired connections that were already open, from 0 to 1.
+         */
+        public double getReuseRate() {
+            return connectionsAcquired == 0 ? 0 : (double) connectionsReused / connectionsAcquired;
+        }
+
+        /**
+         * Average time to open a connection, including TCP and TLS.
+         */
+        public double getAverageConnectMillis() {
+            return connects == 0 ? 0 : totalConnectNanos / 1_000_000.0 / connects;
+        }
+
+        /**
+         * Average time of the TLS handshake alone.
+         */
+        public double getAverageHandshakeMillis() {
+            return handshakes == 0 ? 0 : totalHandshakeNanos / 1_000_000.0 / handshakes;
+        }
+
+        @Override
+        public String toString() {
+            return "HttpMetrics{" +
+                    "acquired=" + connectionsAcquired +
+                    ", reused=" + connectionsReused +
+                    ", reuseRate=" + getReuseRate() +
+                    ", connects=" + connects +
+                    ", averageConnectMillis=" + getAverageConnectMillis() +
+                    ", handshakes=" + handshakes +
+                    ", averageHandshakeMillis=" + getAverageHandshakeMillis() +
+                    ", maxHandshakeMillis=" + maxHandshakeNanos / 1_000_000.0 +
+                    '}';
+        }
+    }
+
+    private static volatile SharedHttpClient INSTANCE = null;
+
+    private final OkHttpClient baseClient;
+    private final OkHttpClient authenticatedClient;
+    private final Gson gson = new GsonBuilder().create();
+    private final Map<String, Retrofit> retrofits = new HashMap<>();
+
+    private long connectionsAcquired = 0;
+    private long connectionsReused = 0;
+    private long connects = 0;
+    private long totalConnectNanos = 0;
+    private long handshakes = 0;
+    private long totalHandshakeNanos = 0;
+    private long maxHandshakeNanos = 0;
+
+    public static SharedHttpClient getInstance() {
+        if (INSTANCE == null) {
+            synchronized (SharedHttpClient.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new SharedHttpClient();
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private SharedHttpClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        baseClient = new OkHttpClient.Builder()
+                .connectTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(NETWORK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(
+                        MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .eventListenerFactory(new EventListener.Factory() {
+                    @Override
+                    public EventListener create(@NonNull Call call) {
+                        return new MetricsListener();
+                    }
+                })
+                .build();
+        // Shares the connection pool and dispatcher of the base client.
+        authenticatedClient = baseClient.newBuilder()
+                .addInterceptor(new UserIdTokenInterceptor())
+                .build();
+    }
+
+    /**
+     * The client used by services, which adds the user's ID token to every request.
+     */
+    public OkHttpClient getOkHttpClient() {
+        return authenticatedClient;
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    /**
+     * The Retrofit instance for the base URL, created the first time it is asked for.
+     */
+    public synchronized Retrofit getRetrofit(String baseUrl) {
+        Retrofit retrofit = retrofits.get(baseUrl);
+        if (retrofit == null) {
+            retrofit = new Retrofit.Builder()
+                    .baseUrl(baseUrl)
+                    .client(authenticatedClient)
+                    .addConverterFactory(ScalarsConverterFactory.create())
+                    .addConverterFactory(GsonConverterFactory.create(gson))
+                    .build();
+            retrofits.put(baseUrl, retrofit);
+        }
+        return retrofit;
+    }
+
+    /**
+     * Opens a connection to the server in the background and leaves it in the pool.
+     * <p>
+     * The request is a HEAD request without the ID token, since the user may not be signed in
+     * yet. Only the connection matters, so the response is ignored.
+     */
+    public void prewarm(String baseUrl) {
+        Request request = new Request.Builder()
+                .url(baseUrl)
+                .head()
+                .build();
+        baseClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Log.w(TAG, "Prewarm failed: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                Log.d(TAG, "Prewarm connection ready");
+                response.close();
+            }
+        });
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(connectionsAcquired, connectionsReused, connects, totalConnectNanos,
+                handshakes, totalHandshakeNanos, maxHandshakeNanos);
+    }
+
+    private synchronized void recordConnectionAcquired(boolean reused) {
+        connectionsAcquired++;
+        if (reused) {
+            connectionsReused++;
+        }
+    }
+
+    private synchronized void recordConnect(long nanos) {
+        connects++;
+        totalConnectNanos += nanos;
+    }
+
+    private synchronized void recordHandshake(long nanos) {
+        handshakes++;
+        totalHandshakeNanos += nanos;
+        maxHandshakeNanos = Math.max(maxHandshakeNanos, nanos);
+    }
+
+    /**
+     * Created for each call. A connection acquired without connecting first was reused.
+     */
+    private class MetricsListener extends EventListener {
+        private long connectStartNanos;
+        private long secureConnectStartNanos;
+        private boolean connected = false;
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                                 @NonNull Proxy proxy) {
+            connected = true;
+            connectStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            secureConnectStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+            recordHandshake(System.nanoTime() - secureConnectStartNanos);
+        }
+
+        @Override
+        public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                               @NonNull Proxy proxy, @Nullable Protocol protocol) {
+            recordConnect(System.nanoTime() - connectStartNanos);
+        }
+
+        @Override
+        public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+            recordConnectionAcquired(!connected);
+            connected = false;
+        }
+    }
+}
@@ -140,6 +140,9 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onChanged(@Nullable final FirebaseUser firebaseUser) {
                 invalidateOptionsMenu();
+                // Show the local data of the signed-in user.
+                subscriptionViewModel.switchUser(
+                        firebaseUser == null ? null : firebaseUser.getUid());
                 if (firebaseUser == null) {
                     triggerSignIn();
                 } else {
@@ -175,6 +178,14 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            ((SubApp) getApplication()).logNetworkStats();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu, menu);
@@ -16,7 +16,6 @@
 
 package com.sample.android.classytaxijava.ui;
 
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -24,10 +23,10 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
-import com.sample.android.classytaxijava.Constants;
 import com.sample.android.classytaxijava.R;
 import com.sample.android.classytaxijava.billing.BillingUtilities;
 import com.sample.android.classytaxijava.data.ContentResource;
+import com.sample.android.classytaxijava.data.SubscriptionEntitlement;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 import com.sample.android.classytaxijava.utils.SubscriptionUtilities;
 
@@ -110,7 +109,7 @@ public class SubscriptionBindingAdapter {
      * See the layout XML files for the app:updateHomeViews attribute.
      */
     @BindingAdapter("updateHomeViews")
-    public static void updateHomeViews(View view, List<SubscriptionStatus> subscriptions) {
+    public static void updateHomeViews(View view, List<SubscriptionEntitlement> subscriptions) {
         TextView restoreMsg = view.findViewById(R.id.home_restore_message);
         View paywallMsg = view.findViewById(R.id.home_paywall_message);
         View gracePeriodMsg = view.findViewById(R.id.home_grace_period_message);
@@ -135,11 +134,11 @@ public class SubscriptionBindingAdapter {
         basicMsg.setVisibility(View.GONE);
         // Update based on subscription information.
         if (subscriptions != null) {
-            for (SubscriptionStatus subscription : subscriptions) {
+            for (SubscriptionEntitlement subscription : subscriptions) {
                 if (BillingUtilities.isSubscriptionRestore(subscription)) {
                     Log.d(TAG, "restore VISIBLE");
                     restoreMsg.setVisibility(View.VISIBLE);
-                    String expiryDate = getHumanReadableDate(subscription.getActiveUntilMillisec());
+                    String expiryDate = getHumanReadableDate(subscription.activeUntilMillisec);
                     restoreMsg.setText(view.getResources()
                             .getString(R.string.restore_message_with_date, expiryDate));
                     paywallMsg.setVisibility(View.GONE); // Paywall gone.
@@ -150,7 +149,7 @@ public class SubscriptionBindingAdapter {
                     paywallMsg.setVisibility(View.GONE); // Paywall gone.
                 }
                 if (BillingUtilities.isTransferRequired(subscription)
-                        && TextUtils.equals(subscription.getSku(), Constants.BASIC_SKU)) {
+                        && subscription.getSkuOrdinal() == SubscriptionStatus.SKU_BASIC) {
                     Log.d(TAG, "transfer VISIBLE");
                     transferMsg.setVisibility(View.VISIBLE);
                     paywallMsg.setVisibility(View.GONE); // Paywall gone.
@@ -162,7 +161,7 @@ public class SubscriptionBindingAdapter {
                 }
                 if (BillingUtilities.isPaused(subscription)) {
                     Log.d(TAG, "account paused VISIBLE");
-                    String autoResumeDate = getHumanReadableDate(subscription.getAutoResumeTimeMillis());
+                    String autoResumeDate = getHumanReadableDate(subscription.autoResumeTimeMillis);
                     String text = view.getResources()
                             .getString(R.string.account_paused_message_string, autoResumeDate);
                     accountPausedMsgTxt.setText(text);
@@ -186,7 +185,7 @@ public class SubscriptionBindingAdapter {
      * See the layout XML files for the app:updatePremiumViews attribute.
      */
     @BindingAdapter("updatePremiumViews")
-    public static void updatePremiumViews(View view, List<SubscriptionStatus> subscriptions) {
+    public static void updatePremiumViews(View view, List<SubscriptionEntitlement> subscriptions) {
         TextView restoreMsg = view.findViewById(R.id.premium_restore_message);
         View paywallMsg = view.findViewById(R.id.premium_paywall_message);
         View gracePeriodMsg = view.findViewById(R.id.premium_grace_period_message);
@@ -217,11 +216,11 @@ public class SubscriptionBindingAdapter {
         boolean hasPremium = false;
         // Update based on subscription information.
         if (subscriptions != null) {
-            for (SubscriptionStatus subscription : subscriptions) {
+            for (SubscriptionEntitlement subscription : subscriptions) {
                 if (BillingUtilities.isSubscriptionRestore(subscription)) {
                     Log.d(TAG, "restore VISIBLE");
                     restoreMsg.setVisibility(View.VISIBLE);
-                    String expiryDate = getHumanReadableDate(subscription.getActiveUntilMillisec());
+                    String expiryDate = getHumanReadableDate(subscription.activeUntilMillisec);
                     restoreMsg.setText(view.getResources()
                             .getString(R.string.restore_message_with_date, expiryDate));
                     paywallMsg.setVisibility(View.GONE); // Paywall gone.
@@ -232,7 +231,7 @@ public class SubscriptionBindingAdapter {
                     paywallMsg.setVisibility(View.GONE); // Paywall gone.
                 }
                 if (BillingUtilities.isTransferRequired(subscription)
-                        && TextUtils.equals(subscription.getSku(), Constants.PREMIUM_SKU)) {
+                        && subscription.getSkuOrdinal() == SubscriptionStatus.SKU_PREMIUM) {
                     Log.d(TAG, "transfer VISIBLE");
                     transferMsg.setVisibility(View.VISIBLE);
                     paywallMsg.setVisibility(View.GONE); // Paywall gone.
@@ -244,7 +243,7 @@ public class SubscriptionBindingAdapter {
                 }
                 if (BillingUtilities.isPaused(subscription)) {
                     Log.d(TAG, "account paused VISIBLE");
-                    String autoResumeDate = getHumanReadableDate(subscription.getAutoResumeTimeMillis());
+                    String autoResumeDate = getHumanReadableDate(subscription.autoResumeTimeMillis);
                     String text = view.getResources()
                             .getString(R.string.account_paused_message_string, autoResumeDate);
                     accountPausedMsgTxt.setText(text);
@@ -281,7 +280,7 @@ public class SubscriptionBindingAdapter {
      * See the layout XML files for the app:updateSettingsViews attribute.
      */
     @BindingAdapter("updateSettingsViews")
-    public static void updateSettingsViews(View view, List<SubscriptionStatus> subscriptions) {
+    public static void updateSettingsViews(View view, List<SubscriptionEntitlement> subscriptions) {
         TextView premiumBtn = view.findViewById(R.id.subscription_option_premium_button);
         TextView basicBtn = view.findViewById(R.id.subscription_option_basic_button);
         View transferMsg = view.findViewById(R.id.settings_transfer_message);
@@ -297,22 +296,22 @@ public class SubscriptionBindingAdapter {
         boolean basicRequiresTransfer = false;
         boolean premiumRequiresTransfer = false;
         if (subscriptions != null) {
-            for (SubscriptionStatus subscription : subscriptions) {
-                String sku = subscription.getSku();
-                if (sku != null) {
-                    if (Constants.BASIC_SKU.equals(sku)) {
+            for (SubscriptionEntitlement subscription : subscriptions) {
+                switch (subscription.getSkuOrdinal()) {
+                    case SubscriptionStatus.SKU_BASIC:
                         basicBtn.setText(SubscriptionUtilities
                                 .basicTextForSubscription(view.getResources(), subscription));
                         if (BillingUtilities.isTransferRequired(subscription)) {
                             basicRequiresTransfer = true;
                         }
-                    } else if (Constants.PREMIUM_SKU.equals(sku)) {
+                        break;
+                    case SubscriptionStatus.SKU_PREMIUM:
                         premiumBtn.setText(SubscriptionUtilities
                                 .premiumTextForSubscription(view.getResources(), subscription));
                         if (BillingUtilities.isTransferRequired(subscription)) {
                             premiumRequiresTransfer = true;
                         }
-                    }
+                        break;
                 }
             }
         }
@@ -19,14 +19,18 @@ package com.sample.android.classytaxijava.ui;
 import android.app.Application;
 import android.util.Log;
 
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.sample.android.classytaxijava.SubApp;
 import com.sample.android.classytaxijava.data.ContentResource;
 import com.sample.android.classytaxijava.data.DataRepository;
+import com.sample.android.classytaxijava.data.SubscriptionEntitlement;
 import com.sample.android.classytaxijava.data.SubscriptionStatus;
 
 import java.util.List;
 
+import androidx.annotation.Nullable;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 
@@ -49,6 +53,12 @@ public class SubscriptionStatusViewModel extends AndroidViewModel {
      */
     public LiveData<List<SubscriptionStatus>> subscriptions;
 
+    /**
+     * Entitlement columns of the subscriptions, for the views that only show what the user is
+     * entitled to.
+     */
+    public LiveData<List<SubscriptionEntitlement>> entitlements;
+
     public LiveData<ContentResource> basicContent;
 
     public LiveData<ContentResource> premiumContent;
@@ -64,6 +74,7 @@ public class SubscriptionStatusViewModel extends AndroidViewModel {
         repository = ((SubApp) application).getRepository();
         loading = repository.getLoading();
         subscriptions = repository.getSubscriptions();
+        entitlements = repository.getEntitlements();
         basicContent = repository.getBasicContent();
         premiumContent = repository.getPremiumContent();
     }
@@ -76,8 +87,22 @@ public class SubscriptionStatusViewModel extends AndroidViewModel {
         }
     }
 
+    /**
+     * Show the cached subscriptions of the user, and revalidate them with the server if the
+     * user changed.
+     *
+     * @param userId Firebase uid, or null when nobody is signed in
+     */
+    public void switchUser(@Nullable String userId) {
+        if (repository.switchUser(userId) && userId != null) {
+            repository.fetchSubscriptions();
+        }
+    }
+
     public void userChanged() {
-        repository.deleteLocalUserData();
+        // Show the cached subscriptions of the new user while they are fetched again.
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        repository.switchUser(user == null ? null : user.getUid());
         String token = FirebaseInstanceId.getInstance().getToken();
         if (token != null) {
             registerInstanceId(token);
@@ -20,7 +20,7 @@ import android.content.res.Resources;
 
 import com.sample.android.classytaxijava.R;
 import com.sample.android.classytaxijava.billing.BillingUtilities;
-import com.sample.android.classytaxijava.data.SubscriptionStatus;
+import com.sample.android.classytaxijava.data.SubscriptionEntitlement;
 
 public class SubscriptionUtilities {
 
@@ -29,9 +29,9 @@ public class SubscriptionUtilities {
      * <p>
      * Add an asterisk if the subscription is not local and might not be modifiable on this device.
      */
-    public static String basicTextForSubscription(Resources res, SubscriptionStatus subscription) {
+    public static String basicTextForSubscription(Resources res,
+                                                  SubscriptionEntitlement subscription) {
         String text;
-
         if (BillingUtilities.isAccountHold(subscription)) {
             text = res.getString(R.string.subscription_option_basic_message_account_hold);
         } else if (BillingUtilities.isPaused(subscription)) {
@@ -45,7 +45,7 @@ public class SubscriptionUtilities {
         } else {
             text = res.getString(R.string.subscription_option_basic_message);
         }
-        if (subscription.isLocalPurchase()) {
+        if (subscription.isLocalPurchase) {
             return text;
         } else {
             // No local record, so the subscription cannot be managed on this device.
@@ -59,7 +59,7 @@ public class SubscriptionUtilities {
      * Add an asterisk if the subscription is not local and might not be modifiable on this device.
      */
     public static String premiumTextForSubscription(Resources res,
-                                                    SubscriptionStatus subscription) {
+                                                    SubscriptionEntitlement subscription) {
         String text;
         if (BillingUtilities.isAccountHold(subscription)) {
             text = res.getString(R.string.subscription_option_premium_message_account_hold);
@@ -75,7 +75,7 @@ public class SubscriptionUtilities {
             text = res.getString(R.string.subscription_option_premium_message);
         }
 
-        if (subscription.isLocalPurchase()) {
+        if (subscription.isLocalPurchase) {
             return text;
         } else {
             // No local record, so the subscription cannot be managed on this device.
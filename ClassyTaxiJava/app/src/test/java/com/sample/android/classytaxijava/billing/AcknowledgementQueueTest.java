@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link AcknowledgementQueue} acknowledges each purchase token at most once and
+ * never has more than the allowed number of calls in flight.
+ */
+public class AcknowledgementQueueTest {
+
+    /**
+     * Holds on to each acknowledgement until the test completes it.
+     */
+    private static class FakeAcknowledger implements AcknowledgementQueue.Acknowledger {
+        final List<String> calls = new ArrayList<>();
+        final List<AcknowledgementQueue.ResultListener> listeners = new ArrayList<>();
+
+        @Override
+        public void acknowledge(String purchaseToken,
+                                AcknowledgementQueue.ResultListener listener) {
+            calls.add(purchaseToken);
+            listeners.add(listener);
+        }
+
+        void complete(int call, boolean success) {
+            listeners.get(call).onResult(calls.get(call), success);
+        }
+    }
+
+    @Test
+    public void skipsTokensThatArePendingOrAcknowledged() {
+        FakeAcknowledger acknowledger = new FakeAcknowledger();
+        AcknowledgementQueue queue = new AcknowledgementQueue(acknowledger, 2);
+        queue.acknowledge("a", false);
+        queue.acknowledge("a", false);
+        assertEquals(Arrays.asList("a"), acknowledger.calls);
+
+        acknowledger.complete(0, true);
+        queue.acknowledge("a", false);
+        queue.acknowledge("b", true);
+        queue.acknowledge(null, false);
+        assertEquals(Arrays.asList("a"), acknowledger.calls);
+
+        AcknowledgementQueue.Metrics metrics = queue.getMetrics();
+        assertEquals(4, metrics.requested);
+        assertEquals(1, metrics.skippedPending);
+        assertEquals(2, metrics.skippedAcknowledged);
+        assertEquals(3, metrics.getRedundant());
+        assertEquals(1, metrics.sent);
+        assertEquals(1, metrics.succeeded);
+    }
+
+    @Test
+    public void limitsTheCallsInFlight() {
+        FakeAcknowledger acknowledger = new FakeAcknowledger();
+        AcknowledgementQueue queue = new AcknowledgementQueue(acknowledger, 2);
+        queue.acknowledge("a", false);
+        queue.acknowledge("b", false);
+        queue.acknowledge("c", false);
+        assertEquals(Arrays.asList("a", "b"), acknowledger.calls);
+
+        acknowledger.complete(1, true);
+        assertEquals(Arrays.asList("a", "b", "c"), acknowledger.calls);
+        assertEquals(3, queue.getMetrics().sent);
+    }
+
+    @Test
+    public void acknowledgesAgainAfterAFailure() {
+        FakeAcknowledger acknowledger = new FakeAcknowledger();
+        AcknowledgementQueue queue = new AcknowledgementQueue(acknowledger, 1);
+        queue.acknowledge("a", false);
+        acknowledger.complete(0, false);
+        queue.acknowledge("a", false);
+        assertEquals(Arrays.asList("a", "a"), acknowledger.calls);
+
+        AcknowledgementQueue.Metrics metrics = queue.getMetrics();
+        assertEquals(1, metrics.failed);
+        assertEquals(0, metrics.getRedundant());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.billing;
+
+import com.sample.android.classytaxijava.Constants;
+import com.sample.android.classytaxijava.data.HasEntitlementFlags;
+import com.sample.android.classytaxijava.data.SubscriptionEntitlement;
+import com.sample.android.classytaxijava.data.SubscriptionStatus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the predicates in {@link BillingUtilities} give the same answer for a whole
+ * {@link SubscriptionStatus} and for the {@link SubscriptionEntitlement} projection of it.
+ */
+public class BillingUtilitiesTest {
+
+    private static SubscriptionStatus subscription(String sku, boolean active, boolean willRenew,
+                                                   boolean gracePeriod, boolean accountHold,
+                                                   boolean paused, boolean alreadyOwned) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setEntitlementActive(active);
+        subscription.setWillRenew(willRenew);
+        subscription.setGracePeriod(gracePeriod);
+        subscription.setAccountHold(accountHold);
+        subscription.setPaused(paused);
+        subscription.setSubAlreadyOwned(alreadyOwned);
+        return subscription;
+    }
+
+    private static SubscriptionEntitlement entitlement(SubscriptionStatus subscription) {
+        SubscriptionEntitlement entitlement = new SubscriptionEntitlement();
+        entitlement.sku = subscription.getSku();
+        entitlement.isEntitlementActive = subscription.isEntitlementActive();
+        entitlement.willRenew = subscription.isWillRenew();
+        entitlement.isGracePeriod = subscription.isGracePeriod();
+        entitlement.isAccountHold = subscription.isAccountHold();
+        entitlement.isPaused = subscription.isPaused();
+        entitlement.subAlreadyOwned = subscription.isSubAlreadyOwned();
+        return entitlement;
+    }
+
+    private static String predicates(HasEntitlementFlags subscription) {
+        return "gracePeriod=" + BillingUtilities.isGracePeriod(subscription)
+                + " restore=" + BillingUtilities.isSubscriptionRestore(subscription)
+                + " basic=" + BillingUtilities.isBasicContent(subscription)
+                + " premium=" + BillingUtilities.isPremiumContent(subscription)
+                + " accountHold=" + BillingUtilities.isAccountHold(subscription)
+                + " paused=" + BillingUtilities.isPaused(subscription)
+                + " transfer=" + BillingUtilities.isTransferRequired(subscription);
+    }
+
+    @Test
+    public void projectionMatchesTheWholeRow() {
+        String[] skus = {Constants.BASIC_SKU, Constants.PREMIUM_SKU, "unknown"};
+        for (String sku : skus) {
+            for (int bits = 0; bits < 1 << 6; bits++) {
+                SubscriptionStatus subscription = subscription(sku, (bits & 1) != 0,
+                        (bits & 2) != 0, (bits & 4) != 0, (bits & 8) != 0, (bits & 16) != 0,
+                        (bits & 32) != 0);
+                assertEquals(subscription.toString(), predicates(subscription),
+                        predicates(entitlement(subscription)));
+            }
+        }
+    }
+
+    @Test
+    public void predicatesFollowTheRemoteFields() {
+        SubscriptionStatus premium = subscription(Constants.PREMIUM_SKU, true, false, true,
+                false, false, false);
+        assertTrue(BillingUtilities.isPremiumContent(premium));
+        assertFalse(BillingUtilities.isBasicContent(premium));
+        assertTrue(BillingUtilities.isGracePeriod(premium));
+        assertTrue(BillingUtilities.isSubscriptionRestore(premium));
+
+        SubscriptionStatus onHold = subscription(Constants.BASIC_SKU, false, true, false,
+                true, false, false);
+        assertTrue(BillingUtilities.isAccountHold(onHold));
+        assertFalse(BillingUtilities.isBasicContent(onHold));
+
+        SubscriptionStatus owned = SubscriptionStatus.alreadyOwnedSubscription(
+                Constants.BASIC_SKU, "token");
+        assertTrue(BillingUtilities.isTransferRequired(owned));
+        assertFalse(BillingUtilities.isBasicContent(owned));
+        assertFalse(BillingUtilities.isPaused(null));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when {@link CoalescingSubscriptionWriter} writes, and that it writes the last list
+ * submitted for a user.
+ */
+public class CoalescingSubscriptionWriterTest {
+    private static final long WINDOW_MILLIS = 100L;
+    private static final long MAX_DELAY_MILLIS = 300L;
+
+    /**
+     * Records each write.
+     */
+    private static class FakeWriter implements CoalescingSubscriptionWriter.Writer {
+        final List<String> userIds = new ArrayList<>();
+        final List<List<SubscriptionStatus>> writes = new ArrayList<>();
+
+        @Override
+        public void updateSubscriptions(String userId, List<SubscriptionStatus> subscriptions) {
+            userIds.add(userId);
+            writes.add(subscriptions);
+        }
+    }
+
+    /**
+     * Holds a single task, like a Handler with one callback, and runs it when the test moves
+     * the clock past its time.
+     */
+    private static class FakeScheduler implements CoalescingSubscriptionWriter.Scheduler {
+        long now = 0L;
+        Runnable task = null;
+        long taskTime = 0L;
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void postAtTime(Runnable task, long uptimeMillis) {
+            this.task = task;
+            taskTime = uptimeMillis;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            if (this.task == task) {
+                this.task = null;
+            }
+        }
+
+        void advance(long millis) {
+            now += millis;
+            if (task != null && taskTime <= now) {
+                Runnable due = task;
+                task = null;
+                due.run();
+            }
+        }
+    }
+
+    private final FakeWriter writer = new FakeWriter();
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final CoalescingSubscriptionWriter subscriptionWriter =
+            new CoalescingSubscriptionWriter(writer, scheduler, WINDOW_MILLIS, MAX_DELAY_MILLIS);
+
+    private static List<SubscriptionStatus> subscriptions(String sku) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        return Collections.singletonList(subscription);
+    }
+
+    @Test
+    public void updatesWithinTheWindowAreOneWrite() {
+        List<SubscriptionStatus> last = subscriptions("premium");
+        subscriptionWriter.submit("user", subscriptions("basic"));
+        scheduler.advance(WINDOW_MILLIS - 1);
+        subscriptionWriter.submit("user", last);
+        scheduler.advance(WINDOW_MILLIS - 1);
+        assertTrue(writer.writes.isEmpty());
+
+        scheduler.advance(1);
+        assertEquals(1, writer.writes.size());
+        assertSame(last, writer.writes.get(0));
+        CoalescingSubscriptionWriter.BatchStats stats = subscriptionWriter.getBatchStats();
+        assertEquals(2, stats.updates);
+        assertEquals(1, stats.writes);
+        assertEquals(2, stats.lastBatchSize);
+    }
+
+    @Test
+    public void aSteadyStreamIsWrittenAfterTheMaximumDelay() {
+        for (int i = 0; i < 5; i++) {
+            subscriptionWriter.submit("user", subscriptions("basic"));
+            scheduler.advance(WINDOW_MILLIS - 1);
+        }
+        // the window never closed, but the first update has waited longer than the maximum
+        assertEquals(1, writer.writes.size());
+        assertEquals(4, subscriptionWriter.getBatchStats().maxBatchSize);
+    }
+
+    @Test
+    public void updatesForAnotherUserAreNotMerged() {
+        List<SubscriptionStatus> first = subscriptions("basic");
+        List<SubscriptionStatus> second = subscriptions("premium");
+        subscriptionWriter.submit("first", first);
+        subscriptionWriter.submit("second", second);
+        assertEquals(Collections.singletonList(first), writer.writes);
+
+        scheduler.advance(WINDOW_MILLIS);
+        assertEquals(Arrays.asList("first", "second"), writer.userIds);
+        assertEquals(Arrays.asList(first, second), writer.writes);
+    }
+
+    @Test
+    public void flushWritesThePendingBatchOnce() {
+        subscriptionWriter.flush();
+        assertTrue(writer.writes.isEmpty());
+
+        subscriptionWriter.submit("user", subscriptions("basic"));
+        subscriptionWriter.flush();
+        scheduler.advance(MAX_DELAY_MILLIS);
+        assertEquals(1, writer.writes.size());
+        assertEquals(1, subscriptionWriter.getBatchStats().writes);
+    }
+}
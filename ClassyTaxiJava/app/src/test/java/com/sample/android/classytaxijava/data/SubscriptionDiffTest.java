@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link SubscriptionDiff} matches subscriptions, by key and then by SKU alone, and how
+ * it treats keys that appear more than once.
+ */
+public class SubscriptionDiffTest {
+
+    private static SubscriptionStatus subscription(String sku, String token) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(token);
+        return subscription;
+    }
+
+    @Test
+    public void sameSubscriptionsAreEmpty() {
+        SubscriptionDiff diff = SubscriptionDiff.compute(
+                Arrays.asList(subscription("basic", "a"), subscription("premium", "b")),
+                Arrays.asList(subscription("premium", "b"), subscription("basic", "a")));
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void nullListsAreEmpty() {
+        SubscriptionStatus basic = subscription("basic", "a");
+        SubscriptionDiff diff = SubscriptionDiff.compute(null, Collections.singletonList(basic));
+        assertEquals(Collections.singletonList(basic), diff.getAdded());
+
+        diff = SubscriptionDiff.compute(Collections.singletonList(basic), null);
+        assertEquals(Collections.singletonList(basic), diff.getRemoved());
+        assertTrue(diff.getSnapshot().isEmpty());
+    }
+
+    @Test
+    public void changedFieldsAreReported() {
+        SubscriptionStatus oldBasic = subscription("basic", "a");
+        SubscriptionStatus newBasic = subscription("basic", "a");
+        newBasic.setEntitlementActive(true);
+        newBasic.setAcknowledged(true);
+        SubscriptionDiff diff = SubscriptionDiff.compute(Collections.singletonList(oldBasic),
+                Collections.singletonList(newBasic));
+        assertEquals(1, diff.getChanged().size());
+        SubscriptionDiff.Change change = diff.getChanged().get(0);
+        assertSame(oldBasic, change.oldSubscription);
+        assertSame(newBasic, change.newSubscription);
+        assertEquals(EnumSet.of(SubscriptionDiff.Field.ENTITLEMENT_ACTIVE,
+                SubscriptionDiff.Field.ACKNOWLEDGED), change.fields);
+    }
+
+    @Test
+    public void newPurchaseTokenIsMatchedBySku() {
+        SubscriptionStatus oldBasic = subscription("basic", "server-token");
+        SubscriptionStatus newBasic = subscription("basic", "local-token");
+        SubscriptionDiff diff = SubscriptionDiff.compute(Collections.singletonList(oldBasic),
+                Collections.singletonList(newBasic));
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertEquals(1, diff.getChanged().size());
+        SubscriptionDiff.Change change = diff.getChanged().get(0);
+        assertSame(oldBasic, change.oldSubscription);
+        assertEquals(new SubscriptionDiff.Key("basic", "local-token"), change.key);
+        assertEquals(EnumSet.of(SubscriptionDiff.Field.PURCHASE_TOKEN), change.fields);
+    }
+
+    @Test
+    public void exactMatchesArePairedBeforeSkuMatches() {
+        SubscriptionStatus oldA = subscription("basic", "a");
+        SubscriptionStatus oldB = subscription("basic", "b");
+        SubscriptionStatus newB = subscription("basic", "b");
+        SubscriptionStatus newC = subscription("basic", "c");
+        SubscriptionDiff diff = SubscriptionDiff.compute(Arrays.asList(oldA, oldB),
+                Arrays.asList(newC, newB));
+        // b is unchanged, so only a -> c is left, and it is matched by SKU
+        assertEquals(1, diff.getChanged().size());
+        assertSame(oldA, diff.getChanged().get(0).oldSubscription);
+        assertSame(newC, diff.getChanged().get(0).newSubscription);
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+    }
+
+    @Test
+    public void skuMatchesDontCrossSkus() {
+        SubscriptionStatus oldBasic = subscription("basic", "a");
+        SubscriptionStatus newPremium = subscription("premium", "b");
+        SubscriptionDiff diff = SubscriptionDiff.compute(Collections.singletonList(oldBasic),
+                Collections.singletonList(newPremium));
+        assertEquals(Collections.singletonList(newPremium), diff.getAdded());
+        assertEquals(Collections.singletonList(oldBasic), diff.getRemoved());
+        assertTrue(diff.getChanged().isEmpty());
+    }
+
+    @Test
+    public void duplicateOldKeysAreRemoved() {
+        SubscriptionStatus first = subscription("basic", "a");
+        SubscriptionStatus duplicate = subscription("basic", "a");
+        List<SubscriptionStatus> newSubscriptions =
+                Collections.singletonList(subscription("basic", "a"));
+        SubscriptionDiff diff = SubscriptionDiff.compute(Arrays.asList(first, duplicate),
+                newSubscriptions);
+        // the last one with the key is kept, the earlier one is a duplicate row
+        assertEquals(Collections.singletonList(first), diff.getRemoved());
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getChanged().isEmpty());
+    }
+
+    @Test
+    public void duplicateNewKeysAreIgnored() {
+        SubscriptionStatus oldBasic = subscription("basic", "a");
+        SubscriptionStatus ignored = subscription("basic", "a");
+        ignored.setEntitlementActive(true);
+        SubscriptionStatus last = subscription("basic", "a");
+        SubscriptionDiff diff = SubscriptionDiff.compute(Collections.singletonList(oldBasic),
+                Arrays.asList(ignored, last));
+        // the last one wins, and it is the same as the old one
+        assertTrue(diff.isEmpty());
+    }
+}
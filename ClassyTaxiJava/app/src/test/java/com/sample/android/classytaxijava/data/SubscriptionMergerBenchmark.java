@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares {@link SubscriptionMerger} with the nested-loop merge it replaced, for subscription
+ * histories of increasing size. Each size is checked for identical output and then timed, so the
+ * report shows how both versions scale with N.
+ * <p>
+ * The workload comes from a fixed seed: N subscriptions spread over N / 4 SKUs, a purchase on the
+ * device for half of them, and a quarter of the old subscriptions already owned by someone else.
+ * The timings are only taken when the tests are run with -Pbenchmark.
+ */
+public class SubscriptionMergerBenchmark {
+    private static final int[] SIZES = {10, 100, 1000, 4000};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long SEED = 42L;
+
+    private static class Workload {
+        final List<SubscriptionStatus> oldSubscriptions = new ArrayList<>();
+        final List<SubscriptionStatus> newSubscriptions = new ArrayList<>();
+        final List<String[]> purchases = new ArrayList<>();
+
+        Workload(int size) {
+            Random random = new Random(SEED);
+            int skuCount = Math.max(1, size / 4);
+            for (int i = 0; i < size; i++) {
+                String sku = "sku_" + random.nextInt(skuCount);
+                String token = "token_" + i;
+                if (random.nextBoolean()) {
+                    purchases.add(new String[]{sku, token});
+                }
+                SubscriptionStatus oldSubscription = subscription(sku, token);
+                oldSubscription.setSubAlreadyOwned(random.nextInt(4) == 0);
+                oldSubscription.setLocalPurchase(random.nextBoolean());
+                oldSubscriptions.add(oldSubscription);
+                if (random.nextInt(3) > 0) {
+                    // Some new subscriptions replace an old SKU, others are for a new SKU.
+                    String newSku = random.nextBoolean() ? sku : sku + "_new";
+                    newSubscriptions.add(subscription(newSku, token));
+                }
+            }
+        }
+
+        List<SubscriptionStatus> copyOfNewSubscriptions() {
+            List<SubscriptionStatus> copy = new ArrayList<>();
+            for (SubscriptionStatus subscription : newSubscriptions) {
+                copy.add(subscription(subscription.getSku(), subscription.getPurchaseToken()));
+            }
+            return copy;
+        }
+
+        SubscriptionMerger.PurchaseIndex index() {
+            SubscriptionMerger.PurchaseIndex index = new SubscriptionMerger.PurchaseIndex();
+            for (String[] purchase : purchases) {
+                index.add(purchase[0], purchase[1]);
+            }
+            return index;
+        }
+    }
+
+    private static SubscriptionStatus subscription(String sku, String token) {
+        SubscriptionStatus subscription = new SubscriptionStatus();
+        subscription.setSku(sku);
+        subscription.setPurchaseToken(token);
+        return subscription;
+    }
+
+    @Test
+    public void mergeMatchesTheNestedMerge() {
+        for (int size : SIZES) {
+            assertSameMerge(new Workload(size));
+        }
+    }
+
+    @Test
+    public void mergeScalesLinearly() {
+        assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        StringBuilder report = new StringBuilder("Subscription merge, median of "
+                + MEASURED_ROUNDS + " rounds:");
+        report.append(String.format(Locale.US, "%n%8s %14s %14s", "N", "nested (ms)",
+                "indexed (ms)"));
+        for (int size : SIZES) {
+            Workload workload = new Workload(size);
+            double nested = medianMillis(() -> nestedMerge(workload.oldSubscriptions,
+                    workload.copyOfNewSubscriptions(), workload.purchases));
+            double indexed = medianMillis(() -> SubscriptionMerger.merge(
+                    workload.oldSubscriptions, workload.copyOfNewSubscriptions(),
+                    workload.index()));
+            report.append(String.format(Locale.US, "%n%8d %14.3f %14.3f", size, nested, indexed));
+        }
+        System.out.println(report);
+    }
+
+    private static void assertSameMerge(Workload workload) {
+        List<SubscriptionStatus> expected = nestedMerge(workload.oldSubscriptions,
+                workload.copyOfNewSubscriptions(), workload.purchases);
+        List<SubscriptionStatus> actual = SubscriptionMerger.merge(workload.oldSubscriptions,
+                workload.copyOfNewSubscriptions(), workload.index());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SubscriptionStatus e = expected.get(i);
+            SubscriptionStatus a = actual.get(i);
+            if (i >= workload.newSubscriptions.size()) {
+                // Retained old subscriptions are passed through as they are.
+                assertSame(e, a);
+            }
+            assertEquals(e.getSku(), a.getSku());
+            assertEquals(e.getPurchaseToken(), a.getPurchaseToken());
+            assertEquals(e.isLocalPurchase(), a.isLocalPurchase());
+        }
+    }
+
+    private static double medianMillis(Runnable merge) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            merge.run();
+        }
+        long[] durations = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            merge.run();
+            durations[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(durations);
+        return durations[MEASURED_ROUNDS / 2] / 1_000_000.0;
+    }
+
+    /**
+     * The merge as it was written before {@link SubscriptionMerger}, with purchases as
+     * {sku, purchaseToken} pairs.
+     */
+    private static List<SubscriptionStatus> nestedMerge(
+            List<SubscriptionStatus> oldSubscriptions,
+            List<SubscriptionStatus> newSubscriptions,
+            List<String[]> purchases) {
+        List<SubscriptionStatus> subscriptionStatuses = new ArrayList<>();
+        for (SubscriptionStatus subscription : newSubscriptions) {
+            boolean isLocalPurchase = false;
+            String purchaseToken = subscription.getPurchaseToken();
+            for (String[] purchase : purchases) {
+                if (Objects.equals(subscription.getSku(), purchase[0])) {
+                    isLocalPurchase = true;
+                    purchaseToken = purchase[1];
+                }
+            }
+            if (subscription.isLocalPurchase() != isLocalPurchase) {
+                subscription.setLocalPurchase(isLocalPurchase);
+                subscription.setPurchaseToken(purchaseToken);
+            }
+        }
+        subscriptionStatuses.addAll(newSubscriptions);
+        for (SubscriptionStatus oldSubscription : oldSubscriptions) {
+            if (oldSubscription.isSubAlreadyOwned() && oldSubscription.isLocalPurchase()) {
+                for (String[] purchase : purchases) {
+                    if (purchase[0].equals(oldSubscription.getSku())
+                            && purchase[1].equals(oldSubscription.getPurchaseToken())) {
+                        boolean foundNewSubscription = false;
+                        for (SubscriptionStatus newSubscription : newSubscriptions) {
+                            if (Objects.equals(newSubscription.getSku(),
+                                    oldSubscription.getSku())) {
+                                foundNewSubscription = true;
+                            }
+                        }
+                        if (!foundNewSubscription) {
+                            subscriptionStatuses.add(oldSubscription);
+                        }
+                    }
+                }
+            }
+        }
+        return subscriptionStatuses;
+    }
+}
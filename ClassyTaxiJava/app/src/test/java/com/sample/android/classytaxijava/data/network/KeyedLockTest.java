@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link KeyedLock} holds keys until a request reports that it is done, and that
+ * requests on the same key start in the order they were submitted.
+ */
+public class KeyedLockTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final KeyedLock keyedLock = new KeyedLock(DIRECT_EXECUTOR);
+    private final List<String> started = new ArrayList<>();
+    private final Map<String, Runnable> done = new HashMap<>();
+
+    private void submit(final String name, String... keys) {
+        keyedLock.submit(new KeyedLock.Request() {
+            @Override
+            public void start(Runnable onDone) {
+                started.add(name);
+                done.put(name, onDone);
+            }
+        }, keys);
+    }
+
+    @Test
+    public void holdsTheKeyUntilDone() {
+        submit("a", "key");
+        submit("b", "key");
+        submit("c", "key");
+        assertEquals(Arrays.asList("a"), started);
+
+        done.get("a").run();
+        assertEquals(Arrays.asList("a", "b"), started);
+
+        // Reporting done again doesn't release the next request.
+        done.get("a").run();
+        assertEquals(Arrays.asList("a", "b"), started);
+
+        done.get("b").run();
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+    }
+
+    @Test
+    public void runsDifferentKeysConcurrently() {
+        submit("a", "one");
+        submit("b", "two");
+        submit("c", null, null);
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+    }
+
+    @Test
+    public void waitsForEveryKey() {
+        submit("a", "one");
+        submit("b", "two");
+        submit("c", "one", "two", "one");
+        submit("d", "two");
+        assertEquals(Arrays.asList("a", "b"), started);
+
+        done.get("a").run();
+        assertEquals(Arrays.asList("a", "b"), started);
+
+        // d was submitted after c, so it waits for c even though b is done.
+        done.get("b").run();
+        assertEquals(Arrays.asList("a", "b", "c"), started);
+
+        done.get("c").run();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), started);
+    }
+
+    @Test
+    public void recordsWaitsAndHolds() {
+        submit("a", "key");
+        submit("b", "key");
+        done.get("a").run();
+        done.get("b").run();
+
+        KeyedLock.WaitStats stats = keyedLock.getWaitStats();
+        assertEquals(2, stats.acquisitions);
+        assertEquals(1, stats.contended);
+        assertEquals(2, stats.releases);
+    }
+
+    @Test
+    public void releasesTheKeysOfARequestThatThrows() {
+        try {
+            keyedLock.submit(new KeyedLock.Request() {
+                @Override
+                public void start(Runnable onDone) {
+                    throw new IllegalStateException();
+                }
+            }, "key");
+        } catch (IllegalStateException expected) {
+        }
+        submit("a", "key");
+        assertEquals(Arrays.asList("a"), started);
+    }
+}
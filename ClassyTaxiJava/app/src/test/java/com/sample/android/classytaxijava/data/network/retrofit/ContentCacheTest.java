@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021 Google LLC. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.classytaxijava.data.network.retrofit;
+
+import com.sample.android.classytaxijava.data.ContentResource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how long {@link ContentCache} serves content, how a 304 response revalidates it, and
+ * that responses to requests started before {@link ContentCache#clear()} are ignored.
+ */
+public class ContentCacheTest {
+    private static final String ENDPOINT = "content_basic";
+    private static final long WINDOW_MILLIS = 1000L;
+
+    private long now = 0L;
+    private final ContentCache cache = new ContentCache(new ContentCache.Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+    });
+
+    private ContentResource fetch(String url) {
+        ContentResource content = new ContentResource(url);
+        int generation = cache.startRequest(ENDPOINT);
+        assertTrue(cache.put(generation, ENDPOINT, content, "\"v1\"", null));
+        return content;
+    }
+
+    @Test
+    public void contentIsFreshForTheWindow() {
+        cache.setFreshnessWindow(WINDOW_MILLIS);
+        ContentResource content = fetch("https://example.com/basic");
+        now += WINDOW_MILLIS - 1;
+        assertSame(content, cache.getFresh(ENDPOINT));
+
+        now += 1;
+        assertNull(cache.getFresh(ENDPOINT));
+        // the expired entry is still there to make the request conditional
+        assertEquals("\"v1\"", cache.get(ENDPOINT).etag);
+    }
+
+    @Test
+    public void notModifiedRestartsTheWindow() {
+        cache.setFreshnessWindow(WINDOW_MILLIS);
+        ContentResource content = fetch("https://example.com/basic");
+        now += WINDOW_MILLIS;
+        assertNull(cache.getFresh(ENDPOINT));
+
+        int generation = cache.startRequest(ENDPOINT);
+        assertSame(content, cache.revalidate(generation, ENDPOINT));
+        now += WINDOW_MILLIS - 1;
+        assertSame(content, cache.getFresh(ENDPOINT));
+        // the request has ended, so another one can start
+        assertTrue(cache.startRequest(ENDPOINT) != ContentCache.NO_REQUEST);
+    }
+
+    @Test
+    public void notModifiedWithoutAnEntryHasNothingToServe() {
+        int generation = cache.startRequest(ENDPOINT);
+        assertNull(cache.revalidate(generation, ENDPOINT));
+    }
+
+    @Test
+    public void requestsInFlightAreNotRepeated() {
+        int generation = cache.startRequest(ENDPOINT);
+        assertEquals(ContentCache.NO_REQUEST, cache.startRequest(ENDPOINT));
+
+        cache.fail(generation, ENDPOINT);
+        assertTrue(cache.startRequest(ENDPOINT) != ContentCache.NO_REQUEST);
+    }
+
+    @Test
+    public void responsesFromBeforeClearAreIgnored() {
+        fetch("https://example.com/basic");
+        int staleGeneration = cache.startRequest(ENDPOINT);
+        cache.clear();
+        assertNull(cache.get(ENDPOINT));
+        assertFalse(cache.isCurrent(staleGeneration));
+
+        assertFalse(cache.put(staleGeneration, ENDPOINT,
+                new ContentResource("https://example.com/other"), null, null));
+        assertNull(cache.revalidate(staleGeneration, ENDPOINT));
+        assertNull(cache.get(ENDPOINT));
+
+        // the new user's request isn't blocked by the stale one
+        int generation = cache.startRequest(ENDPOINT);
+        assertTrue(cache.isCurrent(generation));
+        cache.fail(staleGeneration, ENDPOINT);
+        assertEquals(ContentCache.NO_REQUEST, cache.startRequest(ENDPOINT));
+    }
+
+    @Test
+    public void failureDropsTheContent() {
+        fetch("https://example.com/basic");
+        now += ContentCache.DEFAULT_FRESHNESS_WINDOW_MILLIS;
+        int generation = cache.startRequest(ENDPOINT);
+        cache.fail(generation, ENDPOINT);
+        assertNull(cache.get(ENDPOINT));
+    }
+}
@@ -148,6 +148,107 @@
      });
  });
 
+ /* HTTPS request that registers several subscriptions purchased
+  * in Android app via Google Play Billing to an user in one call.
+  *
+  * The body holds a list of subscriptions, each with a product (or sku)
+  * and a purchase token. Purchases that are already registered to other
+  * users don't fail the request; they are returned in alreadyOwned,
+  * next to the subscriptions of the user.
+  *
+  * @param {Request} request
+  * @param {Response} response
+  */
+ export const subscription_register_batch = functions.https.onRequest(async (request, response) => {
+   return verifyFirebaseAuthIdToken(request, response)
+     .then(async (decodedToken) => {
+       const uid = decodedToken.uid;
+       const items = getBatchItems(request.body);
+
+       if (!uid || !items) {
+         throw new functions.https.HttpsError('invalid-argument', 'Missing required parameters!');
+       }
+
+       const alreadyOwned = [];
+       await Promise.all(items.map(async (item) => {
+         try {
+           await playBilling.purchases().registerToUserAccount(
+             PACKAGE_NAME,
+             item.product,
+             item.purchaseToken,
+             ProductType.SUBS,
+             uid
+           );
+         } catch (err) {
+           switch (err.name) {
+             case PurchaseUpdateError.CONFLICT: {
+               alreadyOwned.push(item.request);
+               return;
+             }
+             case PurchaseUpdateError.INVALID_TOKEN: {
+               logAndThrowHttpsError('not-found', err.message);
+             }
+             default: {
+               logAndThrowHttpsError('internal', err.message);
+             }
+           }
+         }
+       }));
+
+       const data = await getSubscriptionsResponseObject(uid);
+       response.send({ ...data, alreadyOwned: alreadyOwned });
+     }).catch((error: functions.https.HttpsError) => {
+       sendHttpsError(error, response);
+     });
+ });
+
+ /* HTTPS request that transfers several subscriptions purchased
+  * in Android app via Google Play Billing to an user in one call.
+  *
+  * The body is the same as for subscription_register_batch. Every purchase
+  * can be transferred, so alreadyOwned is always empty.
+  *
+  * @param {Request} request
+  * @param {Response} response
+  */
+ export const subscription_transfer_batch = functions.https.onRequest(async (request, response) => {
+   return verifyFirebaseAuthIdToken(request, response)
+     .then(async (decodedToken) => {
+       const uid = decodedToken.uid;
+       const items = getBatchItems(request.body);
+
+       if (!uid || !items) {
+         throw new functions.https.HttpsError('invalid-argument', 'Missing required parameters!');
+       }
+
+       await Promise.all(items.map(async (item) => {
+         try {
+           await playBilling.purchases().transferToUserAccount(
+             PACKAGE_NAME,
+             item.product,
+             item.purchaseToken,
+             ProductType.SUBS,
+             uid
+           );
+         } catch (err) {
+           switch (err.name) {
+             case PurchaseUpdateError.INVALID_TOKEN: {
+               logAndThrowHttpsError('not-found', err.message);
+             }
+             default: {
+               logAndThrowHttpsError('internal', err.message);
+             }
+           }
+         }
+       }));
+
+       const data = await getSubscriptionsResponseObject(uid);
+       response.send({ ...data, alreadyOwned: [] });
+     }).catch((error: functions.https.HttpsError) => {
+       sendHttpsError(error, response);
+     });
+ });
+
  /* HTTPS request that returns a list of active subscriptions
   * and those under Account Hold.
   *
@@ -205,6 +306,26 @@
    }
  }
 
+ // Util method to read the subscriptions of a batch request.
+ // Returns null if the list is missing or empty, or an item lacks its product or token.
+ // Each item keeps the request it came from, so it can be returned as sent.
+ function getBatchItems(body: any): { product: string, purchaseToken: string, request: any }[] | null {
+   const requests = body && body.subscriptions;
+   if (!Array.isArray(requests) || requests.length === 0) {
+     return null;
+   }
+   const items = [];
+   for (const request of requests) {
+     const product = request && (request.product || request.sku);
+     const purchaseToken = request && request.purchaseToken;
+     if (!product || !purchaseToken) {
+       return null;
+     }
+     items.push({ product: product, purchaseToken: purchaseToken, request: request });
+   }
+   return items;
+ }
+
  // Util method to send updated list of SubscriptionPurchase to client app via FCM
  async function sendSubscriptionStatusUpdateToClient(userId: string, notificationType: NotificationType): Promise<void> {
    // Fetch updated subscription list of the user
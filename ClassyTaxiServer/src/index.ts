@@ -18,7 +18,7 @@ import * as firebase from 'firebase-admin';
 firebase.initializeApp();
 
 import { content_basic, content_premium, content_otp } from './controller/functions/content'
-import { subscription_register, subscription_status, subscription_transfer, acknowledge_purchase,realtime_notification_listener } from './controller/functions/subscription'
+import { subscription_register, subscription_status, subscription_transfer, subscription_register_batch, subscription_transfer_batch, acknowledge_purchase,realtime_notification_listener } from './controller/functions/subscription'
 import { otp_register, otp_status, otp_acknowledge, otp_consume } from './controller/functions/one_time_product'
 import { instanceId_register, instanceId_unregister } from './controller/functions/instance_id'
 
@@ -49,6 +49,14 @@ if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_tr
   exports.subscription_transfer = subscription_transfer;
 }
 
+if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_register_batch') {
+  exports.subscription_register_batch = subscription_register_batch;
+}
+
+if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_transfer_batch') {
+  exports.subscription_transfer_batch = subscription_transfer_batch;
+}
+
 if (!process.env.FUNCTION_NAME || process.env.FUNCTION_NAME === 'subscription_status') {
   exports.subscription_status = subscription_status;
 }
@@ -27,10 +27,12 @@ import androidx.lifecycle.ViewModelProvider;
 public class GameViewModel extends ViewModel {
     static final String TAG = GameViewModel.class.getSimpleName();
     private final TrivialDriveRepository tdr;
+    private final LiveData<Boolean> canDrive;
 
     public GameViewModel(@NonNull TrivialDriveRepository trivialDriveRepository) {
         super();
         tdr = trivialDriveRepository;
+        canDrive = Transformations.map(tdr.gasTankLevel(), gasUnits -> gasUnits > 0);
     }
 
     public void drive() {
@@ -41,8 +43,7 @@ public class GameViewModel extends ViewModel {
         We can drive if we have at least one unit of gas.
      */
     public LiveData<Boolean> canDrive() {
-        LiveData<Integer> gasUnitsRemaining = getGasUnitsRemaining();
-        return Transformations.map(gasUnitsRemaining, gasUnits -> gasUnits > 0);
+        return canDrive;
     }
 
     public LiveData<Boolean> isPremium() {
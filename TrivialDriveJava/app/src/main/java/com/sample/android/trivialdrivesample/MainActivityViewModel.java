@@ -44,6 +44,10 @@ public class MainActivityViewModel extends ViewModel {
         return tdr.getBillingLifecycleObserver();
     }
 
+    public LifecycleObserver getGameStateLifecycleObserver() {
+        return tdr.getGameStateLifecycleObserver();
+    }
+
     public static class MainActivityViewModelFactory implements
             ViewModelProvider.Factory {
         private final TrivialDriveRepository trivialDriveRepository;
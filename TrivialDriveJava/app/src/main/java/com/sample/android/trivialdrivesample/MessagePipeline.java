@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import com.sample.android.trivialdrivesample.ui.SingleMediatorLiveEvent;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Sits between the sources of Snackbar messages and the SingleMediatorLiveEvent that the UI
+ * observes. Restoring purchases can deliver many SKUs at once, and rapid taps can produce many game
+ * messages, so instead of passing every message straight through:
+ * <p>
+ * 1) Messages that arrive during the same main thread tick are collected into a single batch. If a
+ * batch contains more than one distinct purchase message, they are replaced by one aggregated
+ * message. Purchase messages are shown first; a game message in the same batch is held back for the
+ * next notification rather than dropped. The latest game message wins.
+ * 2) Requests to refresh purchases are collapsed so each batch triggers at most one refresh.
+ * 3) The UI is notified at most once per minimum notification interval. Batches that arrive sooner
+ * are held back and merged with whatever arrives before the interval elapses.
+ * <p>
+ * All methods must be called from the main thread.
+ */
+class MessagePipeline {
+    static final long DEFAULT_MIN_NOTIFICATION_INTERVAL_MILLISECONDS = 1000L;
+
+    private final Handler handler;
+    private final SingleMediatorLiveEvent<Integer> output;
+    private final Runnable refreshPurchases;
+    private final Runnable flushRunnable = this::flush;
+    private final Set<Integer> pendingPurchaseMessages = new LinkedHashSet<>();
+    private Integer pendingGameMessage;
+    private boolean refreshPending = false;
+    private boolean flushScheduled = false;
+    private long minNotificationIntervalMilliseconds = DEFAULT_MIN_NOTIFICATION_INTERVAL_MILLISECONDS;
+    private long lastNotificationTime = -DEFAULT_MIN_NOTIFICATION_INTERVAL_MILLISECONDS;
+
+    /**
+     * @param output           the event observed by the UI
+     * @param refreshPurchases called at most once per batch when a refresh has been requested
+     */
+    MessagePipeline(@NonNull SingleMediatorLiveEvent<Integer> output,
+            @NonNull Runnable refreshPurchases) {
+        this(output, refreshPurchases, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param handler runs the flushes; must be on the main thread's looper
+     */
+    MessagePipeline(@NonNull SingleMediatorLiveEvent<Integer> output,
+            @NonNull Runnable refreshPurchases, @NonNull Handler handler) {
+        this.output = output;
+        this.refreshPurchases = refreshPurchases;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the minimum time between two UI notifications. Zero disables rate limiting, but
+     * messages are still batched per tick.
+     */
+    @MainThread
+    void setMinNotificationInterval(long milliseconds) {
+        minNotificationIntervalMilliseconds = Math.max(0, milliseconds);
+    }
+
+    @MainThread
+    void offerGameMessage(Integer resId) {
+        if (null == resId) return;
+        pendingGameMessage = resId;
+        scheduleFlush(0);
+    }
+
+    @MainThread
+    void offerPurchaseMessage(int resId) {
+        pendingPurchaseMessages.add(resId);
+        scheduleFlush(0);
+    }
+
+    @MainThread
+    void requestPurchaseRefresh() {
+        refreshPending = true;
+        scheduleFlush(0);
+    }
+
+    private void scheduleFlush(long delayMilliseconds) {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        handler.postDelayed(flushRunnable, delayMilliseconds);
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        if (refreshPending) {
+            refreshPending = false;
+            refreshPurchases.run();
+        }
+        if (pendingPurchaseMessages.isEmpty() && null == pendingGameMessage) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long wait = lastNotificationTime + minNotificationIntervalMilliseconds - now;
+        if (wait > 0) {
+            // too soon; keep collecting until the interval has elapsed
+            scheduleFlush(wait);
+            return;
+        }
+        Integer message;
+        switch (pendingPurchaseMessages.size()) {
+            case 0:
+                message = pendingGameMessage;
+                pendingGameMessage = null;
+                break;
+            case 1:
+                message = pendingPurchaseMessages.iterator().next();
+                break;
+            default:
+                message = R.string.message_multiple_purchases;
+                break;
+        }
+        pendingPurchaseMessages.clear();
+        lastNotificationTime = now;
+        output.setValue(message);
+        if (null != pendingGameMessage) {
+            // the game message waits for the next notification
+            scheduleFlush(minNotificationIntervalMilliseconds);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sample.android.trivialdrivesample.billing.ConsumptionLedger;
+import com.sample.android.trivialdrivesample.billing.PurchaseTracer;
+import com.sample.android.trivialdrivesample.db.GameStateModel;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Connects the BillingDataSource's consumption of gas purchases to the credit ledger in the
+ * GameStateModel. Each unit of gas purchased fills one unit of the tank, up to the maximum.
+ * <p>
+ * A purchase is credited with its quantity, since Google Play lets the user buy several units of a
+ * consumable in one purchase (multi-quantity purchases). A single-quantity purchase credits one
+ * unit, as it always has.
+ */
+class PurchaseCreditLedger implements ConsumptionLedger {
+    private final GameStateModel gameStateModel;
+    private final PurchaseTracer purchaseTracer;
+    private final String creditedSku;
+    private final int maxLevel;
+
+    /**
+     * @param creditedSku the consumable SKU that is credited to the gas tank
+     * @param maxLevel    the tank is never filled beyond this level
+     */
+    PurchaseCreditLedger(@NonNull GameStateModel gameStateModel,
+            @NonNull PurchaseTracer purchaseTracer, @NonNull String creditedSku, int maxLevel) {
+        this.gameStateModel = gameStateModel;
+        this.purchaseTracer = purchaseTracer;
+        this.creditedSku = creditedSku;
+        this.maxLevel = maxLevel;
+    }
+
+    private int unitsOf(@NonNull List<String> skus, int quantity) {
+        return skus.contains(creditedSku) ? quantity : 0;
+    }
+
+    @Override
+    public void recordPendingConsumption(@NonNull String purchaseToken,
+            @NonNull List<String> skus, int quantity, @NonNull Runnable proceed,
+            @NonNull Runnable onFailed) {
+        gameStateModel.recordPendingCredit(purchaseToken, creditedSku, unitsOf(skus, quantity),
+                proceed, onFailed);
+    }
+
+    @Override
+    public void recordConsumed(@NonNull String purchaseToken, @NonNull List<String> skus,
+            int quantity, @Nullable PurchaseTracer.TraceContext trace) {
+        // The trace that started at launchBillingFlow ends once the gas is in the tank.
+        purchaseTracer.recordSinceMark(trace, PurchaseTracer.Stage.PURCHASE_CONSUMED);
+        final long grantStartNanos = purchaseTracer.now();
+        gameStateModel.creditPurchase(purchaseToken, creditedSku, unitsOf(skus, quantity),
+                maxLevel, () -> {
+                    purchaseTracer.recordStage(trace, PurchaseTracer.Stage.GRANT_ENTITLEMENT,
+                            grantStartNanos);
+                    purchaseTracer.endTrace(trace);
+                });
+    }
+
+    @Override
+    public void reconcile(@NonNull Set<String> ownedPurchaseTokens, long queryStartedMillis) {
+        gameStateModel.reconcileCredits(ownedPurchaseTokens, queryStartedMillis, maxLevel);
+    }
+}
@@ -20,13 +20,17 @@ import android.app.Application;
 
 import com.sample.android.trivialdrivesample.billing.BillingDataSource;
 import com.sample.android.trivialdrivesample.db.GameStateModel;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
 
 public class TrivialDriveApplication extends Application {
     public AppContainer appContainer;
 
     // Container of objects shared across the whole app
     public class AppContainer {
-        final GameStateModel gameStateModel = new GameStateModel(TrivialDriveApplication.this);
+        // Runs all background work, so it can be prioritized and measured in one place
+        final AppScheduler appScheduler = new AppScheduler();
+        final GameStateModel gameStateModel = new GameStateModel(TrivialDriveApplication.this,
+                appScheduler);
         final BillingDataSource billingDataSource = BillingDataSource.getInstance(
                 TrivialDriveApplication.this,
                 TrivialDriveRepository.INAPP_SKUS,
@@ -34,7 +38,8 @@ public class TrivialDriveApplication extends Application {
                 TrivialDriveRepository.AUTO_CONSUME_SKUS);
         final public TrivialDriveRepository trivialDriveRepository = new TrivialDriveRepository(
                 billingDataSource,
-                gameStateModel);
+                gameStateModel,
+                appScheduler);
     }
 
     @Override
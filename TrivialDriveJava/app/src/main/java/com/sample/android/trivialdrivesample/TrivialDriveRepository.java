@@ -24,12 +24,16 @@ import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.Observer;
 
 import com.sample.android.trivialdrivesample.billing.BillingDataSource;
+import com.sample.android.trivialdrivesample.billing.PurchaseTracer;
 import com.sample.android.trivialdrivesample.db.GameStateModel;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
 import com.sample.android.trivialdrivesample.ui.SingleMediatorLiveEvent;
 
+import java.util.ArrayDeque;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The repository uses data from the Billing data source and the game state model together to give a
@@ -53,29 +57,68 @@ public class TrivialDriveRepository {
     static final String[] SUBSCRIPTION_SKUS = new String[]{SKU_INFINITE_GAS_MONTHLY,
             SKU_INFINITE_GAS_YEARLY};
     static final String[] AUTO_CONSUME_SKUS = new String[]{SKU_GAS};
+    // The gas entitlement, which is the subscription half of the gas state machine.
+    static final int GAS_ENTITLEMENT_UNKNOWN = 0;
+    static final int GAS_ENTITLEMENT_METERED = 1;
+    static final int GAS_ENTITLEMENT_INFINITE = 2;
+    // Boxed once, so that driving doesn't allocate.
+    static final Integer MESSAGE_INFINITE_DRIVE = R.string.message_infinite_drive;
+    static final Integer MESSAGE_OUT_OF_GAS = R.string.message_out_of_gas;
+    static final Integer MESSAGE_YOU_DROVE = R.string.message_you_drove;
+    // How long drive commands wait before they are scheduled again when the lane is backed up.
+    static final long DRIVE_RETRY_DELAY_MILLIS = 50;
 
     final BillingDataSource billingDataSource;
     final GameStateModel gameStateModel;
+    final PurchaseTracer purchaseTracer;
     final SingleMediatorLiveEvent<Integer> gameMessages;
     final SingleMediatorLiveEvent<Integer> allMessages = new SingleMediatorLiveEvent<>();
-    final ExecutorService driveExecutor = Executors.newSingleThreadExecutor();
+    final MessagePipeline messagePipeline;
+    final AppScheduler scheduler;
+    // Drive commands are counted per profile rather than queued one by one, and processed serially
+    // in the user-interactive lane. Guarded by itself.
+    final ArrayDeque<DriveBatch> pendingDrives = new ArrayDeque<>();
+    final Runnable processDrives = this::processDrives;
+    final GameStateModel.ConsumeGasListener onGasConsumed = this::onGasConsumed;
+    private volatile int gasEntitlement = GAS_ENTITLEMENT_UNKNOWN;
+    // Shared by every consumer, so that they all use the same upstream subscriptions.
+    final LiveData<Boolean> monthlySubPurchased;
+    final LiveData<Boolean> yearlySubPurchased;
+    final MediatorLiveData<Integer> gasTankLevel = new MediatorLiveData<>();
+    final AtomicLong gasTankLevelRecomputations = new AtomicLong();
+    final AtomicLong gasTankLevelEmissions = new AtomicLong();
+
+    /*
+        Consecutive drive commands for the same profile.
+     */
+    private static final class DriveBatch {
+        final String profileId;
+        int count = 1;
+
+        DriveBatch(String profileId) {
+            this.profileId = profileId;
+        }
+    }
 
     public TrivialDriveRepository(BillingDataSource billingDataSource,
-            GameStateModel gameStateModel) {
+            GameStateModel gameStateModel, AppScheduler scheduler) {
         this.billingDataSource = billingDataSource;
         this.gameStateModel = gameStateModel;
+        this.scheduler = scheduler;
+        this.purchaseTracer = billingDataSource.getPurchaseTracer();
+        monthlySubPurchased = billingDataSource.isPurchased(SKU_INFINITE_GAS_MONTHLY);
+        yearlySubPurchased = billingDataSource.isPurchased(SKU_INFINITE_GAS_YEARLY);
 
         gameMessages = new SingleMediatorLiveEvent<>();
+        messagePipeline = new MessagePipeline(allMessages, billingDataSource::refreshPurchasesAsync);
         setupMessagesSingleMediatorLiveEvent();
+        setupGasEntitlement();
+        setupGasTankLevel();
 
-        // Since both are tied to application lifecycle
-        billingDataSource.observeConsumedPurchases().observeForever(skuList -> {
-            for ( String sku: skuList ) {
-                if (sku.equals(SKU_GAS)) {
-                    gameStateModel.incrementGas(GAS_TANK_MAX);
-                }
-            }
-        });
+        // Since both are tied to application lifecycle, the ledger is never cleared. Consumed gas
+        // purchases are credited through it exactly once.
+        billingDataSource.setConsumptionLedger(new PurchaseCreditLedger(gameStateModel,
+                purchaseTracer, SKU_GAS, GAS_TANK_MAX));
     }
 
     /**
@@ -84,65 +127,152 @@ public class TrivialDriveRepository {
      * and combines them into a single source with new purchase events from the BillingDataSource.
      * Since the billing data source doesn't know about our SKUs, it also transforms the known SKU
      * strings into useful String messages.
+     * <p>
+     * Messages go through the MessagePipeline, which batches multi-line purchases and restores into
+     * a single message, refreshes purchases at most once per batch, and rate-limits the Snackbars.
      */
     void setupMessagesSingleMediatorLiveEvent() {
         final LiveData<List<String>> billingMessages = billingDataSource.observeNewPurchases();
-        allMessages.addSource(gameMessages, allMessages::setValue);
+        allMessages.addSource(gameMessages, messagePipeline::offerGameMessage);
         allMessages.addSource(billingMessages,
                 stringList -> {
-            // TODO: Handle multi-line purchases better
             for (String s: stringList) {
                     switch (s) {
                         case SKU_GAS:
-                            allMessages.setValue(R.string.message_more_gas_acquired);
+                            messagePipeline.offerPurchaseMessage(R.string.message_more_gas_acquired);
                             break;
                         case SKU_PREMIUM:
-                            allMessages.setValue(R.string.message_premium);
+                            messagePipeline.offerPurchaseMessage(R.string.message_premium);
                             break;
                         case SKU_INFINITE_GAS_MONTHLY:
                         case SKU_INFINITE_GAS_YEARLY:
                             // this makes sure that upgraded and downgraded subscriptions are
                             // reflected correctly in the app UI
-                            billingDataSource.refreshPurchasesAsync();
-                            allMessages.setValue(R.string.message_subscribed);
+                            messagePipeline.requestPurchaseRefresh();
+                            messagePipeline.offerPurchaseMessage(R.string.message_subscribed);
                             break;
                     }
                 }
         });
     }
 
+    /**
+     * Sets the minimum time between two Snackbar messages. Messages that arrive sooner are merged
+     * into the next one.
+     *
+     * @param milliseconds the minimum interval, or zero to only batch messages within a tick
+     */
+    public final void setMinMessageInterval(long milliseconds) {
+        messagePipeline.setMinNotificationInterval(milliseconds);
+    }
+
+    /**
+     * Sets up the long-lived observers that track whether we have a subscription. Together with the
+     * gas level kept by the GameStateModel, this is the state machine that drive commands run
+     * against.
+     */
+    private void setupGasEntitlement() {
+        final Observer<Boolean> entitlementObserver = subPurchased ->
+                updateGasEntitlement(monthlySubPurchased.getValue(), yearlySubPurchased.getValue());
+        monthlySubPurchased.observeForever(entitlementObserver);
+        yearlySubPurchased.observeForever(entitlementObserver);
+    }
+
+    private void updateGasEntitlement(Boolean isMonthlySubscription,
+            Boolean isYearlySubscription) {
+        if (null == isMonthlySubscription || null == isYearlySubscription) {
+            gasEntitlement = GAS_ENTITLEMENT_UNKNOWN;
+            return;
+        }
+        gasEntitlement = isMonthlySubscription || isYearlySubscription ?
+                GAS_ENTITLEMENT_INFINITE : GAS_ENTITLEMENT_METERED;
+        // drive commands wait until we know whether we have a subscription
+        boolean hasPendingDrives;
+        synchronized (pendingDrives) {
+            hasPendingDrives = !pendingDrives.isEmpty();
+        }
+        if (hasPendingDrives) {
+            scheduleDrives();
+        }
+    }
+
     /**
      * Drive the car (if we can). This is an asynchronous operation.
+     * <p>
+     * Each call is one drive command; commands are processed serially and each one consumes
+     * exactly one unit of gas (unless we have a subscription) from the profile that is active when
+     * it is made. This only allocates when the profile changes, so it's fine to call as fast as the
+     * user can tap.
      */
     public void drive() {
-        // We run this all on a background thread since we're not using a LiveData observable
-        // to get the gas level and want to avoid doing database queries on the main thread.
-        final LiveData<Integer> gasTankLevelLiveData = gasTankLevel();
-        gasTankLevelLiveData.observeForever(
-                new Observer<Integer>() {
-            @Override
-            public void onChanged(Integer gasLevel) {
-                if ( null == gasLevel ) return;
-                switch (gasLevel) {
-                    case TrivialDriveRepository.GAS_TANK_INFINITE:
-                        // We never use gas in the tank if we have a subscription
-                        sendMessage(R.string.message_infinite_drive);
-                        break;
-                    case TrivialDriveRepository.GAS_TANK_MIN:
-                        sendMessage(R.string.message_out_of_gas);
-                        break;
-                    case TrivialDriveRepository.GAS_TANK_MIN + 1:
-                        gameStateModel.decrementGas(GAS_TANK_MIN);
-                        sendMessage(R.string.message_out_of_gas);
-                        break;
-                    default:
-                        gameStateModel.decrementGas(GAS_TANK_MIN);
-                        sendMessage(R.string.message_you_drove);
-                        break;
+        final String profileId = gameStateModel.getActiveProfileId();
+        boolean wasIdle;
+        synchronized (pendingDrives) {
+            wasIdle = pendingDrives.isEmpty();
+            DriveBatch last = pendingDrives.peekLast();
+            if (null != last && last.profileId.equals(profileId)) {
+                last.count++;
+            } else {
+                pendingDrives.addLast(new DriveBatch(profileId));
+            }
+        }
+        if (wasIdle) {
+            scheduleDrives();
+        }
+    }
+
+    /*
+        Called from the main thread. If the user-interactive lane is backed up, the pending drive
+        commands stay queued and are scheduled again after a short delay, rather than crashing the
+        app. Until they have run, later taps are added to them.
+     */
+    private void scheduleDrives() {
+        if (!scheduler.tryExecute(Lane.USER_INTERACTIVE, processDrives)) {
+            Log.w(TAG, "The scheduler is backed up, postponing the drive commands");
+            scheduler.schedule(Lane.USER_INTERACTIVE, processDrives, DRIVE_RETRY_DELAY_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+        Runs in the user-interactive lane. Only one instance ever runs at a time, and the gas is
+        consumed atomically, so no two commands can see the same gas level. Consuming gas never
+        waits: a command for a profile that is still loading is queued by the model and answered
+        once the profile has loaded.
+     */
+    private void processDrives() {
+        while (true) {
+            final int entitlement = gasEntitlement;
+            if (GAS_ENTITLEMENT_UNKNOWN == entitlement) {
+                // updateGasEntitlement will run us again
+                return;
+            }
+            final String profileId;
+            synchronized (pendingDrives) {
+                DriveBatch batch = pendingDrives.peekFirst();
+                if (null == batch) {
+                    return;
+                }
+                profileId = batch.profileId;
+                if (--batch.count == 0) {
+                    pendingDrives.pollFirst();
                 }
-                gasTankLevelLiveData.removeObserver(this);
             }
-        });
+            if (GAS_ENTITLEMENT_INFINITE == entitlement) {
+                // We never use gas in the tank if we have a subscription
+                gameMessages.postValue(MESSAGE_INFINITE_DRIVE);
+                continue;
+            }
+            gameStateModel.consumeGas(profileId, GAS_TANK_MIN, onGasConsumed);
+        }
+    }
+
+    private void onGasConsumed(int gasLevel) {
+        if (gasLevel < 0 || gasLevel == GAS_TANK_MIN) {
+            gameMessages.postValue(MESSAGE_OUT_OF_GAS);
+        } else {
+            gameMessages.postValue(MESSAGE_YOU_DROVE);
+        }
     }
 
     /**
@@ -203,7 +333,6 @@ public class TrivialDriveRepository {
         switch (sku) {
             case SKU_GAS: {
                 final MediatorLiveData<Boolean> result = new MediatorLiveData<>();
-                final LiveData<Integer> gasTankLevel = gasTankLevel();
                 final LiveData<Boolean> canPurchaseSku = billingDataSource.canPurchase(sku);
                 result.addSource(gasTankLevel, level ->
                         combineGasAndCanPurchaseData(result, gasTankLevel, canPurchaseSku));
@@ -216,50 +345,65 @@ public class TrivialDriveRepository {
         }
     }
 
-    private void combineGasAndSubscriptionData(
-            MediatorLiveData<Integer> result,
-            LiveData<Integer> gasTankLevel,
-            LiveData<Boolean> monthlySubscription,
-            LiveData<Boolean> yearlySubscription
-    ) {
-        Boolean isMonthlySubscription = monthlySubscription.getValue();
-        Boolean isYearlySubscription = yearlySubscription.getValue();
+    private void combineGasAndSubscriptionData() {
+        gasTankLevelRecomputations.incrementAndGet();
+        Boolean isMonthlySubscription = monthlySubPurchased.getValue();
+        Boolean isYearlySubscription = yearlySubPurchased.getValue();
         if (
             null == isMonthlySubscription ||
             null == isYearlySubscription
         ) return; // do not emit
 
+        Integer level;
         if (isMonthlySubscription || isYearlySubscription) {
-            result.setValue(GAS_TANK_INFINITE);
+            level = GAS_TANK_INFINITE;
         } else {
-            Integer gasTankLevelValue = gasTankLevel.getValue();
-            if (null == gasTankLevelValue) return;
-                result.setValue(gasTankLevelValue);
+            level = gameStateModel.gasTankLevel().getValue();
+            if (null == level) return;
         }
+        // distinct until changed
+        if (!level.equals(gasTankLevel.getValue())) {
+            gasTankLevelEmissions.incrementAndGet();
+            gasTankLevel.setValue(level);
+        }
+    }
+
+    /**
+     * Combines the results from our subscription LiveData with our gas tank level to get our real
+     * gas tank level. This is set up once; since it's a MediatorLiveData, it only subscribes to
+     * its sources while someone is observing it.
+     */
+    private void setupGasTankLevel() {
+        gasTankLevel.addSource(gameStateModel.gasTankLevel(),
+                level -> combineGasAndSubscriptionData());
+        gasTankLevel.addSource(monthlySubPurchased,
+                subPurchased -> combineGasAndSubscriptionData());
+        gasTankLevel.addSource(yearlySubPurchased,
+                subPurchased -> combineGasAndSubscriptionData());
     }
 
     /**
-     * Combine the results from our subscription LiveData with our gas tank level to get our real
-     * gas tank level.
+     * The gas tank level by game logic. Every caller gets the same shared LiveData, which only
+     * emits when the level actually changes.
      *
      * @return LiveData that represents the gasTankLevel by game logic.
      */
     public LiveData<Integer> gasTankLevel() {
-        final MediatorLiveData<Integer> result = new MediatorLiveData<>();
-        final LiveData<Integer> gasTankLevel = gameStateModel.gasTankLevel();
-        final LiveData<Boolean> monthlySubPurchased = isPurchased(SKU_INFINITE_GAS_MONTHLY);
-        final LiveData<Boolean> yearlySubPurchased = isPurchased(SKU_INFINITE_GAS_YEARLY);
-
-        result.addSource(gasTankLevel, level ->
-                combineGasAndSubscriptionData(result, gasTankLevel,
-                        monthlySubPurchased, yearlySubPurchased));
-        result.addSource(monthlySubPurchased, subPurchased ->
-                combineGasAndSubscriptionData(result, gasTankLevel,
-                        monthlySubPurchased, yearlySubPurchased));
-        result.addSource(yearlySubPurchased, subPurchased ->
-                combineGasAndSubscriptionData(result, gasTankLevel,
-                        monthlySubPurchased, yearlySubPurchased));
-        return result;
+        return gasTankLevel;
+    }
+
+    /**
+     * @return how many times the shared gas tank level has been recomputed from its sources
+     */
+    public final long getGasTankLevelRecomputations() {
+        return gasTankLevelRecomputations.get();
+    }
+
+    /**
+     * @return how many times the shared gas tank level has emitted a new value
+     */
+    public final long getGasTankLevelEmissions() {
+        return gasTankLevelEmissions.get();
     }
 
     public final void refreshPurchases() {
@@ -270,6 +414,10 @@ public class TrivialDriveRepository {
         return billingDataSource;
     }
 
+    public final LifecycleObserver getGameStateLifecycleObserver() {
+        return gameStateModel;
+    }
+
     // There's lots of information in SkuDetails, but our app only needs a few things, since our
     // goods never go on sale, have introductory pricing, etc.
     public final LiveData<String> getSkuTitle(String sku) {
@@ -296,6 +444,25 @@ public class TrivialDriveRepository {
         return billingDataSource.getBillingFlowInProcess();
     }
 
+    /**
+     * Dumps the latency percentiles of each stage of the purchase funnel, from launchBillingFlow to
+     * the entitlement being granted.
+     *
+     * @return a human readable report, also written to the log
+     */
+    public final String dumpPurchaseLatencyPercentiles() {
+        return purchaseTracer.dumpLatencyPercentiles();
+    }
+
+    /**
+     * Dumps the queue depth and the wait and run time histograms of each lane of the scheduler.
+     *
+     * @return a human readable report, also written to the log
+     */
+    public final String dumpSchedulerStats() {
+        return scheduler.dumpLaneStats();
+    }
+
     public final void debugConsumePremium() {
         billingDataSource.consumeInappPurchase(SKU_PREMIUM);
     }
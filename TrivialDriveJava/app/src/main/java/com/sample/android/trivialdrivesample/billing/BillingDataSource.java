@@ -49,6 +49,7 @@ import com.sample.android.trivialdrivesample.ui.SingleMediatorLiveEvent;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -118,6 +119,10 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
     final private SingleMediatorLiveEvent<List<String>> purchaseConsumed =
             new SingleMediatorLiveEvent<>();
     final private MutableLiveData<Boolean> billingFlowInProcess = new MutableLiveData<>();
+    // Traces purchases from launchBillingFlow until the entitlement is delivered.
+    final private PurchaseTracer purchaseTracer = new PurchaseTracer();
+    // Records consumable purchases so they are credited exactly once; optional.
+    private volatile ConsumptionLedger consumptionLedger;
     // how long before the data source tries to reconnect to Google play
     private long reconnectMilliseconds = RECONNECT_TIMER_START_MILLISECONDS;
     // when was the last successful SkuDetailsResponse?
@@ -267,6 +272,27 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
         return purchaseConsumed;
     }
 
+    /**
+     * The tracer that follows purchases from launchBillingFlow through consumption or
+     * acknowledgement. Consumed purchases are handed off to the application, which is expected to
+     * complete the trace once it has granted the entitlement.
+     *
+     * @return the purchase funnel tracer
+     */
+    public final PurchaseTracer getPurchaseTracer() {
+        return purchaseTracer;
+    }
+
+    /**
+     * Sets the ledger that records consumable purchases before they are consumed and credits them
+     * once they have been. This should be set before purchases are first refreshed.
+     *
+     * @param consumptionLedger the ledger, or null to consume purchases without one
+     */
+    public void setConsumptionLedger(@Nullable ConsumptionLedger consumptionLedger) {
+        this.consumptionLedger = consumptionLedger;
+    }
+
     /**
      * Returns whether or not the user has purchased a SKU. It does this by returning a
      * MediatorLiveData that returns true if the SKU is in the PURCHASED state and the Purchase has
@@ -430,13 +456,15 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
         purchases.
      */
     public void refreshPurchasesAsync() {
+        final long queryStartedMillis = System.currentTimeMillis();
         billingClient.queryPurchasesAsync(BillingClient.SkuType.INAPP,
                 (billingResult, list) -> {
                     if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
                         Log.e(TAG, "Problem getting purchases: " +
                                 billingResult.getDebugMessage());
                     } else {
-                        processPurchaseList(list, knownInappSKUs);
+                        processPurchaseList(list, knownInappSKUs, Collections.emptyMap());
+                        reconcileConsumptionLedger(list, queryStartedMillis);
                     }
                 });
         billingClient.queryPurchasesAsync(BillingClient.SkuType.SUBS,
@@ -445,13 +473,32 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                         Log.e(TAG, "Problem getting subscriptions: " +
                                 billingResult.getDebugMessage());
                     } else {
-                        processPurchaseList(list, knownSubscriptionSKUs);
+                        processPurchaseList(list, knownSubscriptionSKUs,
+                                Collections.emptyMap());
                     }
 
                 });
         Log.d(TAG, "Refreshing purchases started.");
     }
 
+    /*
+        Anything the ledger still has pending that isn't in the list of owned in-app purchases has
+        been consumed, even if we never heard back from consumeAsync. Only purchases that were
+        pending before the query started can be judged by it.
+     */
+    private void reconcileConsumptionLedger(@Nullable List<Purchase> ownedPurchases,
+            long queryStartedMillis) {
+        final ConsumptionLedger ledger = consumptionLedger;
+        if (null == ledger) return;
+        Set<String> ownedPurchaseTokens = new HashSet<>();
+        if (null != ownedPurchases) {
+            for (Purchase purchase : ownedPurchases) {
+                ownedPurchaseTokens.add(purchase.getPurchaseToken());
+            }
+        }
+        ledger.reconcile(ownedPurchaseTokens, queryStartedMillis);
+    }
+
     /**
      * Used internally to get purchases from a requested set of SKUs. This is particularly important
      * when changing subscriptions, as onPurchasesUpdated won't update the purchase state of a
@@ -587,8 +634,11 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
      * @param purchases    the List of purchases to process.
      * @param skusToUpdate a list of skus that we want to update the state from --- this allows us
      *                     to set the state of non-returned SKUs to UNPURCHASED.
+     * @param traces       the traces of the billing flows the purchases came from, by purchase
+     *                     token; empty for a refresh
      */
-    private void processPurchaseList(List<Purchase> purchases, List<String> skusToUpdate) {
+    private void processPurchaseList(List<Purchase> purchases, List<String> skusToUpdate,
+            @NonNull Map<String, PurchaseTracer.TraceContext> traces) {
         HashSet<String> updatedSkus = new HashSet<>();
         if (null != purchases) {
             for (final Purchase purchase : purchases) {
@@ -605,9 +655,16 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                 // This check is best performed on your server.
                 int purchaseState = purchase.getPurchaseState();
                 if (purchaseState == Purchase.PurchaseState.PURCHASED) {
-                    if (!isSignatureValid(purchase)) {
+                    final PurchaseTracer.TraceContext trace =
+                            traces.get(purchase.getPurchaseToken());
+                    final long verifyStartNanos = purchaseTracer.now();
+                    boolean signatureValid = isSignatureValid(purchase);
+                    purchaseTracer.recordStage(trace, PurchaseTracer.Stage.VERIFY_SIGNATURE,
+                            verifyStartNanos);
+                    if (!signatureValid) {
                         Log.e(TAG, "Invalid signature on purchase. Check to make " +
                                 "sure your public key is correct.");
+                        purchaseTracer.abandonTrace(trace);
                         continue;
                     }
                     // only set the purchased state after we've validated the signature.
@@ -626,11 +683,14 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                         }
                     }
                     if ( isConsumable ) {
-                        consumePurchase(purchase);
+                        consumePurchase(purchase, trace);
                     } else if (!purchase.isAcknowledged()) {
+                        final long acknowledgeStartNanos = purchaseTracer.now();
                         billingClient.acknowledgePurchase(AcknowledgePurchaseParams.newBuilder()
                                 .setPurchaseToken(purchase.getPurchaseToken())
                                 .build(), billingResult -> {
+                            purchaseTracer.recordStage(trace, PurchaseTracer.Stage.ACKNOWLEDGE,
+                                    acknowledgeStartNanos);
                             if (billingResult.getResponseCode()
                                     == BillingClient.BillingResponseCode.OK) {
                                 // purchase acknowledged
@@ -638,6 +698,10 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                                     setSkuState(sku, SkuState.SKU_STATE_PURCHASED_AND_ACKNOWLEDGED);
                                 }
                                 newPurchase.postValue(purchase.getSkus());
+                                // for non-consumables, the acknowledgement is the entitlement
+                                purchaseTracer.endTrace(trace);
+                            } else {
+                                purchaseTracer.abandonTrace(trace);
                             }
                         });
                     }
@@ -665,21 +729,57 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
      * ready to be consumed. If the sku is already being consumed, does nothing.
      *
      * @param purchase purchase to consume
+     * @param trace    the trace of the billing flow the purchase came from, if any
      */
-    private void consumePurchase(@NonNull Purchase purchase) {
+    private void consumePurchase(@NonNull Purchase purchase,
+            @Nullable PurchaseTracer.TraceContext trace) {
         // weak check to make sure we're not already consuming the sku
         if (purchaseConsumptionInProcess.contains(purchase)) {
-            // already consuming
+            // already consuming, and whoever is consuming it doesn't have this trace
+            purchaseTracer.abandonTrace(trace);
             return;
         }
         purchaseConsumptionInProcess.add(purchase);
+        final ConsumptionLedger ledger = consumptionLedger;
+        if (null == ledger) {
+            consumeRecordedPurchase(purchase, null, trace);
+        } else {
+            // the ledger may call back on any thread
+            ledger.recordPendingConsumption(purchase.getPurchaseToken(), purchase.getSkus(),
+                    purchase.getQuantity(),
+                    () -> handler.post(() -> consumeRecordedPurchase(purchase, ledger, trace)),
+                    () -> handler.post(() -> abandonConsumption(purchase, trace)));
+        }
+    }
+
+    /*
+        The purchase couldn't be recorded, so it isn't consumed. It is still owned, so releasing it
+        lets the next refresh try again.
+     */
+    private void abandonConsumption(@NonNull Purchase purchase,
+            @Nullable PurchaseTracer.TraceContext trace) {
+        Log.e(TAG, "Unable to record the purchase before consuming it; will retry on refresh");
+        purchaseConsumptionInProcess.remove(purchase);
+        purchaseTracer.abandonTrace(trace);
+    }
+
+    private void consumeRecordedPurchase(@NonNull Purchase purchase,
+            @Nullable ConsumptionLedger ledger, @Nullable PurchaseTracer.TraceContext trace) {
+        final long consumeStartNanos = purchaseTracer.now();
         billingClient.consumeAsync(ConsumeParams.newBuilder()
                 .setPurchaseToken(purchase.getPurchaseToken())
                 .build(), (billingResult, s) -> {
             // ConsumeResponseListener
             purchaseConsumptionInProcess.remove(purchase);
+            purchaseTracer.recordStage(trace, PurchaseTracer.Stage.CONSUME, consumeStartNanos);
             if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
                 Log.d(TAG, "Consumption successful. Delivering entitlement.");
+                // the application completes the trace once the entitlement is granted
+                purchaseTracer.mark(trace);
+                if (null != ledger) {
+                    ledger.recordConsumed(purchase.getPurchaseToken(), purchase.getSkus(),
+                            purchase.getQuantity(), trace);
+                }
                 purchaseConsumed.postValue(purchase.getSkus());
                 for (String sku: purchase.getSkus()) {
                     // Since we've consumed the purchase
@@ -689,6 +789,7 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                 newPurchase.postValue(purchase.getSkus());
             } else {
                 Log.e(TAG, "Error while consuming: " + billingResult.getDebugMessage());
+                purchaseTracer.abandonTrace(trace);
             }
             Log.d(TAG, "End consumption flow.");
         });
@@ -709,6 +810,7 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
         assert skuDetailsLiveData != null;
         SkuDetails skuDetails = skuDetailsLiveData.getValue();
         if (null != skuDetails) {
+            final PurchaseTracer.TraceContext trace = purchaseTracer.beginTrace(sku);
             if (null != upgradeSkus && upgradeSkus.length > 0) {
                 billingClient.queryPurchasesAsync(BillingClient.SkuType.SUBS,
                         (br, purchasesList) -> {
@@ -744,16 +846,22 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                                     br = billingClient.launchBillingFlow(activity,
                                             billingFlowParamsBuilder.build());
                                     if (br.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                                        purchaseTracer.recordStage(trace,
+                                                PurchaseTracer.Stage.LAUNCH_BILLING_FLOW,
+                                                trace.startNanos);
                                         billingFlowInProcess.postValue(true);
                                     } else {
                                         Log.e(TAG, "Billing failed: + " + br.getDebugMessage());
+                                        purchaseTracer.abandonTrace(trace);
                                     }
                                     break;
                                 case 0:
+                                    purchaseTracer.abandonTrace(trace);
                                     break;
                                 default:
                                     Log.e(TAG, heldSubscriptions.size() +
                                             " subscriptions subscribed to. Upgrade not possible.");
+                                    purchaseTracer.abandonTrace(trace);
                             }
                         });
             } else {
@@ -762,9 +870,12 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                 BillingResult br = billingClient.launchBillingFlow(activity,
                         billingFlowParamsBuilder.build());
                 if (br.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                    purchaseTracer.recordStage(trace, PurchaseTracer.Stage.LAUNCH_BILLING_FLOW,
+                            trace.startNanos);
                     billingFlowInProcess.postValue(true);
                 } else {
                     Log.e(TAG, "Billing failed: + " + br.getDebugMessage());
+                    purchaseTracer.abandonTrace(trace);
                 }
             }
         } else {
@@ -797,7 +908,18 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
         switch (billingResult.getResponseCode()) {
             case BillingClient.BillingResponseCode.OK:
                 if (null != list) {
-                    processPurchaseList(list, null);
+                    // these purchases came from the billing flows we launched
+                    Map<String, PurchaseTracer.TraceContext> traces = new HashMap<>();
+                    for (Purchase purchase : list) {
+                        PurchaseTracer.TraceContext trace =
+                                purchaseTracer.claimTrace(purchase.getSkus());
+                        if (null != trace) {
+                            purchaseTracer.recordSinceMark(trace,
+                                    PurchaseTracer.Stage.PURCHASES_UPDATED);
+                            traces.put(purchase.getPurchaseToken(), trace);
+                        }
+                    }
+                    processPurchaseList(list, null, traces);
                     return;
                 } else {
                     Log.d(TAG, "Null Purchase List Returned from OK response!");
@@ -821,6 +943,8 @@ public class BillingDataSource implements LifecycleObserver, PurchasesUpdatedLis
                 Log.d(TAG, "BillingResult [" + billingResult.getResponseCode() + "]: "
                         + billingResult.getDebugMessage());
         }
+        // the billing flow didn't result in a purchase
+        purchaseTracer.abandonAllTraces();
         billingFlowInProcess.postValue(false);
     }
 
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.trivialdrivesample.billing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lets the application keep a durable record of consumable purchases, so that each one is credited
+ * exactly once. Consumption happens in Google Play and crediting happens in the application, so
+ * either can succeed without the other if the process dies in between. With a ledger:
+ * <p>
+ * 1) The purchase is recorded as pending before it is consumed.
+ * 2) Once the consumption succeeds, the ledger credits it (unless it already has).
+ * 3) Whenever purchases are refreshed, any purchase that was pending before the refresh started
+ * and is no longer owned has been consumed, and is credited then.
+ */
+public interface ConsumptionLedger {
+    /**
+     * Called before a purchase is consumed. The ledger calls proceed, from any thread, once the
+     * purchase has been recorded; the purchase won't be consumed until it has. If it can't be
+     * recorded, the ledger calls onFailed instead, and the purchase is left unconsumed so that it
+     * is tried again at the next refresh.
+     */
+    void recordPendingConsumption(@NonNull String purchaseToken, @NonNull List<String> skus,
+            int quantity, @NonNull Runnable proceed, @NonNull Runnable onFailed);
+
+    /**
+     * Called when Google Play has consumed the purchase.
+     *
+     * @param trace the trace of the billing flow the purchase came from, or null if it was
+     *              restored by a refresh; the ledger ends it once the purchase has been credited
+     */
+    void recordConsumed(@NonNull String purchaseToken, @NonNull List<String> skus, int quantity,
+            @Nullable PurchaseTracer.TraceContext trace);
+
+    /**
+     * Called with the tokens of all in-app purchases that are still owned each time in-app
+     * purchases have been refreshed. A purchase recorded as pending after the query started may be
+     * missing from the result without having been consumed, so it must be left for a later query.
+     *
+     * @param queryStartedMillis the wall clock time at which the query was started
+     */
+    void reconcile(@NonNull Set<String> ownedPurchaseTokens, long queryStartedMillis);
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sample.android.trivialdrivesample.billing;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lightweight tracer for the purchase funnel, from the moment we launch the billing flow to the
+ * moment the entitlement has been granted by the game.
+ * <p>
+ * A TraceContext is created when a billing flow is launched for a SKU. Since the Billing Library
+ * only hands us Purchase objects, onPurchasesUpdated claims the context using the SKUs in the
+ * purchase, and from then on it is passed along with the purchase as it moves through the
+ * BillingDataSource and the repository. Purchases that are restored by a refresh never claim one,
+ * so they can't add stages to an unrelated trace for the same SKU.
+ * <p>
+ * Each stage records its start and end timestamps into a fixed-size ring buffer, so the tracer
+ * never grows no matter how many purchases are made. Percentiles are computed from whatever is
+ * currently in the buffer.
+ * <p>
+ * All timestamps come from {@link SystemClock#elapsedRealtimeNanos()}, so they keep counting while
+ * the device sleeps (the user can take their time in the Play billing UI).
+ */
+public class PurchaseTracer {
+    private static final String TAG = "TrivialDrive:" + PurchaseTracer.class.getSimpleName();
+    private static final int DEFAULT_CAPACITY = 512;
+    private static final double[] PERCENTILES = new double[]{50.0, 90.0, 99.0};
+
+    public enum Stage {
+        // launchBillingFlow until the Billing Library has shown the purchase UI
+        LAUNCH_BILLING_FLOW,
+        // purchase UI shown until onPurchasesUpdated is called
+        PURCHASES_UPDATED,
+        // local signature check of the purchase
+        VERIFY_SIGNATURE,
+        // consumeAsync until its response
+        CONSUME,
+        // acknowledgePurchase until its response
+        ACKNOWLEDGE,
+        // consumption reported until the application starts crediting it
+        PURCHASE_CONSUMED,
+        // the repository asks the game to grant the entitlement until the write completes
+        GRANT_ENTITLEMENT,
+        // the whole funnel, from launchBillingFlow to the entitlement being granted
+        END_TO_END
+    }
+
+    /**
+     * Carries the identity of a single purchase through the funnel. The mark is used to time
+     * hand-offs between layers, where the start and the end of a stage happen in different classes.
+     */
+    public static final class TraceContext {
+        final long traceId;
+        final String sku;
+        final long startNanos;
+        private volatile long markNanos;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        TraceContext(long traceId, @NonNull String sku, long startNanos) {
+            this.traceId = traceId;
+            this.sku = sku;
+            this.startNanos = startNanos;
+            this.markNanos = startNanos;
+        }
+
+        public long getTraceId() {
+            return traceId;
+        }
+
+        public String getSku() {
+            return sku;
+        }
+
+        void mark() {
+            markNanos = SystemClock.elapsedRealtimeNanos();
+        }
+
+        /*
+            Returns true the first time the trace is ended or abandoned.
+         */
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Latency percentiles for a single stage, in milliseconds.
+     */
+    public static final class StageLatency {
+        public final Stage stage;
+        public final int count;
+        public final double p50Millis;
+        public final double p90Millis;
+        public final double p99Millis;
+
+        StageLatency(Stage stage, int count, double[] percentileMillis) {
+            this.stage = stage;
+            this.count = count;
+            this.p50Millis = percentileMillis[0];
+            this.p90Millis = percentileMillis[1];
+            this.p99Millis = percentileMillis[2];
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-20s n=%-4d p50=%.1fms p90=%.1fms p99=%.1fms",
+                    stage, count, p50Millis, p90Millis, p99Millis);
+        }
+    }
+
+    private final AtomicLong nextTraceId = new AtomicLong();
+    // Traces of billing flows that haven't been claimed by a purchase yet, keyed by SKU.
+    private final Map<String, TraceContext> activeTraces = new HashMap<>();
+    // The ring buffer of recorded stages.
+    private final int capacity;
+    private final long[] spanTraceIds;
+    private final int[] spanStages;
+    private final long[] spanStartNanos;
+    private final long[] spanEndNanos;
+    private long spansRecorded = 0;
+
+    public PurchaseTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PurchaseTracer(int capacity) {
+        this.capacity = capacity;
+        spanTraceIds = new long[capacity];
+        spanStages = new int[capacity];
+        spanStartNanos = new long[capacity];
+        spanEndNanos = new long[capacity];
+    }
+
+    public long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Starts a new trace for the SKU, replacing any trace that was left in flight for it.
+     */
+    @NonNull
+    public TraceContext beginTrace(@NonNull String sku) {
+        TraceContext trace = new TraceContext(nextTraceId.incrementAndGet(), sku, now());
+        synchronized (activeTraces) {
+            activeTraces.put(sku, trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Hands the trace of the billing flow for the first SKU in the list that has one to the
+     * purchase that flow resulted in. Only purchases reported by onPurchasesUpdated may claim a
+     * trace; each trace is claimed at most once, and the caller passes it along with the purchase
+     * from then on.
+     *
+     * @return the trace, or null if this purchase wasn't started by a traced billing flow
+     */
+    @Nullable
+    public TraceContext claimTrace(@Nullable List<String> skus) {
+        if (null == skus) return null;
+        synchronized (activeTraces) {
+            for (String sku : skus) {
+                TraceContext trace = activeTraces.remove(sku);
+                if (null != trace) return trace;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a stage that started at startNanos and ends now. Null traces are ignored, so callers
+     * don't have to care whether the purchase is being traced.
+     */
+    public void recordStage(@Nullable TraceContext trace, @NonNull Stage stage, long startNanos) {
+        if (null == trace) return;
+        long endNanos = now();
+        synchronized (this) {
+            int index = (int) (spansRecorded % capacity);
+            spanTraceIds[index] = trace.traceId;
+            spanStages[index] = stage.ordinal();
+            spanStartNanos[index] = startNanos;
+            spanEndNanos[index] = endNanos;
+            spansRecorded++;
+        }
+        trace.markNanos = endNanos;
+    }
+
+    /**
+     * Marks the point where a trace is handed off to another layer.
+     */
+    public void mark(@Nullable TraceContext trace) {
+        if (null != trace) trace.mark();
+    }
+
+    /**
+     * Records a stage that started at the last mark (or the end of the last stage) and ends now.
+     */
+    public void recordSinceMark(@Nullable TraceContext trace, @NonNull Stage stage) {
+        if (null == trace) return;
+        recordStage(trace, stage, trace.markNanos);
+    }
+
+    /**
+     * Completes the trace, recording the end-to-end latency.
+     */
+    public void endTrace(@Nullable TraceContext trace) {
+        if (null == trace || !trace.finish()) return;
+        removeTrace(trace);
+        recordStage(trace, Stage.END_TO_END, trace.startNanos);
+    }
+
+    /**
+     * Drops the trace without recording the end-to-end latency; used when the user cancels or the
+     * purchase fails, so the funnel numbers only describe successful grants.
+     */
+    public void abandonTrace(@Nullable TraceContext trace) {
+        if (null == trace || !trace.finish()) return;
+        removeTrace(trace);
+    }
+
+    /**
+     * Drops every trace that hasn't been claimed. A billing flow that fails doesn't tell us what
+     * SKU it was for, but there is only ever one billing flow in process at a time.
+     */
+    public void abandonAllTraces() {
+        synchronized (activeTraces) {
+            activeTraces.clear();
+        }
+    }
+
+    /*
+        A trace that hasn't been claimed yet is still waiting for its billing flow.
+     */
+    private void removeTrace(@NonNull TraceContext trace) {
+        synchronized (activeTraces) {
+            if (activeTraces.get(trace.sku) == trace) {
+                activeTraces.remove(trace.sku);
+            }
+        }
+    }
+
+    /**
+     * Computes latency percentiles for every stage from the spans currently in the ring buffer.
+     */
+    @NonNull
+    public StageLatency[] getStageLatencies() {
+        Stage[] stages = Stage.values();
+        long[][] durations = new long[stages.length][];
+        int[] counts = new int[stages.length];
+        synchronized (this) {
+            int size = (int) Math.min(spansRecorded, capacity);
+            for (int i = 0; i < stages.length; i++) {
+                durations[i] = new long[size];
+            }
+            for (int i = 0; i < size; i++) {
+                int stage = spanStages[i];
+                durations[stage][counts[stage]++] = spanEndNanos[i] - spanStartNanos[i];
+            }
+        }
+        StageLatency[] latencies = new StageLatency[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            long[] stageDurations = Arrays.copyOf(durations[i], counts[i]);
+            Arrays.sort(stageDurations);
+            double[] percentileMillis = new double[PERCENTILES.length];
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                percentileMillis[p] = percentile(stageDurations, PERCENTILES[p]) / 1_000_000.0;
+            }
+            latencies[i] = new StageLatency(stages[i], counts[i], percentileMillis);
+        }
+        return latencies;
+    }
+
+    /**
+     * Dumps the per-stage latency percentiles to the log and returns them as a String.
+     */
+    @NonNull
+    public String dumpLatencyPercentiles() {
+        StringBuilder sb = new StringBuilder("Purchase funnel latency:");
+        for (StageLatency latency : getStageLatencies()) {
+            sb.append('\n').append(latency);
+        }
+        String dump = sb.toString();
+        Log.i(TAG, dump);
+        return dump;
+    }
+
+    // Nearest-rank percentile of an already sorted array.
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
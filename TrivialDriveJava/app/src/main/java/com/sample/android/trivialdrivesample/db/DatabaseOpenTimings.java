@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Startup timings of the game state database, for the startup dashboards:
+ * <p>
+ * copy: on first run, copying the prepackaged database out of the assets
+ * open: opening SQLite, validating the schema and running migrations
+ * firstQuery: reading the gas level once the database is open
+ * <p>
+ * Durations are in milliseconds, and are -1 until the stage has happened (copy stays -1 when the
+ * database already existed).
+ */
+public class DatabaseOpenTimings {
+    private volatile long openStartNanos;
+    private volatile long copiedNanos;
+    private volatile long openedNanos;
+    private volatile long firstQueryNanos = -1;
+
+    void onOpenStarted() {
+        openStartNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    // Called by Room once the asset has been copied, before the copy is validated and migrated.
+    void onCopied() {
+        copiedNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    void onOpened() {
+        openedNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    void onFirstQuery(long startNanos) {
+        if (-1 == firstQueryNanos) {
+            firstQueryNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        }
+    }
+
+    public boolean isOpen() {
+        return 0 != openedNanos;
+    }
+
+    public double getCopyMillis() {
+        if (0 == copiedNanos) return -1;
+        return (copiedNanos - openStartNanos) / 1_000_000.0;
+    }
+
+    public double getOpenMillis() {
+        if (0 == openedNanos) return -1;
+        long openStart = 0 == copiedNanos ? openStartNanos : copiedNanos;
+        return (openedNanos - openStart) / 1_000_000.0;
+    }
+
+    public double getFirstQueryMillis() {
+        if (-1 == firstQueryNanos) return -1;
+        return firstQueryNanos / 1_000_000.0;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "copy=%.1fms open=%.1fms firstQuery=%.1fms",
+                getCopyMillis(), getOpenMillis(), getFirstQueryMillis());
+    }
+}
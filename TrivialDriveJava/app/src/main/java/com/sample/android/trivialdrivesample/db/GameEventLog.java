@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes to the gas level: drives, refuels and purchase grants.
+ * <p>
+ * Events are numbered, buffered in memory as they happen, and written to the end of the file in
+ * a single sequential write, which is much cheaper than updating a row in SQLite. A write is only
+ * synced to storage when asked to, which is when a snapshot or a grant depends on it; otherwise
+ * the events sit in the page cache, where they survive the process dying. The game state
+ * store holds a snapshot: the gas level along with the number of the last event it includes, so
+ * on startup only the events after the snapshot are replayed.
+ * <p>
+ * Each record is framed by its length and a CRC32, so a record torn by a crash is detected and
+ * dropped on open. Compaction rewrites the log without the events that are already part of the
+ * snapshot, except for grants, which are kept as an audit trail of every credited purchase. Since
+ * grants are never dropped, only the bytes of the other events count towards compacting the log.
+ * <p>
+ * Appending only takes the log's lock, never the file's, so compacting or writing the log never
+ * holds up a drive.
+ */
+public class GameEventLog {
+    private static final String TAG = "TrivialDrive:" + GameEventLog.class.getSimpleName();
+    public static final int TYPE_DRIVE = 1;
+    public static final int TYPE_REFUEL = 2;
+    public static final int TYPE_GRANT = 3;
+    // Don't bother compacting unless at least this much can be dropped.
+    private static final long COMPACTION_THRESHOLD_BYTES = 64 * 1024;
+    private static final int MAX_RECORD_LENGTH = 4096;
+
+    /**
+     * A single change to the gas level.
+     */
+    public static final class Event {
+        public final long seq;
+        public final long timeMillis;
+        public final int type;
+        // the change that was actually made, and the level after it
+        public final int delta;
+        public final int level;
+        // for grants, the purchase token that was credited
+        @Nullable
+        public final String purchaseToken;
+
+        Event(long seq, long timeMillis, int type, int delta, int level,
+                @Nullable String purchaseToken) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.type = type;
+            this.delta = delta;
+            this.level = level;
+            this.purchaseToken = purchaseToken;
+        }
+    }
+
+    private final File file;
+    // Guards the file; taken by writes and compaction.
+    private final Object fileLock = new Object();
+    private FileChannel channel;
+    // Everything below is guarded by this.
+    private final List<Event> pendingEvents = new ArrayList<>();
+    private long lastSeq = 0;
+    private long snapshotSeq = 0;
+    private long lengthAtSnapshot = 0;
+    // The bytes of the grants written to the file, which compaction keeps.
+    private long grantBytes = 0;
+
+    public GameEventLog(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the log, dropping any torn record at its end, and returns the events after the
+     * snapshot.
+     *
+     * @param snapshotSeq the number of the last event included in the snapshot
+     */
+    @NonNull
+    public List<Event> open(long snapshotSeq) throws IOException {
+        synchronized (fileLock) {
+            List<Event> events = new ArrayList<>();
+            long validLength = readEvents(events);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            if (randomAccessFile.length() > validLength) {
+                Log.w(TAG, "Dropping " + (randomAccessFile.length() - validLength)
+                        + " bytes of torn records");
+                randomAccessFile.setLength(validLength);
+            }
+            channel = randomAccessFile.getChannel();
+            channel.position(validLength);
+            List<Event> tail = new ArrayList<>();
+            long fileGrantBytes = 0;
+            for (Event event : events) {
+                if (event.type == TYPE_GRANT) {
+                    fileGrantBytes += recordLength(event);
+                }
+            }
+            synchronized (this) {
+                this.snapshotSeq = snapshotSeq;
+                lastSeq = snapshotSeq;
+                for (Event event : events) {
+                    lastSeq = Math.max(lastSeq, event.seq);
+                    if (event.seq > snapshotSeq) {
+                        tail.add(event);
+                    }
+                }
+                lengthAtSnapshot = validLength;
+                grantBytes = fileGrantBytes;
+            }
+            return tail;
+        }
+    }
+
+    /**
+     * Appends an event to the in-memory buffer; it is written by the next
+     * {@link #writePending(boolean)}.
+     *
+     * @return the number of the event
+     */
+    public synchronized long append(int type, int delta, int level,
+            @Nullable String purchaseToken) {
+        Event event = new Event(++lastSeq, System.currentTimeMillis(), type, delta, level,
+                purchaseToken);
+        pendingEvents.add(event);
+        return event.seq;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    public synchronized long getSnapshotSeq() {
+        return snapshotSeq;
+    }
+
+    /**
+     * @return the number of events that aren't yet part of the snapshot
+     */
+    public synchronized long getEventsSinceSnapshot() {
+        return lastSeq - snapshotSeq;
+    }
+
+    /**
+     * Writes the buffered events to the end of the file in one write.
+     *
+     * @param sync whether to also sync the file to storage, so the events survive a power loss;
+     *             the events written earlier without a sync are synced along with them
+     */
+    public void writePending(boolean sync) throws IOException {
+        synchronized (fileLock) {
+            List<Event> events;
+            synchronized (this) {
+                events = new ArrayList<>(pendingEvents);
+                pendingEvents.clear();
+            }
+            if (!events.isEmpty()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(events.size() * 48);
+                long writtenGrantBytes = 0;
+                for (Event event : events) {
+                    int start = bytes.size();
+                    writeRecord(bytes, event);
+                    if (event.type == TYPE_GRANT) {
+                        writtenGrantBytes += bytes.size() - start;
+                    }
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                synchronized (this) {
+                    grantBytes += writtenGrantBytes;
+                }
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Records that the snapshot now includes every event up to and including seq.
+     */
+    public void onSnapshot(long seq) {
+        long length;
+        synchronized (fileLock) {
+            length = file.length();
+        }
+        synchronized (this) {
+            if (seq > snapshotSeq) {
+                snapshotSeq = seq;
+                lengthAtSnapshot = length;
+            }
+        }
+    }
+
+    /**
+     * @return true if enough of the log is already part of the snapshot to be worth compacting;
+     * grants don't count, since compaction keeps them
+     */
+    public synchronized boolean needsCompaction() {
+        return lengthAtSnapshot - grantBytes >= COMPACTION_THRESHOLD_BYTES;
+    }
+
+    /**
+     * Rewrites the log keeping only the events after the snapshot, and every grant. The new log is
+     * written to a temporary file which then replaces the old one, so a crash during compaction
+     * leaves one or the other.
+     */
+    public void compact() throws IOException {
+        synchronized (fileLock) {
+            long keepAfter;
+            synchronized (this) {
+                keepAfter = snapshotSeq;
+            }
+            List<Event> events = new ArrayList<>();
+            readEvents(events);
+            File compacted = new File(file.getPath() + ".compact");
+            int kept = 0;
+            long keptGrantBytes = 0;
+            try (FileOutputStream out = new FileOutputStream(compacted)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (Event event : events) {
+                    if (event.seq > keepAfter || event.type == TYPE_GRANT) {
+                        int start = bytes.size();
+                        writeRecord(bytes, event);
+                        if (event.type == TYPE_GRANT) {
+                            keptGrantBytes += bytes.size() - start;
+                        }
+                        kept++;
+                    }
+                }
+                bytes.writeTo(out);
+                out.getFD().sync();
+            }
+            channel.close();
+            boolean replaced = compacted.renameTo(file);
+            // whether or not it was replaced, appends carry on at the end of the log
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            channel.position(randomAccessFile.length());
+            if (!replaced) {
+                compacted.delete();
+                throw new IOException("Unable to replace " + file);
+            }
+            synchronized (this) {
+                lengthAtSnapshot = 0;
+                grantBytes = keptGrantBytes;
+            }
+            Log.i(TAG, "Compacted the event log from " + events.size() + " to " + kept
+                    + " events");
+        }
+    }
+
+    /**
+     * Reads every grant in the log; written events only.
+     */
+    @NonNull
+    public List<Event> readGrants() throws IOException {
+        List<Event> events = new ArrayList<>();
+        synchronized (fileLock) {
+            readEvents(events);
+        }
+        List<Event> grants = new ArrayList<>();
+        for (Event event : events) {
+            if (event.type == TYPE_GRANT) {
+                grants.add(event);
+            }
+        }
+        return grants;
+    }
+
+    /*
+        Reads records until the end of the file or the first one that is torn or corrupt.
+        Returns the length of the valid part of the file.
+     */
+    private long readEvents(@NonNull List<Event> events) throws IOException {
+        if (!file.exists()) return 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_LENGTH) break;
+                byte[] payload = new byte[length];
+                int checksum;
+                try {
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+                DataInputStream record = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                long seq = record.readLong();
+                long timeMillis = record.readLong();
+                int type = record.readByte();
+                int delta = record.readInt();
+                int level = record.readInt();
+                String purchaseToken = record.readBoolean() ? record.readUTF() : null;
+                events.add(new Event(seq, timeMillis, type, delta, level, purchaseToken));
+                validLength += 8 + length;
+            }
+        }
+        return validLength;
+    }
+
+    private static int recordLength(@NonNull Event event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+        writeRecord(bytes, event);
+        return bytes.size();
+    }
+
+    private static void writeRecord(@NonNull ByteArrayOutputStream out, @NonNull Event event)
+            throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(48);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(event.seq);
+        payload.writeLong(event.timeMillis);
+        payload.writeByte(event.type);
+        payload.writeInt(event.delta);
+        payload.writeInt(event.level);
+        payload.writeBoolean(null != event.purchaseToken);
+        if (null != event.purchaseToken) {
+            payload.writeUTF(event.purchaseToken);
+        }
+        byte[] bytes = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        DataOutputStream record = new DataOutputStream(out);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+        record.writeInt((int) crc.getValue());
+    }
+}
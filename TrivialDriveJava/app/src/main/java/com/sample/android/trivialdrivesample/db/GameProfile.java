@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cached state of one player profile. Everything that isn't final is guarded by the lock of
+ * the {@link GameProfiles} it belongs to.
+ */
+final class GameProfile {
+    final String profileId;
+    final GameStateStore store;
+    // Changes requested before the gas level was loaded; they are replayed in order once it is.
+    final List<GasChange> pendingGasChanges = new ArrayList<>();
+    // Work waiting for the gas level to be loaded, e.g. credits for this profile.
+    final List<Runnable> onLoaded = new ArrayList<>();
+    // Waiting for the changes made so far to be written by the next flush.
+    final List<Runnable> onFlushed = new ArrayList<>();
+    // Null until it has been opened, and if it can't be used.
+    GameEventLog eventLog;
+    // Once the log isn't used, the number of its last event. The snapshots written instead of it
+    // include this, so that the log's tail is never replayed over them.
+    long lastLoggedSeq;
+    int gasLevel;
+    int flushedGasLevel;
+    boolean loaded = false;
+    // When the switch to this profile started, while the switch waits for it to load.
+    long switchStartNanos = -1;
+
+    GameProfile(@NonNull String profileId, @NonNull GameStateStore store) {
+        this.profileId = profileId;
+        this.store = store;
+    }
+
+    /**
+     * A change to the gas level that waits for the profile to be loaded.
+     */
+    static final class GasChange {
+        final int type;
+        final int delta;
+        final int limit;
+        final Runnable onComplete;
+        final GameStateModel.ConsumeGasListener listener;
+
+        GasChange(int type, int delta, int limit, @Nullable Runnable onComplete,
+                @Nullable GameStateModel.ConsumeGasListener listener) {
+            this.type = type;
+            this.delta = delta;
+            this.limit = limit;
+            this.onComplete = onComplete;
+            this.listener = listener;
+        }
+    }
+}
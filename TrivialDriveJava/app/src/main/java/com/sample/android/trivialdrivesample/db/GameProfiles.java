@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.MutableLiveData;
+
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+import com.sample.android.trivialdrivesample.scheduler.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The player profiles that are cached in memory, and which one of them is active. A profile is
+ * loaded in the user-interactive lane the first time it is asked for, and stays cached from then
+ * on, so switching back to it only swaps the active profile and republishes its gas level on the
+ * same LiveData.
+ * <p>
+ * Everything here, and the state of every profile, is guarded by {@link #lock}.
+ */
+final class GameProfiles {
+    private static final String TAG = "TrivialDrive:" + GameProfiles.class.getSimpleName();
+    // Profile ids are used in file names.
+    private static final Pattern PROFILE_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    /**
+     * Loads the gas level of a profile; runs in the user-interactive lane.
+     */
+    interface Loader {
+        void load(@NonNull GameProfile profile);
+    }
+
+    final Object lock = new Object();
+    final MutableLiveData<Integer> gasTankLevel = new MutableLiveData<>();
+    final MutableLiveData<String> activeProfileId =
+            new MutableLiveData<>(GameState.DEFAULT_PROFILE);
+    // null if the store only holds the default profile
+    @Nullable
+    private final ProfileGameStateStore profileStore;
+    private final AppScheduler scheduler;
+    private final Loader loader;
+    private final LatencyHistogram switchLatency = new LatencyHistogram();
+    private final Map<String, GameProfile> profiles = new HashMap<>();
+    private GameProfile active;
+
+    /**
+     * Starts out with the default profile active; it isn't loaded until the caller loads it.
+     *
+     * @param store the store of the default profile
+     */
+    GameProfiles(@NonNull GameStateStore store, @NonNull AppScheduler scheduler,
+            @NonNull Loader loader) {
+        this.profileStore = store instanceof ProfileGameStateStore ?
+                (ProfileGameStateStore) store : null;
+        this.scheduler = scheduler;
+        this.loader = loader;
+        active = new GameProfile(GameState.DEFAULT_PROFILE, store);
+        profiles.put(active.profileId, active);
+    }
+
+    static void checkProfileId(@NonNull String profileId) {
+        if (!GameState.DEFAULT_PROFILE.equals(profileId)
+                && !PROFILE_ID_PATTERN.matcher(profileId).matches()) {
+            throw new IllegalArgumentException("Invalid profile id: " + profileId);
+        }
+    }
+
+    /**
+     * @return whether the store can hold profiles other than the default one
+     */
+    boolean supportsProfiles() {
+        return null != profileStore;
+    }
+
+    @NonNull
+    GameProfile activeLocked() {
+        return active;
+    }
+
+    @NonNull
+    List<GameProfile> allLocked() {
+        return new ArrayList<>(profiles.values());
+    }
+
+    /**
+     * Returns null if the store doesn't hold other profiles, or if the profile can't be loaded
+     * right now because the lane is full.
+     */
+    @Nullable
+    GameProfile getOrLoadLocked(@NonNull String profileId) {
+        GameProfile profile = profiles.get(profileId);
+        if (null == profile) {
+            if (null == profileStore) {
+                Log.w(TAG, "Rejected profile " + profileId
+                        + ", the game state store only holds the default profile");
+                return null;
+            }
+            final GameProfile newProfile = new GameProfile(profileId,
+                    profileStore.forProfile(profileId));
+            if (!scheduler.tryExecute(Lane.USER_INTERACTIVE, () -> loader.load(newProfile))) {
+                Log.e(TAG, "Unable to load profile " + profileId + ", the scheduler is backed up");
+                return null;
+            }
+            profiles.put(profileId, newProfile);
+            profile = newProfile;
+        }
+        return profile;
+    }
+
+    /**
+     * Makes the profile the active one, publishing its gas level if it has been loaded; otherwise
+     * that happens in {@link #onLoadedLocked}.
+     *
+     * @param startNanos when the switch was asked for
+     */
+    void activateLocked(@NonNull GameProfile profile, long startNanos) {
+        active = profile;
+        profile.switchStartNanos = startNanos;
+        if (profile.loaded) {
+            gasTankLevel.postValue(profile.gasLevel);
+            recordSwitchLocked(profile);
+        }
+        activeProfileId.postValue(profile.profileId);
+    }
+
+    /**
+     * Called once the profile has been loaded.
+     */
+    void onLoadedLocked(@NonNull GameProfile profile) {
+        if (profile == active) {
+            gasTankLevel.postValue(profile.gasLevel);
+            recordSwitchLocked(profile);
+        }
+    }
+
+    /**
+     * Publishes the gas level of the profile, if it is the active one.
+     */
+    void publishLocked(@NonNull GameProfile profile) {
+        if (profile == active) {
+            gasTankLevel.postValue(profile.gasLevel);
+        }
+    }
+
+    /**
+     * @return the time from a switch until the new profile's gas level has been published
+     */
+    @NonNull
+    LatencyHistogram getSwitchLatency() {
+        return switchLatency;
+    }
+
+    private void recordSwitchLocked(@NonNull GameProfile profile) {
+        if (profile.switchStartNanos >= 0) {
+            switchLatency.record(SystemClock.elapsedRealtimeNanos() - profile.switchStartNanos);
+            profile.switchStartNanos = -1;
+        }
+    }
+}
@@ -17,21 +17,30 @@ package com.sample.android.trivialdrivesample.db;
 
 import androidx.annotation.NonNull;
 import androidx.room.Entity;
-import androidx.room.PrimaryKey;
 
 /*
-    A very simple key-value store for integers built using Room, since we're storing just a tiny
-    bit of data.
+    A very simple key-value store built using Room, since we're storing just a tiny bit of data.
+    Integer and long values live in the value column, and string values in the stringValue column.
+    Each player profile has its own set of keys; the primary key starts with the profile, so it also
+    serves as the index for reading all of a profile's values.
  */
-@Entity
+@Entity(primaryKeys = {"profileId", "key"})
 public class GameState {
-    public GameState(String key, Integer value) {
+    // The profile of the game state that was there before there were profiles.
+    public static final String DEFAULT_PROFILE = "";
+
+    public GameState(@NonNull String profileId, @NonNull String key, Long value,
+            String stringValue) {
+        this.profileId = profileId;
         this.key = key;
         this.value = value;
+        this.stringValue = stringValue;
     }
 
-    @PrimaryKey
+    @NonNull
+    public String profileId;
     @NonNull
     public String key;
-    public Integer value;
+    public Long value;
+    public String stringValue;
 }
@@ -17,22 +17,63 @@ package com.sample.android.trivialdrivesample.db;
 
 import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+import java.util.Map;
 
 @Dao
-public interface GameStateDao {
-    @Query("SELECT `value` FROM GameState WHERE `key` = :key LIMIT 1")
-    LiveData<Integer> observe(String key);
+public abstract class GameStateDao {
+    @Query("SELECT `value` FROM GameState WHERE `profileId` = :profileId AND `key` = :key LIMIT 1")
+    public abstract LiveData<Integer> observe(String profileId, String key);
+
+    @Query("SELECT `value` FROM GameState WHERE `profileId` = :profileId AND `key` = :key LIMIT 1")
+    public abstract Integer get(String profileId, String key);
+
+    @Query("REPLACE INTO GameState(`profileId`, `key`, `value`) VALUES(:profileId,:key,:value)")
+    public abstract void put(String profileId, String key, int value);
+
+    @Query("UPDATE GameState SET `value`=`value`-1 WHERE `profileId`=:profileId AND `key`=:key "
+            + "AND `value` > :minValue")
+    public abstract int decrement(String profileId, String key, int minValue);
+
+    @Query("UPDATE GameState SET `value`=`value`+1 WHERE `profileId`=:profileId AND `key`=:key "
+            + "AND `value` < :maxValue")
+    public abstract int increment(String profileId, String key, int maxValue);
+
+    /*
+        Bulk operations. A single query or transaction no matter how many keys are involved, and a
+        single invalidation for observers.
+     */
+
+    @Query("SELECT * FROM GameState WHERE `profileId` = :profileId AND `key` IN (:keys)")
+    public abstract List<GameState> getAll(String profileId, List<String> keys);
+
+    @Query("SELECT * FROM GameState WHERE `profileId` = :profileId AND `key` IN (:keys)")
+    public abstract LiveData<List<GameState>> observeAll(String profileId, List<String> keys);
 
-    @Query("SELECT `value` FROM GameState WHERE `key` = :key LIMIT 1")
-    Integer get(String key);
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public abstract void putAll(List<GameState> states);
 
-    @Query("REPLACE INTO GameState VALUES(:key,:value)")
-    void put(String key, int value);
+    @Query("INSERT OR IGNORE INTO GameState(`profileId`, `key`, `value`) "
+            + "VALUES(:profileId, :key, 0)")
+    abstract void insertIfAbsent(String profileId, String key);
 
-    @Query("UPDATE GameState SET `value`=`value`-1 WHERE `key`=:key AND `value` > :minValue")
-    int decrement(String key, int minValue);
+    @Query("UPDATE GameState SET `value`=IFNULL(`value`, 0)+:delta "
+            + "WHERE `profileId`=:profileId AND `key`=:key")
+    abstract int add(String profileId, String key, long delta);
 
-    @Query("UPDATE GameState SET `value`=`value`+1 WHERE `key`=:key AND `value` < :maxValue")
-    int increment(String key, int maxValue);
+    /**
+     * Adds each delta to its key in one transaction. Keys that don't exist yet start at 0.
+     */
+    @Transaction
+    public void applyDeltas(String profileId, Map<String, Long> deltas) {
+        for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+            insertIfAbsent(profileId, delta.getKey());
+            add(profileId, delta.getKey(), delta.getValue());
+        }
+    }
 }
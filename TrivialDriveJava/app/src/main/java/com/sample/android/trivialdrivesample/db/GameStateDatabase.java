@@ -15,10 +15,115 @@
  */
 package com.sample.android.trivialdrivesample.db;
 
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.room.Database;
+import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
-@Database(entities = {GameState.class}, version = 1)
+@Database(entities = {GameState.class, PurchaseCredit.class}, version = 5)
 public abstract class GameStateDatabase extends RoomDatabase {
+    static final String DATABASE_NAME = "GameState.db";
+    static final String INITIAL_STATE_ASSET = "database/initialgamestate.db";
+
     public abstract GameStateDao gameStateDao();
+
+    public abstract PurchaseCreditDao purchaseCreditDao();
+
+    /*
+        Version 2 adds string values. The prepackaged initialgamestate.db is still at version 1, so
+        the migrations also run on first launch.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE GameState ADD COLUMN `stringValue` TEXT");
+        }
+    };
+
+    /*
+        Version 3 adds the purchase credit ledger.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `PurchaseCredit` ("
+                    + "`purchaseToken` TEXT NOT NULL, `sku` TEXT NOT NULL, "
+                    + "`units` INTEGER NOT NULL, `state` INTEGER NOT NULL, "
+                    + "`createdTime` INTEGER NOT NULL, `creditedTime` INTEGER NOT NULL, "
+                    + "PRIMARY KEY(`purchaseToken`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_PurchaseCredit_state` "
+                    + "ON `PurchaseCredit` (`state`)");
+        }
+    };
+
+    /*
+        Version 4 adds player profiles; the profile becomes part of the primary key, so the table is
+        rebuilt. Existing state belongs to the default profile.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `GameState_new` ("
+                    + "`profileId` TEXT NOT NULL, `key` TEXT NOT NULL, `value` INTEGER, "
+                    + "`stringValue` TEXT, PRIMARY KEY(`profileId`, `key`))");
+            database.execSQL("INSERT INTO `GameState_new` (`profileId`, `key`, `value`, "
+                    + "`stringValue`) SELECT '" + GameState.DEFAULT_PROFILE + "', `key`, `value`, "
+                    + "`stringValue` FROM `GameState`");
+            database.execSQL("DROP TABLE `GameState`");
+            database.execSQL("ALTER TABLE `GameState_new` RENAME TO `GameState`");
+        }
+    };
+
+    /*
+        Version 5 records the profile that each purchase is credited to. The table is rebuilt so
+        that the new column doesn't carry a default that the entity doesn't declare; existing
+        credits belong to the default profile.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `PurchaseCredit_new` ("
+                    + "`purchaseToken` TEXT NOT NULL, `sku` TEXT NOT NULL, "
+                    + "`units` INTEGER NOT NULL, `state` INTEGER NOT NULL, "
+                    + "`createdTime` INTEGER NOT NULL, `creditedTime` INTEGER NOT NULL, "
+                    + "`profileId` TEXT NOT NULL, PRIMARY KEY(`purchaseToken`))");
+            database.execSQL("INSERT INTO `PurchaseCredit_new` (`purchaseToken`, `sku`, `units`, "
+                    + "`state`, `createdTime`, `creditedTime`, `profileId`) SELECT "
+                    + "`purchaseToken`, `sku`, `units`, `state`, `createdTime`, `creditedTime`, '"
+                    + GameState.DEFAULT_PROFILE + "' FROM `PurchaseCredit`");
+            database.execSQL("DROP TABLE `PurchaseCredit`");
+            database.execSQL("ALTER TABLE `PurchaseCredit_new` RENAME TO `PurchaseCredit`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_PurchaseCredit_state` "
+                    + "ON `PurchaseCredit` (`state`)");
+        }
+    };
+
+    static final Migration[] MIGRATIONS = new Migration[]{MIGRATION_1_2, MIGRATION_2_3,
+            MIGRATION_3_4, MIGRATION_4_5};
+
+    /**
+     * Builds the game state database. On first run, it is created from a prepackaged asset that
+     * holds the initial state of the game: a full tank.
+     *
+     * @param openTimings if not null, records when the asset has been copied
+     */
+    static GameStateDatabase create(@NonNull Context context,
+            @Nullable DatabaseOpenTimings openTimings) {
+        return Room.databaseBuilder(context, GameStateDatabase.class, DATABASE_NAME)
+                .createFromAsset(INITIAL_STATE_ASSET, new PrepackagedDatabaseCallback() {
+                    @Override
+                    public void onOpenPrepackagedDatabase(@NonNull SupportSQLiteDatabase db) {
+                        if (null != openTimings) {
+                            openTimings.onCopied();
+                        }
+                    }
+                })
+                .addMigrations(MIGRATIONS)
+                .build();
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A typed key into the game state. Integer and long values share the integer column of the
+ * GameState table, and strings are stored in their own column, so the type of a key only decides
+ * how its value is read and written.
+ *
+ * @param <T> Integer, Long or String
+ */
+public final class GameStateKey<T> {
+    public enum Type {
+        INT,
+        LONG,
+        STRING
+    }
+
+    @NonNull
+    public final String name;
+    @NonNull
+    public final Type type;
+
+    private GameStateKey(@NonNull String name, @NonNull Type type) {
+        this.name = name;
+        this.type = type;
+    }
+
+    public static GameStateKey<Integer> intKey(@NonNull String name) {
+        return new GameStateKey<>(name, Type.INT);
+    }
+
+    public static GameStateKey<Long> longKey(@NonNull String name) {
+        return new GameStateKey<>(name, Type.LONG);
+    }
+
+    public static GameStateKey<String> stringKey(@NonNull String name) {
+        return new GameStateKey<>(name, Type.STRING);
+    }
+
+    boolean isNumeric() {
+        return type != Type.STRING;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof GameStateKey)) return false;
+        GameStateKey<?> other = (GameStateKey<?>) o;
+        return name.equals(other.name) && type == other.type;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + type.hashCode();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return name + ":" + type;
+    }
+}
@@ -16,48 +16,607 @@
 package com.sample.android.trivialdrivesample.db;
 
 import android.app.Application;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.LiveData;
-import androidx.room.Room;
+import androidx.lifecycle.OnLifecycleEvent;
+import androidx.lifecycle.Transformations;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+import com.sample.android.trivialdrivesample.scheduler.LatencyHistogram;
 
-public class GameStateModel {
-    final GameStateDao gameStateDao;
-    final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
-    final static private String GAS_LEVEL = "gas";
-    final LiveData<Integer> gasTankLevel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-    public GameStateModel(@NonNull Application application) {
-        // This creates our DB and populates our game state database with the initial state of
-        // a full tank
-        GameStateDatabase db = Room.databaseBuilder(application,
-                GameStateDatabase.class, "GameState.db")
-                .createFromAsset("database/initialgamestate.db")
-                .build();
-        gameStateDao = db.gameStateDao();
-        gasTankLevel = gameStateDao.observe(GAS_LEVEL);
+/**
+ * The game state model keeps the gas level in memory and treats that as the source of truth. Every
+ * change is applied atomically with its min/max clamp and published immediately, and the database
+ * is only written behind the scenes: changes made within FLUSH_DELAY_MILLISECONDS of each other are
+ * coalesced into a single write of the latest level.
+ * <p>
+ * Since writes are deferred, the model acts as a LifecycleObserver so that it can flush pending
+ * writes when the app goes into the background, which is the last point at which we can reliably
+ * run before the process may be killed.
+ * <p>
+ * The values are stored in a {@link GameStateStore}; by default that is Room, but the game can also
+ * run on a memory-mapped file, which is much cheaper to open.
+ * <p>
+ * Purchased gas is credited through a ledger of purchase tokens kept in the game state database.
+ * Marking a purchase as credited and writing the new gas level happen in the same transaction, so
+ * each purchase is credited exactly once, even if the process dies after the purchase has been
+ * consumed or a consumption is reported twice. (With the memory-mapped store the gas level lives
+ * outside of the database, so the write can't be part of the transaction; it is made inside it, so
+ * a crash at the wrong moment can at worst credit a purchase twice, never lose it.)
+ * <p>
+ * Work runs on the app's shared {@link AppScheduler}: loading, flushing and bulk writes in the
+ * user-interactive lane, crediting purchases in the billing lane, and reconciling the ledger with
+ * restored purchases in the reconciliation lane.
+ * <p>
+ * The database is opened in the user-interactive lane as soon as the model is created, before
+ * anything queries it, so that copying the initial state from the assets, validating the schema
+ * and running migrations never happen on whichever thread happens to touch it first. Observers get
+ * the same, already open, instance. The timings are available from {@link #getOpenTimings()}.
+ * <p>
+ * Every change to the gas level is also appended to a {@link GameEventLog}. Appending is cheap, so
+ * the level itself is only written to the store as a snapshot every so often (and when the app
+ * stops); on startup, the events after the snapshot are replayed. The grants in the log are an
+ * audit trail that can be checked against the credit ledger with {@link #auditCredits()}. If the
+ * log can't be used, every flush writes the level to the store instead.
+ * <p>
+ * Game state belongs to a player profile. Profiles that have been used are kept loaded in memory,
+ * so switching to one of them just swaps the active profile: the LiveData handed out by the model
+ * stay the same and are republished from the cache, without querying the database. The latency of
+ * each switch is recorded in {@link #getProfileSwitchLatency()}. Drive commands and purchases are
+ * applied to the profile that was active when they were made, even if another profile is active by
+ * the time they are applied. Nothing ever waits for a profile to load: changes to a profile that
+ * is still loading are queued, and applied in order once it has been.
+ * <p>
+ * The model applies the changes to the gas level; the profile cache lives in {@link GameProfiles},
+ * writing the level and its event log in {@link GasLevelPersistence}, and the credit ledger in
+ * {@link GasCreditLedger}. They all share the lock of the profiles.
+ */
+public class GameStateModel implements LifecycleObserver {
+    private static final String TAG = "TrivialDrive:" + GameStateModel.class.getSimpleName();
+    private static final long FLUSH_DELAY_MILLISECONDS = 500L;
+    // The initial state of the game (a full tank), matching database/initialgamestate.db
+    static final int INITIAL_GAS_LEVEL = 4;
+    final Application application;
+    final GameStateStore gameStateStore;
+    private final GameStateDatabase database;
+    private final DatabaseOpenTimings openTimings = new DatabaseOpenTimings();
+    final AppScheduler scheduler;
+    private final GameProfiles profiles;
+    private final GasLevelPersistence persistence;
+    private final GasCreditLedger creditLedger;
+    // Guarded by the profiles' lock.
+    private boolean flushScheduled = false;
+
+    /**
+     * Receives the result of {@link #consumeGas(String, int, ConsumeGasListener)}.
+     */
+    public interface ConsumeGasListener {
+        /**
+         * @param gasLevel the new gas level, or -1 if there wasn't any gas to use
+         */
+        void onGasConsumed(int gasLevel);
+    }
+
+    /**
+     * The differences between the grants in the event log and the credits in the ledger.
+     */
+    public static final class CreditAudit {
+        // credited in the ledger, but never granted in the log
+        public final List<String> missingGrants;
+        // granted in the log, but not credited in the ledger
+        public final List<String> unexpectedGrants;
+
+        CreditAudit(List<String> missingGrants, List<String> unexpectedGrants) {
+            this.missingGrants = missingGrants;
+            this.unexpectedGrants = unexpectedGrants;
+        }
+
+        public boolean isConsistent() {
+            return missingGrants.isEmpty() && unexpectedGrants.isEmpty();
+        }
+    }
+
+    public enum Backend {
+        ROOM,
+        MAPPED_FILE
+    }
+
+    public GameStateModel(@NonNull Application application, @NonNull AppScheduler scheduler) {
+        this(application, Backend.ROOM, scheduler);
+    }
+
+    public GameStateModel(@NonNull Application application, @NonNull Backend backend,
+            @NonNull AppScheduler scheduler) {
+        this(application, null, backend, scheduler);
+    }
+
+    /*
+        Tests pass in their own database, e.g. an in-memory one; otherwise the app's database is
+        built here. Building the database is cheap; Room doesn't open it until it is first used. It
+        is always used for the credit ledger, even with the memory-mapped store.
+     */
+    GameStateModel(@NonNull Application application, @Nullable GameStateDatabase database,
+            @NonNull Backend backend, @NonNull AppScheduler scheduler) {
+        this.application = application;
+        this.scheduler = scheduler;
+        // This creates our DB and populates our game state database with the initial state of a
+        // full tank
+        this.database = null == database ?
+                GameStateDatabase.create(application, openTimings) : database;
+        this.gameStateStore = createStore(backend);
+        profiles = new GameProfiles(gameStateStore, scheduler, this::loadProfile);
+        persistence = new GasLevelPersistence(profiles.lock, application.getFilesDir(),
+                scheduler);
+        creditLedger = new GasCreditLedger(this.database, profiles, persistence, scheduler);
+        final GameProfile profile;
+        synchronized (profiles.lock) {
+            profile = profiles.activeLocked();
+        }
+        scheduler.execute(Lane.USER_INTERACTIVE, this::prewarmDatabase);
+        scheduler.execute(Lane.USER_INTERACTIVE, () -> loadProfile(profile));
+    }
+
+    private GameStateStore createStore(@NonNull Backend backend) {
+        if (backend == Backend.MAPPED_FILE) {
+            try {
+                return new MappedGameStateStore(
+                        new File(application.getFilesDir(), "GameState.map"),
+                        Collections.singletonMap(GasLevelPersistence.GAS_LEVEL,
+                                INITIAL_GAS_LEVEL));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the mapped game state, falling back to Room", e);
+            }
+        }
+        return new RoomGameStateStore(database);
+    }
+
+    /*
+        Runs in the user-interactive lane before anything else. Opening the writable database
+        copies the asset on first run, validates the schema and runs any migrations.
+     */
+    private void prewarmDatabase() {
+        openTimings.onOpenStarted();
+        try {
+            database.getOpenHelper().getWritableDatabase();
+        } catch (RuntimeException e) {
+            // leave it to the first query to fail loudly
+            Log.e(TAG, "Unable to prewarm the game state database", e);
+            return;
+        }
+        openTimings.onOpened();
+    }
+
+    /**
+     * @return how long it took to copy, open and first query the game state database
+     */
+    @NonNull
+    public DatabaseOpenTimings getOpenTimings() {
+        return openTimings;
+    }
+
+    /*
+        Runs in the user-interactive lane. The default profile is loaded as soon as the model is
+        created, right after the database has been opened. The changes that were queued while it
+        loaded are applied in order.
+     */
+    private void loadProfile(@NonNull GameProfile profile) {
+        GasLevelPersistence.Loaded loaded = persistence.load(profile, INITIAL_GAS_LEVEL,
+                GameState.DEFAULT_PROFILE.equals(profile.profileId) ? openTimings : null);
+        List<Runnable> completions = new ArrayList<>();
+        synchronized (profiles.lock) {
+            profile.eventLog = loaded.log;
+            profile.lastLoggedSeq = loaded.snapshotSeq;
+            profile.gasLevel = loaded.level;
+            profile.flushedGasLevel = loaded.level;
+            profile.loaded = true;
+            for (GameProfile.GasChange change : profile.pendingGasChanges) {
+                boolean applied = applyGasChangeLocked(profile, change.type, change.delta,
+                        change.limit);
+                if (null != change.onComplete) {
+                    (applied ? profile.onFlushed : completions).add(change.onComplete);
+                }
+                if (null != change.listener) {
+                    final int gasLevel = applied ? profile.gasLevel : -1;
+                    completions.add(() -> change.listener.onGasConsumed(gasLevel));
+                }
+            }
+            profile.pendingGasChanges.clear();
+            completions.addAll(profile.onLoaded);
+            profile.onLoaded.clear();
+            profiles.onLoadedLocked(profile);
+        }
+        for (Runnable onComplete : completions) {
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Makes the profile the active one. If the profile has been used before, this only swaps the
+     * cached state and republishes it; otherwise the profile is loaded in the background, and
+     * changes made in the meantime are applied once it has been. Observers of
+     * {@link #gasTankLevel()} and {@link #observe(Collection)} keep observing the same LiveData.
+     * <p>
+     * The switch is rejected if the store only holds the default profile (see
+     * {@link #supportsProfiles()}) or if the profile can't be loaded right now.
+     *
+     * @param profileId letters, digits, '_' and '-', at most 32 of them
+     * @return whether the profile is now the active one
+     */
+    public boolean switchProfile(@NonNull String profileId) {
+        GameProfiles.checkProfileId(profileId);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        synchronized (profiles.lock) {
+            if (profiles.activeLocked().profileId.equals(profileId)) return true;
+            GameProfile profile = profiles.getOrLoadLocked(profileId);
+            if (null == profile) return false;
+            profiles.activateLocked(profile, startNanos);
+            // make sure the profile we switched from gets written
+            scheduleFlushLocked();
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the game state can hold profiles other than the default one; the
+     * memory-mapped store can't
+     */
+    public boolean supportsProfiles() {
+        return profiles.supportsProfiles();
+    }
+
+    /**
+     * Loads the profile in the background without switching to it, so that a later switch to it
+     * doesn't have to wait.
+     */
+    public void preloadProfile(@NonNull String profileId) {
+        GameProfiles.checkProfileId(profileId);
+        synchronized (profiles.lock) {
+            profiles.getOrLoadLocked(profileId);
+        }
+    }
+
+    /**
+     * @return the id of the active profile
+     */
+    public LiveData<String> activeProfile() {
+        return profiles.activeProfileId;
+    }
+
+    /**
+     * @return the id of the profile that is active right now, from any thread
+     */
+    @NonNull
+    public String getActiveProfileId() {
+        synchronized (profiles.lock) {
+            return profiles.activeLocked().profileId;
+        }
+    }
+
+    /**
+     * @return the time from switchProfile until the new profile's gas level has been published
+     */
+    @NonNull
+    public LatencyHistogram getProfileSwitchLatency() {
+        return profiles.getSwitchLatency();
     }
 
     public void decrementGas(int minLevel) {
-        queryExecutor.submit(() -> {
-            gameStateDao.decrement(GAS_LEVEL, minLevel);
-        });
+        changeGas(GameEventLog.TYPE_DRIVE, -1, minLevel, null);
     }
 
     public void incrementGas(int maxLevel) {
-        queryExecutor.submit(() -> {
-            gameStateDao.increment(GAS_LEVEL, maxLevel);
-        });
+        incrementGas(maxLevel, null);
+    }
+
+    /**
+     * Increments the gas level, calling onComplete once the new level has been written by the
+     * write-behind flush (to the event log, or to the store without it), from the user-interactive
+     * lane. If the tank was already full, nothing needs writing, and onComplete is called as soon as
+     * that is known.
+     */
+    public void incrementGas(int maxLevel, @Nullable Runnable onComplete) {
+        changeGas(GameEventLog.TYPE_REFUEL, 1, maxLevel, onComplete);
+    }
+
+    /**
+     * Uses one unit of the profile's gas if its level is above minLevel. Unlike decrementGas, this
+     * tells the caller what happened. It never waits: if the profile hasn't been loaded yet, the
+     * change is queued like any other, and the listener is called once it has been applied, from
+     * the lane that loaded the profile. Otherwise the listener is called before this returns.
+     *
+     * @param profileId the profile that was active when the gas was asked for
+     */
+    public void consumeGas(@NonNull String profileId, int minLevel,
+            @NonNull ConsumeGasListener listener) {
+        final int gasLevel;
+        synchronized (profiles.lock) {
+            GameProfile profile = profiles.getOrLoadLocked(profileId);
+            if (null == profile) {
+                gasLevel = -1;
+            } else if (!profile.loaded) {
+                profile.pendingGasChanges.add(new GameProfile.GasChange(GameEventLog.TYPE_DRIVE,
+                        -1, minLevel, null, listener));
+                return;
+            } else {
+                gasLevel = applyGasChangeLocked(profile, GameEventLog.TYPE_DRIVE, -1, minLevel) ?
+                        profile.gasLevel : -1;
+            }
+        }
+        listener.onGasConsumed(gasLevel);
+    }
+
+    private void changeGas(int type, int delta, int limit, @Nullable Runnable onComplete) {
+        synchronized (profiles.lock) {
+            GameProfile profile = profiles.activeLocked();
+            if (!profile.loaded) {
+                profile.pendingGasChanges.add(new GameProfile.GasChange(type, delta, limit,
+                        onComplete, null));
+                return;
+            }
+            if (applyGasChangeLocked(profile, type, delta, limit) && null != onComplete) {
+                profile.onFlushed.add(onComplete);
+                return;
+            }
+        }
+        if (null != onComplete) {
+            onComplete.run();
+        }
+    }
+
+    /*
+        Same semantics as GameStateDao.increment/decrement: the change is only made if the current
+        level is strictly inside the limit.
+     */
+    private boolean applyGasChangeLocked(@NonNull GameProfile profile, int type, int delta,
+            int limit) {
+        if (delta < 0 ? profile.gasLevel <= limit : profile.gasLevel >= limit) {
+            return false;
+        }
+        profile.gasLevel += delta;
+        profiles.publishLocked(profile);
+        if (null != profile.eventLog) {
+            profile.eventLog.append(type, delta, profile.gasLevel, null);
+        }
+        scheduleFlushLocked();
+        return true;
+    }
+
+    private void scheduleFlushLocked() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(Lane.USER_INTERACTIVE, this::flushGasLevel,
+                    FLUSH_DELAY_MILLISECONDS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushGasLevel() {
+        flushGasLevel(false);
+    }
+
+    /*
+        Runs in the user-interactive lane. Credits are written from other lanes, so every profile
+        is written under the persistence's write lock. The callbacks waiting for the write are
+        called once the lock has been released.
+     */
+    private void flushGasLevel(boolean snapshot) {
+        List<GameProfile> loadedProfiles;
+        synchronized (profiles.lock) {
+            flushScheduled = false;
+            loadedProfiles = profiles.allLocked();
+        }
+        List<Runnable> completions = new ArrayList<>();
+        synchronized (persistence.writeLock) {
+            for (GameProfile profile : loadedProfiles) {
+                persistence.flush(profile, snapshot, completions);
+            }
+        }
+        for (Runnable onComplete : completions) {
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Checks the grants in the event logs of every profile against the credits in the ledger. This
+     * blocks, so it must not be called from the main thread.
+     */
+    @WorkerThread
+    @NonNull
+    public CreditAudit auditCredits() throws IOException {
+        return creditLedger.audit();
+    }
+
+    /**
+     * Records that a purchase is about to be consumed, so that if it is consumed and the process
+     * dies before it is credited, {@link #reconcileCredits} can still credit it. This does nothing
+     * if the purchase is already in the ledger. The purchase is credited to the profile that is
+     * active now.
+     *
+     * @param onRecorded called in the billing lane once the record is in the database
+     * @param onFailed   called instead if the purchase couldn't be recorded; it must not be
+     *                   consumed then
+     */
+    public void recordPendingCredit(@NonNull String purchaseToken, @NonNull String sku, int units,
+            @NonNull Runnable onRecorded, @NonNull Runnable onFailed) {
+        creditLedger.recordPending(purchaseToken, sku, units, onRecorded, onFailed);
+    }
+
+    /**
+     * Credits a consumed purchase, unless it has already been credited. Credits that arrive close
+     * together (e.g. when a backlog of purchases is restored) are applied in a single transaction.
+     * The purchase goes to the profile it was recorded with by {@link #recordPendingCredit}, or to
+     * the profile that is active now if it wasn't recorded.
+     *
+     * @param maxLevel   gas is never credited beyond this level
+     * @param onComplete called once the purchase has been credited (or found to already be)
+     */
+    public void creditPurchase(@NonNull String purchaseToken, @NonNull String sku, int units,
+            int maxLevel, @Nullable Runnable onComplete) {
+        creditLedger.credit(purchaseToken, sku, units, maxLevel, onComplete);
+    }
+
+    /**
+     * Credits every pending purchase that is no longer owned, and therefore has been consumed, in
+     * a single transaction. Call this with the purchase tokens that are still owned once purchases
+     * have been queried.
+     * <p>
+     * Purchases recorded as pending after the query started are left alone: the query can miss
+     * them before they have been consumed, and consuming them may still fail.
+     * <p>
+     * A purchase that was refunded or cancelled before it was consumed is also missing from the
+     * query, and gets credited too. The client can't tell the two apart: a purchase is only
+     * recorded right before it is consumed, and Google Play reports neither the consumption (once
+     * the process that asked for it has died) nor the refund to the app; only the server-side
+     * Voided Purchases API does. Crediting errs on the side of the player, who has paid for every
+     * pending purchase, and the window is just the time between recording a purchase and hearing
+     * back from consumeAsync. A server that sees the voided purchase can take the gas back.
+     *
+     * @param queryStartedMillis the wall clock time at which the purchases query was started
+     */
+    public void reconcileCredits(@NonNull Collection<String> ownedPurchaseTokens,
+            long queryStartedMillis, int maxLevel) {
+        creditLedger.reconcile(ownedPurchaseTokens, queryStartedMillis, maxLevel);
+    }
+
+    /*
+        Runs on the main thread, so the snapshot is queued in the user-interactive lane but not
+        waited for; waiting on database I/O here would hold up the UI.
+     */
+    @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+    public void stop() {
+        Log.d(TAG, "ON_STOP");
+        if (!scheduler.tryExecute(Lane.USER_INTERACTIVE, () -> flushGasLevel(true))) {
+            // every change has scheduled a flush, which still writes it once the lane has drained
+            Log.e(TAG, "Unable to flush game state, the lane is full");
+        }
     }
 
     public LiveData<Integer> gasTankLevel() {
-        return gasTankLevel;
+        return profiles.gasTankLevel;
+    }
+
+    /**
+     * Observes many game state values at once. A single GameStateValues is emitted whenever any of
+     * the keys changes, so a screen with many counters only costs one query per change.
+     */
+    public LiveData<GameStateValues> observe(@NonNull Collection<GameStateKey<?>> keys) {
+        checkSupported(keys);
+        final List<GameStateKey<?>> observedKeys = new ArrayList<>(keys);
+        // only the observed keys are queried again when the profile changes
+        return Transformations.switchMap(profiles.activeProfileId,
+                profileId -> storeFor(profileId).observeAll(observedKeys));
+    }
+
+    private GameStateStore storeFor(@NonNull String profileId) {
+        synchronized (profiles.lock) {
+            GameProfile profile = profiles.getOrLoadLocked(profileId);
+            return null == profile ? profiles.activeLocked().store : profile.store;
+        }
+    }
+
+    private GameStateStore activeStore() {
+        synchronized (profiles.lock) {
+            return profiles.activeLocked().store;
+        }
+    }
+
+    /**
+     * Reads many game state values at once. This blocks, so it must not be called from the main
+     * thread.
+     */
+    public GameStateValues getAll(@NonNull Collection<GameStateKey<?>> keys) {
+        checkSupported(keys);
+        return activeStore().getAll(keys);
+    }
+
+    /**
+     * Writes many game state values in a single transaction, in the background.
+     *
+     * @return false if the write couldn't be queued because the scheduler is backed up; nothing
+     * has been written then, and it is up to the caller to try again
+     */
+    public boolean putAll(@NonNull GameStateValues values) {
+        checkSupported(values.keys());
+        for (GameStateKey<?> key : values.keys()) {
+            checkNotGasLevel(key);
+        }
+        final GameStateStore store = activeStore();
+        if (!scheduler.tryExecute(Lane.USER_INTERACTIVE, () -> store.putAll(values))) {
+            Log.e(TAG, "Unable to write " + values.keys().size() + " values, the lane is full");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds deltas to many numeric game state values in a single transaction, in the background.
+     *
+     * @return false if the deltas couldn't be queued because the scheduler is backed up; none of
+     * them have been applied then, and it is up to the caller to try again
+     */
+    public boolean applyDeltas(@NonNull Map<GameStateKey<?>, Long> deltas) {
+        checkSupported(deltas.keySet());
+        for (GameStateKey<?> key : deltas.keySet()) {
+            checkNotGasLevel(key);
+        }
+        final Map<GameStateKey<?>, Long> deltasCopy = new HashMap<>(deltas);
+        final GameStateStore store = activeStore();
+        if (!scheduler.tryExecute(Lane.USER_INTERACTIVE, () -> store.applyDeltas(deltasCopy))) {
+            Log.e(TAG, "Unable to apply " + deltasCopy.size() + " deltas, the lane is full");
+            return false;
+        }
+        return true;
+    }
+
+    /*
+        Fails on the caller's thread rather than in the lane that would run the operation; the
+        memory-mapped store only holds ints.
+     */
+    private void checkSupported(@NonNull Collection<GameStateKey<?>> keys) {
+        for (GameStateKey<?> key : keys) {
+            if (!gameStateStore.supportsType(key.type)) {
+                throw new IllegalArgumentException("The game state store can't hold " + key);
+            }
+        }
+    }
+
+    /*
+        The gas level is owned by the in-memory counter; writing it behind its back would be lost
+        at the next flush.
+     */
+    private static void checkNotGasLevel(@NonNull GameStateKey<?> key) {
+        if (GasLevelPersistence.isGasLevelKey(key.name)) {
+            throw new IllegalArgumentException(
+                    "Use incrementGas/decrementGas to change the gas level");
+        }
     }
 
     public Integer getCurrentGasTankLevel() {
-        return gameStateDao.get(GAS_LEVEL);
+        GameStateStore store;
+        synchronized (profiles.lock) {
+            GameProfile profile = profiles.activeLocked();
+            if (profile.loaded) {
+                return profile.gasLevel;
+            }
+            store = profile.store;
+        }
+        return store.get(GasLevelPersistence.GAS_LEVEL);
     }
 }
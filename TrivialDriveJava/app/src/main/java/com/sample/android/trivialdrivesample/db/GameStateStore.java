@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.lifecycle.LiveData;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A tiny key-value store of integers, which is all the game state needs. This has the same
+ * contract as {@link GameStateDao}, so the game can run on top of Room or on top of something much
+ * lighter like {@link MappedGameStateStore}.
+ * <p>
+ * On top of that, the store has typed, bulk operations so that screens with many counters cost one
+ * query per change rather than one per counter. A store may only hold some types of key (see
+ * {@link #supportsType}); the bulk operations throw an IllegalArgumentException for the others.
+ * <p>
+ * A store holds the state of a single player profile; stores that can hold others implement
+ * {@link ProfileGameStateStore}.
+ * <p>
+ * Other than observe, all of these may block and must not be called from the main thread.
+ */
+public interface GameStateStore {
+    /**
+     * @return LiveData that emits the value of the key whenever it changes
+     */
+    LiveData<Integer> observe(String key);
+
+    /**
+     * @return the value of the key, or null if it has never been set
+     */
+    Integer get(String key);
+
+    void put(String key, int value);
+
+    /**
+     * Decrements the value if it is greater than minValue.
+     *
+     * @return the number of values changed; 0 or 1
+     */
+    int decrement(String key, int minValue);
+
+    /**
+     * Increments the value if it is less than maxValue.
+     *
+     * @return the number of values changed; 0 or 1
+     */
+    int increment(String key, int maxValue);
+
+    /**
+     * Reads all of the keys at once.
+     */
+    GameStateValues getAll(Collection<GameStateKey<?>> keys);
+
+    /**
+     * Emits all of the keys at once, whenever any of them changes.
+     */
+    LiveData<GameStateValues> observeAll(Collection<GameStateKey<?>> keys);
+
+    /**
+     * Writes all of the values atomically.
+     */
+    void putAll(GameStateValues values);
+
+    /**
+     * Adds each delta to its (numeric) key atomically. Keys that don't exist yet start at 0.
+     */
+    void applyDeltas(Map<GameStateKey<?>, Long> deltas);
+
+    /**
+     * @return whether the store can hold keys of the type
+     */
+    boolean supportsType(GameStateKey.Type type);
+}
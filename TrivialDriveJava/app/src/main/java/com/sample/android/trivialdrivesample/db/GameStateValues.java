@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable set of typed game state values, as returned by a bulk read or emitted by a
+ * multi-key observe. Keys that have never been set are simply absent.
+ */
+public final class GameStateValues {
+    final Map<GameStateKey<?>, Object> values;
+
+    private GameStateValues(Map<GameStateKey<?>, Object> values) {
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return the value of the key, or null if it isn't set
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> T get(@NonNull GameStateKey<T> key) {
+        return (T) values.get(key);
+    }
+
+    @NonNull
+    public <T> T get(@NonNull GameStateKey<T> key, @NonNull T defaultValue) {
+        T value = get(key);
+        return null == value ? defaultValue : value;
+    }
+
+    public boolean contains(@NonNull GameStateKey<?> key) {
+        return values.containsKey(key);
+    }
+
+    @NonNull
+    public Set<GameStateKey<?>> keys() {
+        return values.keySet();
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof GameStateValues
+                && values.equals(((GameStateValues) o).values));
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    /**
+     * Turns the values into GameState rows. Each row only has the column for its type set.
+     */
+    @NonNull
+    List<GameState> toRows(@NonNull String profileId) {
+        List<GameState> rows = new ArrayList<>(values.size());
+        for (Map.Entry<GameStateKey<?>, Object> entry : values.entrySet()) {
+            GameStateKey<?> key = entry.getKey();
+            if (key.isNumeric()) {
+                rows.add(new GameState(profileId, key.name,
+                        ((Number) entry.getValue()).longValue(), null));
+            } else {
+                rows.add(new GameState(profileId, key.name, null, (String) entry.getValue()));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Reads the values of the requested keys out of GameState rows.
+     */
+    @NonNull
+    static GameStateValues fromRows(@NonNull Collection<GameStateKey<?>> keys,
+            @Nullable List<GameState> rows) {
+        Map<String, GameState> rowsByKey = new HashMap<>();
+        if (null != rows) {
+            for (GameState row : rows) {
+                rowsByKey.put(row.key, row);
+            }
+        }
+        Builder builder = new Builder();
+        for (GameStateKey<?> key : keys) {
+            GameState row = rowsByKey.get(key.name);
+            if (null == row) continue;
+            switch (key.type) {
+                case INT:
+                    if (null != row.value) builder.values.put(key, row.value.intValue());
+                    break;
+                case LONG:
+                    if (null != row.value) builder.values.put(key, row.value);
+                    break;
+                case STRING:
+                    if (null != row.stringValue) builder.values.put(key, row.stringValue);
+                    break;
+            }
+        }
+        return builder.build();
+    }
+
+    public static final class Builder {
+        final Map<GameStateKey<?>, Object> values = new HashMap<>();
+
+        @NonNull
+        public <T> Builder put(@NonNull GameStateKey<T> key, @NonNull T value) {
+            values.put(key, value);
+            return this;
+        }
+
+        @NonNull
+        public GameStateValues build() {
+            return new GameStateValues(new HashMap<>(values));
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Credits purchased gas through the ledger of purchase tokens in the game state database. See
+ * {@link GameStateModel} for the guarantees; this does the work behind its credit methods.
+ * <p>
+ * Credits are applied in the billing lane, or in the reconciliation lane for purchases that are
+ * restored, each to the profile that was active when the purchase was recorded.
+ */
+final class GasCreditLedger {
+    private static final String TAG = "TrivialDrive:" + GasCreditLedger.class.getSimpleName();
+    private final GameStateDatabase database;
+    private final GameProfiles profiles;
+    private final GasLevelPersistence persistence;
+    private final AppScheduler scheduler;
+    // Consumed purchases waiting to be credited; drained in batches. Guarded by the profiles' lock.
+    private final List<PurchaseCredit> queuedCredits = new ArrayList<>();
+    private final List<Runnable> queuedCreditCompletions = new ArrayList<>();
+    private int queuedCreditMaxLevel;
+    private boolean creditScheduled = false;
+
+    GasCreditLedger(@NonNull GameStateDatabase database, @NonNull GameProfiles profiles,
+            @NonNull GasLevelPersistence persistence, @NonNull AppScheduler scheduler) {
+        this.database = database;
+        this.profiles = profiles;
+        this.persistence = persistence;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @see GameStateModel#recordPendingCredit
+     */
+    void recordPending(@NonNull String purchaseToken, @NonNull String sku, int units,
+            @NonNull Runnable onRecorded, @NonNull Runnable onFailed) {
+        final String profileId;
+        synchronized (profiles.lock) {
+            profileId = profiles.activeLocked().profileId;
+        }
+        boolean queued = scheduler.tryExecute(Lane.BILLING, () -> {
+            try {
+                database.purchaseCreditDao().insertIfAbsent(Collections.singletonList(
+                        newPendingCredit(purchaseToken, sku, units, profileId)));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to record pending credit", e);
+                onFailed.run();
+                return;
+            }
+            onRecorded.run();
+        });
+        if (!queued) {
+            Log.e(TAG, "Unable to record pending credit, the billing lane is full");
+            onFailed.run();
+        }
+    }
+
+    /**
+     * @see GameStateModel#creditPurchase
+     */
+    void credit(@NonNull String purchaseToken, @NonNull String sku, int units, int maxLevel,
+            @Nullable Runnable onComplete) {
+        synchronized (profiles.lock) {
+            queuedCredits.add(newPendingCredit(purchaseToken, sku, units,
+                    profiles.activeLocked().profileId));
+            if (null != onComplete) {
+                queuedCreditCompletions.add(onComplete);
+            }
+            queuedCreditMaxLevel = maxLevel;
+            if (creditScheduled) return;
+            creditScheduled = true;
+        }
+        if (!scheduler.tryExecute(Lane.BILLING, this::creditQueuedPurchases)) {
+            // the credits stay queued for the next purchase, and pending in the ledger for the
+            // next reconciliation
+            Log.e(TAG, "Unable to credit purchases, the billing lane is full");
+            synchronized (profiles.lock) {
+                creditScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * @see GameStateModel#reconcileCredits
+     */
+    void reconcile(@NonNull Collection<String> ownedPurchaseTokens, long queryStartedMillis,
+            int maxLevel) {
+        final Set<String> owned = new HashSet<>(ownedPurchaseTokens);
+        boolean queued = scheduler.tryExecute(Lane.RECONCILIATION, () -> {
+            List<PurchaseCredit> consumed = new ArrayList<>();
+            for (PurchaseCredit credit : database.purchaseCreditDao().getAllPending()) {
+                if (credit.createdTime < queryStartedMillis
+                        && !owned.contains(credit.purchaseToken)) {
+                    consumed.add(credit);
+                }
+            }
+            if (!consumed.isEmpty()) {
+                Log.i(TAG, "Crediting " + consumed.size() + " consumed purchases");
+                applyCredits(consumed, maxLevel, Lane.RECONCILIATION, null);
+            }
+        });
+        if (!queued) {
+            Log.w(TAG, "Skipped reconciling credits, the reconciliation lane is full");
+        }
+    }
+
+    /**
+     * @see GameStateModel#auditCredits
+     */
+    @NonNull
+    GameStateModel.CreditAudit audit() throws IOException {
+        Map<String, GameEventLog> openLogs = new HashMap<>();
+        synchronized (profiles.lock) {
+            if (null == profiles.activeLocked().eventLog) {
+                throw new IOException("The event log isn't available");
+            }
+            for (GameProfile profile : profiles.allLocked()) {
+                if (null != profile.eventLog) {
+                    openLogs.put(persistence.eventLogFile(profile.profileId).getName(),
+                            profile.eventLog);
+                }
+            }
+        }
+        Set<String> granted = new HashSet<>();
+        for (File logFile : persistence.eventLogFiles()) {
+            // profiles that haven't been loaded can be read without opening their log
+            GameEventLog log = openLogs.get(logFile.getName());
+            if (null == log) {
+                log = new GameEventLog(logFile);
+            }
+            for (GameEventLog.Event grant : log.readGrants()) {
+                granted.add(grant.purchaseToken);
+            }
+        }
+        List<String> missingGrants = new ArrayList<>();
+        Set<String> credited = new HashSet<>();
+        for (PurchaseCredit credit : database.purchaseCreditDao().getAllCredited()) {
+            credited.add(credit.purchaseToken);
+            if (!granted.contains(credit.purchaseToken)) {
+                missingGrants.add(credit.purchaseToken);
+            }
+        }
+        List<String> unexpectedGrants = new ArrayList<>();
+        for (String purchaseToken : granted) {
+            if (!credited.contains(purchaseToken)) {
+                unexpectedGrants.add(purchaseToken);
+            }
+        }
+        return new GameStateModel.CreditAudit(missingGrants, unexpectedGrants);
+    }
+
+    private static PurchaseCredit newPendingCredit(@NonNull String purchaseToken,
+            @NonNull String sku, int units, @NonNull String profileId) {
+        return new PurchaseCredit(purchaseToken, sku, units, PurchaseCredit.STATE_PENDING,
+                System.currentTimeMillis(), 0, profileId);
+    }
+
+    /*
+        Runs in the billing lane.
+     */
+    private void creditQueuedPurchases() {
+        List<PurchaseCredit> credits;
+        List<Runnable> completions;
+        int maxLevel;
+        synchronized (profiles.lock) {
+            credits = new ArrayList<>(queuedCredits);
+            completions = new ArrayList<>(queuedCreditCompletions);
+            maxLevel = queuedCreditMaxLevel;
+            queuedCredits.clear();
+            queuedCreditCompletions.clear();
+            creditScheduled = false;
+        }
+        applyCredits(credits, maxLevel, Lane.BILLING, () -> {
+            for (Runnable onComplete : completions) {
+                onComplete.run();
+            }
+        });
+    }
+
+    /*
+        Runs in the billing or reconciliation lane. The write lock is held across the transaction
+        so that the level written with the ledger is the level that is published, but the profiles'
+        lock is only held while the level is computed, so driving isn't held up by the ledger
+        queries. Each purchase is credited to the profile recorded with it. Credits for a profile
+        that is still loading stay pending, and are applied in the same lane once it has loaded;
+        the lane never waits for it.
+     */
+    private void applyCredits(@NonNull List<PurchaseCredit> credits, int maxLevel,
+            @NonNull Lane lane, @Nullable Runnable onComplete) {
+        final PurchaseCreditDao purchaseCreditDao = database.purchaseCreditDao();
+        final List<String> purchaseTokens = new ArrayList<>(credits.size());
+        for (PurchaseCredit credit : credits) {
+            purchaseTokens.add(credit.purchaseToken);
+        }
+        final Map<GameEventLog, Long> snapshots = new HashMap<>();
+        final List<PurchaseCredit> deferred = new ArrayList<>();
+        final GameProfile[] loadingProfile = {null};
+        synchronized (persistence.writeLock) {
+            database.runInTransaction(() -> {
+                // credits that were never recorded as pending are recorded now
+                purchaseCreditDao.insertIfAbsent(credits);
+                List<PurchaseCredit> pending = purchaseCreditDao.getPending(purchaseTokens);
+                if (pending.isEmpty()) return;
+                Map<GameProfile, List<PurchaseCredit>> creditsByProfile = new LinkedHashMap<>();
+                synchronized (profiles.lock) {
+                    for (PurchaseCredit credit : pending) {
+                        GameProfile profile = profiles.getOrLoadLocked(credit.profileId);
+                        if (null == profile) {
+                            // left pending for a later reconciliation
+                            continue;
+                        }
+                        if (!profile.loaded) {
+                            deferred.add(credit);
+                            loadingProfile[0] = profile;
+                            continue;
+                        }
+                        List<PurchaseCredit> profileCredits = creditsByProfile.get(profile);
+                        if (null == profileCredits) {
+                            profileCredits = new ArrayList<>();
+                            creditsByProfile.put(profile, profileCredits);
+                        }
+                        profileCredits.add(credit);
+                    }
+                }
+                List<String> creditedTokens = new ArrayList<>(pending.size());
+                for (List<PurchaseCredit> profileCredits : creditsByProfile.values()) {
+                    for (PurchaseCredit credit : profileCredits) {
+                        creditedTokens.add(credit.purchaseToken);
+                    }
+                }
+                if (creditedTokens.isEmpty()) return;
+                purchaseCreditDao.markCredited(creditedTokens, System.currentTimeMillis());
+                for (Map.Entry<GameProfile, List<PurchaseCredit>> entry
+                        : creditsByProfile.entrySet()) {
+                    grantCredits(entry.getKey(), entry.getValue(), maxLevel, snapshots);
+                }
+            });
+            for (Map.Entry<GameEventLog, Long> snapshot : snapshots.entrySet()) {
+                persistence.onSnapshot(snapshot.getKey(), snapshot.getValue());
+            }
+        }
+        if (deferred.isEmpty()) {
+            if (null != onComplete) {
+                onComplete.run();
+            }
+            return;
+        }
+        final Runnable retry = () -> {
+            if (!scheduler.tryExecute(lane, () -> applyCredits(deferred, maxLevel, lane,
+                    onComplete))) {
+                // they stay pending in the ledger for the next reconciliation
+                Log.e(TAG, "Unable to credit " + deferred.size() + " purchases, the lane is full");
+            }
+        };
+        final GameProfile profile = loadingProfile[0];
+        synchronized (profiles.lock) {
+            if (!profile.loaded) {
+                profile.onLoaded.add(retry);
+                return;
+            }
+        }
+        retry.run();
+    }
+
+    /*
+        Runs inside the credit transaction. The grants are appended to the log along with the
+        level they take the tank to, and written by the persistence.
+     */
+    private void grantCredits(@NonNull GameProfile profile, @NonNull List<PurchaseCredit> credits,
+            int maxLevel, @NonNull Map<GameEventLog, Long> snapshots) {
+        final GameEventLog log;
+        int level;
+        long grantSeq = -1;
+        synchronized (profiles.lock) {
+            log = profile.eventLog;
+            level = profile.gasLevel;
+            for (PurchaseCredit credit : credits) {
+                // same as incrementing one unit at a time: we never take gas away
+                int creditedLevel = Math.max(level, Math.min(maxLevel, level + credit.units));
+                if (null != log) {
+                    grantSeq = log.append(GameEventLog.TYPE_GRANT, creditedLevel - level,
+                            creditedLevel, credit.purchaseToken);
+                }
+                level = creditedLevel;
+            }
+            if (level != profile.gasLevel) {
+                profile.gasLevel = level;
+                profiles.publishLocked(profile);
+            }
+        }
+        persistence.writeGranted(profile, log, level, grantSeq, snapshots);
+    }
+}
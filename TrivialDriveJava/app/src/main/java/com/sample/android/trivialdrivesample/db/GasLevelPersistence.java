@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads and writes the gas level of each profile. Every change is appended to the profile's
+ * {@link GameEventLog}, and the level itself is only written to the store as a snapshot every
+ * SNAPSHOT_INTERVAL_EVENTS events, or when asked to; on load, the events after the snapshot are
+ * replayed. If the log can't be used, every write goes to the store instead, as a snapshot that
+ * supersedes whatever is left in the log.
+ * <p>
+ * Writes are made under {@link #writeLock}, so that a write can't be overtaken by an older one;
+ * the profiles' lock is only held to read and update the state of a profile.
+ */
+final class GasLevelPersistence {
+    private static final String TAG = "TrivialDrive:" + GasLevelPersistence.class.getSimpleName();
+    static final String GAS_LEVEL = "gas";
+    private static final GameStateKey<Integer> GAS_LEVEL_KEY = GameStateKey.intKey(GAS_LEVEL);
+    // The number of the last event in the log that is included in the stored gas level. It is a
+    // long, but every store holds ints, so it is stored as its low 31 bits and the bits above.
+    private static final GameStateKey<Integer> GAS_EVENT_SEQ_KEY =
+            GameStateKey.intKey("gasEventSeq");
+    private static final GameStateKey<Integer> GAS_EVENT_SEQ_HIGH_KEY =
+            GameStateKey.intKey("gasEventSeqHigh");
+    private static final long SNAPSHOT_INTERVAL_EVENTS = 64;
+
+    /**
+     * The gas level of a profile as it was last written.
+     */
+    static final class Loaded {
+        final int level;
+        // null if the log can't be used
+        @Nullable
+        final GameEventLog log;
+        final long snapshotSeq;
+
+        Loaded(int level, @Nullable GameEventLog log, long snapshotSeq) {
+            this.level = level;
+            this.log = log;
+            this.snapshotSeq = snapshotSeq;
+        }
+    }
+
+    final Object writeLock = new Object();
+    private final Object profileLock;
+    private final File directory;
+    private final AppScheduler scheduler;
+
+    /**
+     * @param profileLock the lock that guards the state of the profiles
+     * @param directory   where the event logs are kept
+     */
+    GasLevelPersistence(@NonNull Object profileLock, @NonNull File directory,
+            @NonNull AppScheduler scheduler) {
+        this.profileLock = profileLock;
+        this.directory = directory;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return whether the key belongs to the gas level, which only the model may write
+     */
+    static boolean isGasLevelKey(@NonNull String name) {
+        return GAS_LEVEL.equals(name) || GAS_EVENT_SEQ_KEY.name.equals(name)
+                || GAS_EVENT_SEQ_HIGH_KEY.name.equals(name);
+    }
+
+    /**
+     * Reads the snapshot and replays the events after it.
+     *
+     * @param openTimings if not null, the time of this first query is recorded in it
+     */
+    @NonNull
+    Loaded load(@NonNull GameProfile profile, int initialLevel,
+            @Nullable DatabaseOpenTimings openTimings) {
+        final long firstQueryStartNanos = SystemClock.elapsedRealtimeNanos();
+        GameStateValues snapshot = profile.store.getAll(
+                Arrays.asList(GAS_LEVEL_KEY, GAS_EVENT_SEQ_KEY, GAS_EVENT_SEQ_HIGH_KEY));
+        if (null != openTimings) {
+            openTimings.onFirstQuery(firstQueryStartNanos);
+            Log.i(TAG, "Game state database startup: " + openTimings);
+        }
+        int level = snapshot.get(GAS_LEVEL_KEY, initialLevel);
+        final long snapshotSeq = ((long) snapshot.get(GAS_EVENT_SEQ_HIGH_KEY, 0) << 31)
+                | snapshot.get(GAS_EVENT_SEQ_KEY, 0);
+        final File logFile = eventLogFile(profile.profileId);
+        GameEventLog log = new GameEventLog(logFile);
+        try {
+            List<GameEventLog.Event> tail = log.open(snapshotSeq);
+            if (!tail.isEmpty()) {
+                level = tail.get(tail.size() - 1).level;
+                Log.d(TAG, "Replayed " + tail.size() + " events");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the event log", e);
+            log = null;
+            // a tail we couldn't read now mustn't be replayed over later snapshots
+            if (logFile.exists()
+                    && !logFile.renameTo(new File(logFile.getPath() + ".unreadable"))) {
+                Log.e(TAG, "Unable to move the unreadable event log aside");
+            }
+        }
+        return new Loaded(level, log, snapshotSeq);
+    }
+
+    @NonNull
+    File eventLogFile(@NonNull String profileId) {
+        String name = GameState.DEFAULT_PROFILE.equals(profileId) ?
+                "GameEvents.log" : "GameEvents-" + profileId + ".log";
+        return new File(directory, name);
+    }
+
+    /**
+     * @return the event logs of every profile, including the ones that haven't been loaded
+     */
+    @NonNull
+    File[] eventLogFiles() {
+        File[] logFiles = directory.listFiles(
+                (dir, name) -> name.startsWith("GameEvents") && name.endsWith(".log"));
+        return null == logFiles ? new File[0] : logFiles;
+    }
+
+    /**
+     * Writes the changes made to the profile since the last write. Must be called with the
+     * writeLock held. The callbacks waiting for what has been written are added to completions.
+     *
+     * @param snapshot whether to write a snapshot even if there haven't been enough events
+     */
+    void flush(@NonNull GameProfile profile, boolean snapshot,
+            @NonNull List<Runnable> completions) {
+        int level;
+        long seq;
+        GameEventLog log;
+        synchronized (profileLock) {
+            if (!profile.loaded) {
+                return;
+            }
+            log = profile.eventLog;
+            level = profile.gasLevel;
+            seq = null == log ? 0 : log.getLastSeq();
+            completions.addAll(profile.onFlushed);
+            profile.onFlushed.clear();
+            if (level == profile.flushedGasLevel
+                    && (null == log || seq == log.getSnapshotSeq())) {
+                return;
+            }
+        }
+        // the events have to be synced before a snapshot that includes them is written
+        final boolean takeSnapshot = null != log
+                && (snapshot || log.getEventsSinceSnapshot() >= SNAPSHOT_INTERVAL_EVENTS);
+        if (null != log && writeEvents(profile, log, takeSnapshot)) {
+            if (takeSnapshot) {
+                profile.store.putAll(newSnapshot(level, seq));
+                onSnapshot(log, seq);
+            }
+        } else {
+            writeWithoutLog(profile, level);
+        }
+        synchronized (profileLock) {
+            profile.flushedGasLevel = level;
+        }
+    }
+
+    /**
+     * Writes the level after grants that have already been appended to the log, along with a
+     * snapshot that includes them. Must be called with the writeLock held. The grants are synced
+     * to the log before the snapshot is written, so that a crash in between can never leave a
+     * snapshot ahead of its log. A log that got a snapshot is added to snapshots, with the seq of
+     * the snapshot; the caller passes it to {@link #onSnapshot} once the snapshot is committed.
+     *
+     * @param log      the log the grants were appended to, or null if there is none
+     * @param grantSeq the number of the last grant
+     */
+    void writeGranted(@NonNull GameProfile profile, @Nullable GameEventLog log, int level,
+            long grantSeq, @NonNull Map<GameEventLog, Long> snapshots) {
+        if (null != log && writeEvents(profile, log, true)) {
+            profile.store.putAll(newSnapshot(level, grantSeq));
+            snapshots.put(log, grantSeq);
+        } else {
+            writeWithoutLog(profile, level);
+        }
+        synchronized (profileLock) {
+            // everything up to this level has now been written
+            profile.flushedGasLevel = level;
+        }
+    }
+
+    /**
+     * Records that the store holds a snapshot up to seq, and compacts the log in the
+     * reconciliation lane if that has left enough of it behind.
+     */
+    void onSnapshot(@NonNull GameEventLog log, long seq) {
+        log.onSnapshot(seq);
+        if (log.needsCompaction()) {
+            // if the lane is full, the log is compacted after a later snapshot
+            scheduler.tryExecute(Lane.RECONCILIATION, () -> {
+                try {
+                    log.compact();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to compact the event log", e);
+                }
+            });
+        }
+    }
+
+    private static GameStateValues newSnapshot(int level, long seq) {
+        return new GameStateValues.Builder()
+                .put(GAS_LEVEL_KEY, level)
+                .put(GAS_EVENT_SEQ_KEY, (int) (seq & Integer.MAX_VALUE))
+                .put(GAS_EVENT_SEQ_HIGH_KEY, (int) (seq >>> 31))
+                .build();
+    }
+
+    /*
+        If the log can't be written, it stops being used, and the store is written on every flush
+        like it was before; the snapshot in the store is the last good state.
+     */
+    private boolean writeEvents(@NonNull GameProfile profile, @NonNull GameEventLog log,
+            boolean sync) {
+        try {
+            log.writePending(sync);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the event log; writing through to the store", e);
+            synchronized (profileLock) {
+                profile.eventLog = null;
+                profile.lastLoggedSeq = log.getLastSeq();
+            }
+            return false;
+        }
+    }
+
+    /*
+        Without the log, every write is a snapshot past the last event that may be in the file, so
+        that the events in it aren't replayed over the level on the next start.
+     */
+    private void writeWithoutLog(@NonNull GameProfile profile, int level) {
+        long seq;
+        synchronized (profileLock) {
+            seq = profile.lastLoggedSeq;
+        }
+        profile.store.putAll(newSnapshot(level, seq));
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A GameStateStore that keeps its integers in fixed-width slots of a small memory-mapped file. For
+ * a handful of counters this avoids the cost of opening SQLite, validating a schema and copying a
+ * prepackaged database; opening the store is a single mmap, and an update is a few stores into the
+ * mapping.
+ * <p>
+ * File layout: a 16 byte header (magic, version, slot count) followed by MAX_SLOTS slots of
+ * SLOT_SIZE bytes. Each slot holds its key (length-prefixed UTF-8, at most MAX_KEY_BYTES) and two
+ * copies of its value record: (sequence, value, CRC32 of key + sequence + value).
+ * <p>
+ * Updates are atomic: a new value is always written to the copy that isn't current, with the next
+ * sequence number, so a write that is torn by a crash leaves a record with a bad checksum and the
+ * previous copy is used instead. Writes reach the page cache immediately, so they survive the
+ * process being killed; call {@link #sync()} to also survive a power loss.
+ * <p>
+ * Only int keys are supported, since the slots are fixed-width integers. Bulk operations are atomic
+ * with respect to other threads, but a crash in the middle of one can leave it partially applied.
+ * <p>
+ * The store is safe to use from multiple threads of one process, but not from multiple processes.
+ * It holds a single player profile, so it isn't a {@link ProfileGameStateStore}.
+ */
+public class MappedGameStateStore implements GameStateStore {
+    private static final String TAG = "TrivialDrive:" + MappedGameStateStore.class.getSimpleName();
+    private static final int MAGIC = 0x54445353; // "TDSS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    static final int MAX_SLOTS = 64;
+    static final int MAX_KEY_BYTES = 28;
+    private static final int KEY_SIZE = 4 + MAX_KEY_BYTES;
+    private static final int RECORD_SIZE = 16;
+    private static final int SLOT_SIZE = KEY_SIZE + 2 * RECORD_SIZE;
+    private static final int FILE_SIZE = HEADER_SIZE + MAX_SLOTS * SLOT_SIZE;
+
+    private final MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    // In-memory index of the mapping; guarded by this.
+    private final Map<String, Integer> slotIndex = new HashMap<>();
+    private final int[] slotSequences = new int[MAX_SLOTS];
+    private final byte[][] slotKeys = new byte[MAX_SLOTS][];
+    private int slotsUsed = 0;
+    private final List<KeyObserver> keyObservers = new ArrayList<>();
+    private final List<BulkObserver> bulkObservers = new ArrayList<>();
+
+    /*
+        Like Room's LiveData, the observers are only tracked by the store while they are active,
+        so they are simply garbage collected once nobody observes them.
+     */
+    private class KeyObserver extends MutableLiveData<Integer> {
+        final String key;
+
+        KeyObserver(String key) {
+            this.key = key;
+        }
+
+        @Override
+        protected void onActive() {
+            synchronized (MappedGameStateStore.this) {
+                keyObservers.add(this);
+                Integer value = readLocked(key);
+                if (null != value) {
+                    postValue(value);
+                }
+            }
+        }
+
+        @Override
+        protected void onInactive() {
+            synchronized (MappedGameStateStore.this) {
+                keyObservers.remove(this);
+            }
+        }
+    }
+
+    private class BulkObserver extends MutableLiveData<GameStateValues> {
+        final List<GameStateKey<?>> keys;
+        final Set<String> names = new HashSet<>();
+
+        BulkObserver(Collection<GameStateKey<?>> keys) {
+            this.keys = new ArrayList<>(keys);
+            for (GameStateKey<?> key : keys) {
+                names.add(key.name);
+            }
+        }
+
+        @Override
+        protected void onActive() {
+            synchronized (MappedGameStateStore.this) {
+                bulkObservers.add(this);
+                postValue(readAllLocked(keys));
+            }
+        }
+
+        @Override
+        protected void onInactive() {
+            synchronized (MappedGameStateStore.this) {
+                bulkObservers.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Opens (or creates) the store in the given file.
+     *
+     * @param file          the file to map
+     * @param initialValues values written when the file is first created, to match the initial state
+     *                      of the game
+     */
+    public MappedGameStateStore(@NonNull File file, @NonNull Map<String, Integer> initialValues)
+            throws IOException {
+        boolean created = !file.exists() || file.length() != FILE_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (created) {
+                raf.setLength(0);
+                raf.setLength(FILE_SIZE);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        }
+        synchronized (this) {
+            if (created || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                if (!created) {
+                    Log.w(TAG, "Unrecognized game state file, resetting it.");
+                    for (int i = 0; i < FILE_SIZE; i++) buffer.put(i, (byte) 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, MAX_SLOTS);
+                for (Map.Entry<String, Integer> entry : initialValues.entrySet()) {
+                    writeLocked(entry.getKey(), entry.getValue());
+                }
+                buffer.force();
+            } else {
+                loadIndexLocked();
+            }
+        }
+    }
+
+    private void loadIndexLocked() {
+        for (int slot = 0; slot < MAX_SLOTS; slot++) {
+            int base = slotOffset(slot);
+            int keyLength = buffer.getInt(base);
+            if (keyLength <= 0 || keyLength > MAX_KEY_BYTES) continue;
+            byte[] keyBytes = new byte[keyLength];
+            for (int i = 0; i < keyLength; i++) keyBytes[i] = buffer.get(base + 4 + i);
+            slotKeys[slot] = keyBytes;
+            int current = currentRecordLocked(slot);
+            if (current < 0) {
+                // a slot whose first write never completed
+                slotKeys[slot] = null;
+                continue;
+            }
+            slotSequences[slot] = buffer.getInt(recordOffset(slot, current));
+            slotIndex.put(new String(keyBytes, StandardCharsets.UTF_8), slot);
+            slotsUsed = slot + 1;
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int recordOffset(int slot, int copy) {
+        return slotOffset(slot) + KEY_SIZE + copy * RECORD_SIZE;
+    }
+
+    private long checksumLocked(byte[] keyBytes, int sequence, int value) {
+        crc.reset();
+        crc.update(keyBytes);
+        crc.update(sequence >>> 24);
+        crc.update(sequence >>> 16);
+        crc.update(sequence >>> 8);
+        crc.update(sequence);
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+        return crc.getValue();
+    }
+
+    private boolean isRecordValidLocked(int slot, int copy) {
+        int offset = recordOffset(slot, copy);
+        int sequence = buffer.getInt(offset);
+        int value = buffer.getInt(offset + 4);
+        return sequence != 0
+                && buffer.getLong(offset + 8) == checksumLocked(slotKeys[slot], sequence, value);
+    }
+
+    /*
+        Returns the copy holding the current value of the slot, or -1 if neither copy is valid.
+     */
+    private int currentRecordLocked(int slot) {
+        boolean valid0 = isRecordValidLocked(slot, 0);
+        boolean valid1 = isRecordValidLocked(slot, 1);
+        if (valid0 && valid1) {
+            int sequence0 = buffer.getInt(recordOffset(slot, 0));
+            int sequence1 = buffer.getInt(recordOffset(slot, 1));
+            return sequence1 - sequence0 > 0 ? 1 : 0;
+        }
+        return valid0 ? 0 : valid1 ? 1 : -1;
+    }
+
+    private Integer readLocked(String key) {
+        Integer slot = slotIndex.get(key);
+        if (null == slot) return null;
+        int current = currentRecordLocked(slot);
+        if (current < 0) return null;
+        return buffer.getInt(recordOffset(slot, current) + 4);
+    }
+
+    private void writeLocked(String key, int value) {
+        Integer slot = slotIndex.get(key);
+        if (null == slot) {
+            slot = allocateSlotLocked(key);
+        }
+        int sequence = slotSequences[slot] + 1;
+        if (sequence == 0) sequence = 1; // 0 marks an empty record
+        // copies alternate with the sequence number, so we never overwrite the current one
+        int offset = recordOffset(slot, sequence & 1);
+        buffer.putInt(offset, 0);
+        buffer.putInt(offset + 4, value);
+        buffer.putLong(offset + 8, checksumLocked(slotKeys[slot], sequence, value));
+        buffer.putInt(offset, sequence);
+        slotSequences[slot] = sequence;
+        for (KeyObserver keyObserver : keyObservers) {
+            if (keyObserver.key.equals(key)) {
+                keyObserver.postValue(value);
+            }
+        }
+    }
+
+    private int allocateSlotLocked(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        if (slotsUsed == MAX_SLOTS) {
+            throw new IllegalStateException("No free game state slots for key: " + key);
+        }
+        int slot = slotsUsed++;
+        int base = slotOffset(slot);
+        for (int i = 0; i < keyBytes.length; i++) buffer.put(base + 4 + i, keyBytes[i]);
+        buffer.putInt(base, keyBytes.length);
+        slotKeys[slot] = Arrays.copyOf(keyBytes, keyBytes.length);
+        slotSequences[slot] = 0;
+        slotIndex.put(key, slot);
+        return slot;
+    }
+
+    @Override
+    public LiveData<Integer> observe(String key) {
+        return new KeyObserver(key);
+    }
+
+    @Override
+    public synchronized Integer get(String key) {
+        return readLocked(key);
+    }
+
+    @Override
+    public synchronized void put(String key, int value) {
+        writeLocked(key, value);
+        notifyBulkObserversLocked(Collections.singleton(key));
+    }
+
+    @Override
+    public synchronized int decrement(String key, int minValue) {
+        Integer value = readLocked(key);
+        if (null == value || value <= minValue) return 0;
+        writeLocked(key, value - 1);
+        notifyBulkObserversLocked(Collections.singleton(key));
+        return 1;
+    }
+
+    @Override
+    public synchronized int increment(String key, int maxValue) {
+        Integer value = readLocked(key);
+        if (null == value || value >= maxValue) return 0;
+        writeLocked(key, value + 1);
+        notifyBulkObserversLocked(Collections.singleton(key));
+        return 1;
+    }
+
+    @Override
+    public synchronized GameStateValues getAll(Collection<GameStateKey<?>> keys) {
+        return readAllLocked(keys);
+    }
+
+    @Override
+    public LiveData<GameStateValues> observeAll(Collection<GameStateKey<?>> keys) {
+        for (GameStateKey<?> key : keys) {
+            checkIntKey(key);
+        }
+        return new BulkObserver(keys);
+    }
+
+    @Override
+    public synchronized void putAll(GameStateValues values) {
+        for (GameStateKey<?> key : values.keys()) {
+            checkIntKey(key);
+        }
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<GameStateKey<?>, Object> entry : values.values.entrySet()) {
+            writeLocked(entry.getKey().name, (Integer) entry.getValue());
+            changed.add(entry.getKey().name);
+        }
+        notifyBulkObserversLocked(changed);
+    }
+
+    /**
+     * @throws ArithmeticException if a value would overflow an int; nothing is changed then
+     */
+    @Override
+    public synchronized void applyDeltas(Map<GameStateKey<?>, Long> deltas) {
+        for (GameStateKey<?> key : deltas.keySet()) {
+            checkIntKey(key);
+        }
+        // every new value is checked before any of them is written
+        Map<String, Integer> newValues = new HashMap<>();
+        for (Map.Entry<GameStateKey<?>, Long> delta : deltas.entrySet()) {
+            String name = delta.getKey().name;
+            Integer value = readLocked(name);
+            long newValue = (null == value ? 0 : value) + delta.getValue();
+            if (newValue != (int) newValue) {
+                throw new ArithmeticException("Game state value overflows an int: " + name);
+            }
+            newValues.put(name, (int) newValue);
+        }
+        for (Map.Entry<String, Integer> newValue : newValues.entrySet()) {
+            writeLocked(newValue.getKey(), newValue.getValue());
+        }
+        notifyBulkObserversLocked(newValues.keySet());
+    }
+
+    @Override
+    public boolean supportsType(GameStateKey.Type type) {
+        return type == GameStateKey.Type.INT;
+    }
+
+    private GameStateValues readAllLocked(Collection<GameStateKey<?>> keys) {
+        GameStateValues.Builder builder = new GameStateValues.Builder();
+        for (GameStateKey<?> key : keys) {
+            checkIntKey(key);
+            Integer value = readLocked(key.name);
+            if (null != value) {
+                builder.values.put(key, value);
+            }
+        }
+        return builder.build();
+    }
+
+    private void notifyBulkObserversLocked(Collection<String> changedKeys) {
+        for (BulkObserver bulkObserver : bulkObservers) {
+            if (!Collections.disjoint(bulkObserver.names, changedKeys)) {
+                bulkObserver.postValue(readAllLocked(bulkObserver.keys));
+            }
+        }
+    }
+
+    private static void checkIntKey(GameStateKey<?> key) {
+        if (key.type != GameStateKey.Type.INT) {
+            throw new IllegalArgumentException(
+                    "The mapped game state only stores int values: " + key);
+        }
+    }
+
+    /**
+     * Forces the mapping to storage.
+     */
+    public synchronized void sync() {
+        buffer.force();
+    }
+}
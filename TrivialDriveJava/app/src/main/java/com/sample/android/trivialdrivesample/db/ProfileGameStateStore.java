@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+/**
+ * A GameStateStore that can hold the game state of any number of player profiles in the same
+ * underlying storage. The store itself reads and writes the keys of one of them.
+ */
+public interface ProfileGameStateStore extends GameStateStore {
+    /**
+     * Returns the store of another player profile, sharing the same underlying storage. This is
+     * cheap; it doesn't read anything.
+     */
+    ProfileGameStateStore forProfile(String profileId);
+}
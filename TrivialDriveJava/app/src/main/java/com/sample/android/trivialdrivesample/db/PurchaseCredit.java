@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/*
+    An entry in the credit ledger. Every consumable purchase gets one, keyed by its purchase token,
+    before it is consumed. It is marked as credited in the same transaction that adds the gas, so a
+    purchase can never be credited twice, and a purchase that was consumed but never credited
+    (because the process died) can be found and credited later. The gas goes to the profile that
+    was active when the purchase was made, whichever profile is active when it is credited.
+ */
+@Entity(indices = {@Index("state")})
+public class PurchaseCredit {
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_CREDITED = 1;
+
+    public PurchaseCredit(@NonNull String purchaseToken, @NonNull String sku, int units, int state,
+            long createdTime, long creditedTime, @NonNull String profileId) {
+        this.purchaseToken = purchaseToken;
+        this.sku = sku;
+        this.units = units;
+        this.state = state;
+        this.createdTime = createdTime;
+        this.creditedTime = creditedTime;
+        this.profileId = profileId;
+    }
+
+    @PrimaryKey
+    @NonNull
+    public String purchaseToken;
+    // the SKU that was credited; kept for auditing
+    @NonNull
+    public String sku;
+    // the number of units of gas to credit
+    public int units;
+    public int state;
+    public long createdTime;
+    public long creditedTime;
+    // the player profile that the gas is credited to
+    @NonNull
+    public String profileId;
+}
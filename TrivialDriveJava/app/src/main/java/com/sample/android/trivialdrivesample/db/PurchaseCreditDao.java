@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface PurchaseCreditDao {
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertIfAbsent(List<PurchaseCredit> credits);
+
+    @Query("SELECT * FROM PurchaseCredit WHERE purchaseToken IN (:purchaseTokens) AND state = "
+            + PurchaseCredit.STATE_PENDING)
+    List<PurchaseCredit> getPending(List<String> purchaseTokens);
+
+    @Query("SELECT * FROM PurchaseCredit WHERE state = " + PurchaseCredit.STATE_PENDING)
+    List<PurchaseCredit> getAllPending();
+
+    @Query("SELECT * FROM PurchaseCredit WHERE state = " + PurchaseCredit.STATE_CREDITED)
+    List<PurchaseCredit> getAllCredited();
+
+    @Query("UPDATE PurchaseCredit SET state = " + PurchaseCredit.STATE_CREDITED
+            + ", creditedTime = :creditedTime WHERE purchaseToken IN (:purchaseTokens)")
+    int markCredited(List<String> purchaseTokens, long creditedTime);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Transformations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The GameStateStore backed by Room. Each instance reads and writes the keys of one profile.
+ */
+public class RoomGameStateStore implements ProfileGameStateStore {
+    final GameStateDatabase db;
+    final GameStateDao gameStateDao;
+    final String profileId;
+
+    public RoomGameStateStore(@NonNull GameStateDatabase db) {
+        this(db, GameState.DEFAULT_PROFILE);
+    }
+
+    public RoomGameStateStore(@NonNull GameStateDatabase db, @NonNull String profileId) {
+        this.db = db;
+        this.profileId = profileId;
+        gameStateDao = db.gameStateDao();
+    }
+
+    @Override
+    public LiveData<Integer> observe(String key) {
+        return gameStateDao.observe(profileId, key);
+    }
+
+    @Override
+    public Integer get(String key) {
+        return gameStateDao.get(profileId, key);
+    }
+
+    @Override
+    public void put(String key, int value) {
+        gameStateDao.put(profileId, key, value);
+    }
+
+    @Override
+    public int decrement(String key, int minValue) {
+        return gameStateDao.decrement(profileId, key, minValue);
+    }
+
+    @Override
+    public int increment(String key, int maxValue) {
+        return gameStateDao.increment(profileId, key, maxValue);
+    }
+
+    @Override
+    public GameStateValues getAll(Collection<GameStateKey<?>> keys) {
+        return GameStateValues.fromRows(keys, gameStateDao.getAll(profileId, namesOf(keys)));
+    }
+
+    @Override
+    public LiveData<GameStateValues> observeAll(Collection<GameStateKey<?>> keys) {
+        final List<GameStateKey<?>> observedKeys = new ArrayList<>(keys);
+        return Transformations.map(gameStateDao.observeAll(profileId, namesOf(observedKeys)),
+                rows -> GameStateValues.fromRows(observedKeys, rows));
+    }
+
+    @Override
+    public void putAll(GameStateValues values) {
+        gameStateDao.putAll(values.toRows(profileId));
+    }
+
+    @Override
+    public void applyDeltas(Map<GameStateKey<?>, Long> deltas) {
+        Map<String, Long> deltasByName = new HashMap<>();
+        for (Map.Entry<GameStateKey<?>, Long> delta : deltas.entrySet()) {
+            if (!delta.getKey().isNumeric()) {
+                throw new IllegalArgumentException("Not a numeric key: " + delta.getKey());
+            }
+            deltasByName.put(delta.getKey().name, delta.getValue());
+        }
+        gameStateDao.applyDeltas(profileId, deltasByName);
+    }
+
+    @Override
+    public boolean supportsType(GameStateKey.Type type) {
+        return true;
+    }
+
+    @Override
+    public ProfileGameStateStore forProfile(String profileId) {
+        return this.profileId.equals(profileId) ? this : new RoomGameStateStore(db, profileId);
+    }
+
+    private static List<String> namesOf(Collection<GameStateKey<?>> keys) {
+        List<String> names = new ArrayList<>(keys.size());
+        for (GameStateKey<?> key : keys) {
+            names.add(key.name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.scheduler;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all of the app's background work on a small shared pool of threads.
+ * <p>
+ * Work is submitted to a named lane. Tasks in a lane run one at a time, in the order they were
+ * submitted, so a lane can be used like a single thread executor. Whenever a thread is free, it
+ * takes the next task from the highest priority lane that has one waiting and isn't already
+ * running, so a backlog in a lower priority lane never delays the user: at most one task that is
+ * already running stands in the way. With more than one thread, one of them is also kept back for
+ * the user-interactive lane, so the lower priority lanes can't hold every thread at once.
+ * <p>
+ * Lanes have bounded queues. {@link #execute} throws a RejectedExecutionException when the lane is
+ * full, while {@link #tryExecute} just reports it, for callers (like the main thread) that would
+ * rather drop the task than crash. Each lane keeps its queue depth along with histograms of how
+ * long tasks waited and ran.
+ * <p>
+ * A thread takes on the priority of the lane it is running a task for, so user-interactive work
+ * isn't run at background priority.
+ */
+public class AppScheduler {
+    private static final String TAG = "TrivialDrive:" + AppScheduler.class.getSimpleName();
+    private static final int DEFAULT_THREAD_COUNT = 2;
+
+    /**
+     * Lanes, from the highest priority to the lowest.
+     */
+    public enum Lane {
+        // writes the user is waiting on: driving, loading the game state and flushing it
+        USER_INTERACTIVE(256, Process.THREAD_PRIORITY_FOREGROUND),
+        // recording and crediting purchases while the billing flow is in progress
+        BILLING(128, Process.THREAD_PRIORITY_DEFAULT),
+        // catching up with purchases restored in the background
+        RECONCILIATION(1024, Process.THREAD_PRIORITY_BACKGROUND);
+
+        final int capacity;
+        final int threadPriority;
+
+        Lane(int capacity, int threadPriority) {
+            this.capacity = capacity;
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    /**
+     * A snapshot of the queue depth of a lane, along with its (live) histograms.
+     */
+    public static final class LaneStats {
+        public final Lane lane;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final long rejected;
+        public final LatencyHistogram waitTime;
+        public final LatencyHistogram runTime;
+
+        LaneStats(Lane lane, int queueDepth, int maxQueueDepth, long rejected,
+                LatencyHistogram waitTime, LatencyHistogram runTime) {
+            this.lane = lane;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.rejected = rejected;
+            this.waitTime = waitTime;
+            this.runTime = runTime;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return lane + ": depth=" + queueDepth + " maxDepth=" + maxQueueDepth
+                    + " rejected=" + rejected + "\n  wait " + waitTime + "\n  run  " + runTime;
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long enqueuedNanos;
+
+        Task(Runnable runnable, long enqueuedNanos) {
+            this.runnable = runnable;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private static final class LaneQueue {
+        final Lane lane;
+        final ArrayDeque<Task> tasks;
+        final LatencyHistogram waitTime = new LatencyHistogram();
+        final LatencyHistogram runTime = new LatencyHistogram();
+        boolean running = false;
+        int maxQueueDepth = 0;
+        long rejected = 0;
+
+        LaneQueue(Lane lane) {
+            this.lane = lane;
+            this.tasks = new ArrayDeque<>(Math.min(lane.capacity, 16));
+        }
+    }
+
+    // Guarded by this.
+    private final LaneQueue[] laneQueues;
+    // The number of threads that may run tasks of the lower priority lanes at the same time.
+    private final int backgroundThreadLimit;
+    // Guarded by this.
+    private int backgroundThreadsRunning = 0;
+    // Only used to wait out the delay of scheduled tasks, which then go into their lane.
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "TrivialDrive-scheduler-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public AppScheduler() {
+        this(DEFAULT_THREAD_COUNT);
+    }
+
+    public AppScheduler(int threadCount) {
+        Lane[] lanes = Lane.values();
+        laneQueues = new LaneQueue[lanes.length];
+        for (Lane lane : lanes) {
+            laneQueues[lane.ordinal()] = new LaneQueue(lane);
+        }
+        backgroundThreadLimit = Math.max(1, threadCount - 1);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::runTasks, "TrivialDrive-scheduler-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues the task at the end of the lane.
+     *
+     * @throws RejectedExecutionException if the lane is full
+     */
+    public void execute(@NonNull Lane lane, @NonNull Runnable runnable) {
+        if (!tryExecute(lane, runnable)) {
+            throw new RejectedExecutionException("Lane " + lane + " is full");
+        }
+    }
+
+    /**
+     * Queues the task at the end of the lane, unless the lane is full.
+     *
+     * @return false if the lane is full and the task was dropped
+     */
+    public boolean tryExecute(@NonNull Lane lane, @NonNull Runnable runnable) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (this) {
+            LaneQueue laneQueue = laneQueues[lane.ordinal()];
+            if (laneQueue.tasks.size() >= lane.capacity) {
+                laneQueue.rejected++;
+                return false;
+            }
+            laneQueue.tasks.add(new Task(runnable, now));
+            laneQueue.maxQueueDepth = Math.max(laneQueue.maxQueueDepth, laneQueue.tasks.size());
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the task at the end of the lane, returning a Future that completes once it has run.
+     *
+     * @throws RejectedExecutionException if the lane is full
+     */
+    @NonNull
+    public Future<?> submit(@NonNull Lane lane, @NonNull Runnable runnable) {
+        FutureTask<Void> future = new FutureTask<>(runnable, null);
+        execute(lane, future);
+        return future;
+    }
+
+    /**
+     * Queues the task at the end of the lane once the delay has elapsed. If the lane is full by
+     * then, the task waits for another delay, so deferred work is postponed rather than lost.
+     */
+    public void schedule(@NonNull Lane lane, @NonNull Runnable runnable, long delay,
+            @NonNull TimeUnit unit) {
+        timer.schedule(() -> {
+            if (!tryExecute(lane, runnable)) {
+                Log.w(TAG, "Lane " + lane + " is full, postponing a scheduled task");
+                schedule(lane, runnable, delay, unit);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * @return an Executor that queues its tasks on the lane
+     */
+    @NonNull
+    public Executor executorFor(@NonNull Lane lane) {
+        return runnable -> execute(lane, runnable);
+    }
+
+    @NonNull
+    public synchronized LaneStats getLaneStats(@NonNull Lane lane) {
+        LaneQueue laneQueue = laneQueues[lane.ordinal()];
+        return new LaneStats(lane, laneQueue.tasks.size(), laneQueue.maxQueueDepth,
+                laneQueue.rejected, laneQueue.waitTime, laneQueue.runTime);
+    }
+
+    /**
+     * Dumps the stats of every lane to the log and returns them as a String.
+     */
+    @NonNull
+    public String dumpLaneStats() {
+        StringBuilder sb = new StringBuilder("Scheduler lanes:");
+        for (Lane lane : Lane.values()) {
+            sb.append('\n').append(getLaneStats(lane));
+        }
+        String dump = sb.toString();
+        Log.i(TAG, dump);
+        return dump;
+    }
+
+    /*
+        Takes the first task of the highest priority lane that has one waiting and isn't running,
+        skipping the lower priority lanes if they already have all the threads they may use.
+     */
+    private LaneQueue nextLaneLocked() {
+        for (LaneQueue laneQueue : laneQueues) {
+            if (laneQueue.lane != Lane.USER_INTERACTIVE
+                    && backgroundThreadsRunning >= backgroundThreadLimit) {
+                return null;
+            }
+            if (!laneQueue.running && !laneQueue.tasks.isEmpty()) {
+                return laneQueue;
+            }
+        }
+        return null;
+    }
+
+    private void runTasks() {
+        int threadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+        Process.setThreadPriority(threadPriority);
+        while (true) {
+            LaneQueue laneQueue;
+            Task task;
+            synchronized (this) {
+                while (null == (laneQueue = nextLaneLocked())) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                laneQueue.running = true;
+                if (laneQueue.lane != Lane.USER_INTERACTIVE) {
+                    backgroundThreadsRunning++;
+                }
+                task = laneQueue.tasks.poll();
+            }
+            if (threadPriority != laneQueue.lane.threadPriority) {
+                threadPriority = laneQueue.lane.threadPriority;
+                Process.setThreadPriority(threadPriority);
+            }
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            laneQueue.waitTime.record(startNanos - task.enqueuedNanos);
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Uncaught exception in lane " + laneQueue.lane, e);
+            }
+            laneQueue.runTime.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+            synchronized (this) {
+                laneQueue.running = false;
+                if (laneQueue.lane != Lane.USER_INTERACTIVE) {
+                    backgroundThreadsRunning--;
+                }
+                // another thread may have been waiting for this lane
+                notify();
+            }
+        }
+    }
+}
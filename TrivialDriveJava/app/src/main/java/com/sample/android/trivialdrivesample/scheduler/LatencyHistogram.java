@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.scheduler;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * A fixed-size histogram of durations with power-of-two millisecond buckets: under 1ms, under 2ms,
+ * under 4ms, and so on up to the last bucket, which holds everything longer. Recording never
+ * allocates, and percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    static final int BUCKET_COUNT = 12;
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long totalNanos;
+
+    public synchronized void record(long nanos) {
+        long millis = nanos / 1_000_000L;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        buckets[bucket]++;
+        count++;
+        totalNanos += nanos;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMeanMillis() {
+        return 0 == count ? 0 : totalNanos / (double) count / 1_000_000.0;
+    }
+
+    /**
+     * @return the upper bound, in milliseconds, of the bucket that holds the percentile, or
+     * Long.MAX_VALUE if it is in the last bucket
+     */
+    public synchronized long getPercentileMillis(double percentile) {
+        if (0 == count) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return a copy of the bucket counts
+     */
+    @NonNull
+    public synchronized long[] getBuckets() {
+        return buckets.clone();
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d mean=%.1fms p50<%s p90<%s p99<%s", count,
+                getMeanMillis(), bound(getPercentileMillis(50)), bound(getPercentileMillis(90)),
+                bound(getPercentileMillis(99)));
+    }
+
+    private static String bound(long millis) {
+        return millis == Long.MAX_VALUE ? "inf" : millis + "ms";
+    }
+}
@@ -83,6 +83,8 @@ public class MainActivity extends AppCompatActivity {
         });
         // Allows billing to refresh purchases during onResume
         getLifecycle().addObserver(mainActivityViewModel.getBillingLifecycleObserver());
+        // Allows the game state to flush its pending writes during onStop
+        getLifecycle().addObserver(mainActivityViewModel.getGameStateLifecycleObserver());
 
         // A helpful hint to prevent confusion when billing transactions silently fail
         if ( BuildConfig.BASE64_ENCODED_PUBLIC_KEY.equals("null")) {
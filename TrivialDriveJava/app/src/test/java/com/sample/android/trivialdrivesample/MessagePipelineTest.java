@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.sample.android.trivialdrivesample.ui.SingleMediatorLiveEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessagePipelineTest {
+    private static final long INTERVAL_MILLISECONDS = 1000L;
+
+    private final List<Integer> shown = new ArrayList<>();
+    private int refreshes = 0;
+    private ShadowLooper mainLooper;
+    private MessagePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        SingleMediatorLiveEvent<Integer> output = new SingleMediatorLiveEvent<>();
+        output.observeForever(shown::add);
+        mainLooper = shadowOf(Looper.getMainLooper());
+        pipeline = new MessagePipeline(output, () -> refreshes++,
+                new Handler(Looper.getMainLooper()));
+        pipeline.setMinNotificationInterval(INTERVAL_MILLISECONDS);
+    }
+
+    @Test
+    public void gameMessagesWaitBehindPurchaseMessages() {
+        pipeline.offerGameMessage(R.string.message_you_drove);
+        pipeline.offerPurchaseMessage(R.string.message_more_gas_acquired);
+        mainLooper.idle();
+        assertEquals(Collections.singletonList(R.string.message_more_gas_acquired), shown);
+
+        mainLooper.idleFor(Duration.ofMillis(INTERVAL_MILLISECONDS));
+        assertEquals(Arrays.asList(R.string.message_more_gas_acquired,
+                R.string.message_you_drove), shown);
+    }
+
+    @Test
+    public void purchaseMessagesInABatchAreAggregated() {
+        pipeline.offerPurchaseMessage(R.string.message_more_gas_acquired);
+        pipeline.offerPurchaseMessage(R.string.message_premium);
+        pipeline.offerPurchaseMessage(R.string.message_premium);
+        mainLooper.idle();
+        assertEquals(Collections.singletonList(R.string.message_multiple_purchases), shown);
+    }
+
+    @Test
+    public void theLatestGameMessageWins() {
+        pipeline.offerGameMessage(R.string.message_you_drove);
+        pipeline.offerGameMessage(R.string.message_out_of_gas);
+        mainLooper.idle();
+        assertEquals(Collections.singletonList(R.string.message_out_of_gas), shown);
+    }
+
+    @Test
+    public void notificationsAreRateLimited() {
+        pipeline.offerGameMessage(R.string.message_you_drove);
+        mainLooper.idle();
+        pipeline.offerGameMessage(R.string.message_out_of_gas);
+        mainLooper.idle();
+        assertEquals(Collections.singletonList(R.string.message_you_drove), shown);
+
+        mainLooper.idleFor(Duration.ofMillis(INTERVAL_MILLISECONDS));
+        assertEquals(Arrays.asList(R.string.message_you_drove, R.string.message_out_of_gas),
+                shown);
+    }
+
+    @Test
+    public void purchasesAreRefreshedOncePerBatch() {
+        pipeline.requestPurchaseRefresh();
+        pipeline.requestPurchaseRefresh();
+        pipeline.offerPurchaseMessage(R.string.message_subscribed);
+        mainLooper.idle();
+        assertEquals(1, refreshes);
+        assertEquals(Collections.singletonList(R.string.message_subscribed), shown);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.billing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.sample.android.trivialdrivesample.billing.PurchaseTracer.Stage;
+import com.sample.android.trivialdrivesample.billing.PurchaseTracer.TraceContext;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseTracerTest {
+    private static final List<String> GAS = Collections.singletonList("gas");
+
+    private final PurchaseTracer tracer = new PurchaseTracer();
+
+    private int count(Stage stage) {
+        return tracer.getStageLatencies()[stage.ordinal()].count;
+    }
+
+    @Test
+    public void aTraceIsOnlyClaimedOnce() {
+        TraceContext trace = tracer.beginTrace("gas");
+        assertSame(trace, tracer.claimTrace(Arrays.asList("premium", "gas")));
+        // a refresh that restores another gas purchase doesn't get it
+        assertNull(tracer.claimTrace(GAS));
+    }
+
+    @Test
+    public void aTraceIsOnlyEndedOnce() {
+        TraceContext trace = tracer.beginTrace("gas");
+        tracer.claimTrace(GAS);
+        tracer.endTrace(trace);
+        tracer.endTrace(trace);
+        tracer.abandonTrace(trace);
+        assertEquals(1, count(Stage.END_TO_END));
+    }
+
+    @Test
+    public void abandonedTracesAreNotRecorded() {
+        TraceContext launchFailed = tracer.beginTrace("gas");
+        tracer.abandonTrace(launchFailed);
+        assertNull(tracer.claimTrace(GAS));
+
+        TraceContext consumeFailed = tracer.beginTrace("gas");
+        tracer.claimTrace(GAS);
+        tracer.abandonTrace(consumeFailed);
+        tracer.endTrace(consumeFailed);
+        assertEquals(0, count(Stage.END_TO_END));
+    }
+
+    @Test
+    public void endingAClaimedTraceLeavesTheNextFlowInFlight() {
+        TraceContext first = tracer.beginTrace("gas");
+        tracer.claimTrace(GAS);
+        TraceContext second = tracer.beginTrace("gas");
+        tracer.endTrace(first);
+
+        TraceContext claimed = tracer.claimTrace(GAS);
+        assertSame(second, claimed);
+        assertNotSame(first, claimed);
+        tracer.recordSinceMark(claimed, Stage.PURCHASES_UPDATED);
+        tracer.endTrace(claimed);
+        assertEquals(1, count(Stage.PURCHASES_UPDATED));
+        assertEquals(2, count(Stage.END_TO_END));
+    }
+
+    @Test
+    public void nullTracesAreIgnored() {
+        tracer.recordSinceMark(null, Stage.CONSUME);
+        tracer.recordStage(null, Stage.CONSUME, tracer.now());
+        tracer.endTrace(null);
+        tracer.abandonTrace(null);
+        assertEquals(0, count(Stage.CONSUME));
+    }
+}
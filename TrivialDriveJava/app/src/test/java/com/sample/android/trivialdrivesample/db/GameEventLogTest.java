@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class GameEventLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysOnlyTheEventsAfterTheSnapshot() throws Exception {
+        File file = folder.newFile("events.log");
+        GameEventLog log = new GameEventLog(file);
+        assertTrue(log.open(0).isEmpty());
+        log.append(GameEventLog.TYPE_DRIVE, -1, 3, null);
+        log.append(GameEventLog.TYPE_DRIVE, -1, 2, null);
+        log.append(GameEventLog.TYPE_GRANT, 1, 3, "token");
+        log.writePending(false);
+
+        List<GameEventLog.Event> tail = new GameEventLog(file).open(1);
+        assertEquals(2, tail.size());
+        assertEquals(2, tail.get(0).seq);
+        assertEquals(3, tail.get(1).level);
+        assertEquals("token", tail.get(1).purchaseToken);
+    }
+
+    @Test
+    public void dropsATornRecord() throws Exception {
+        File file = folder.newFile("events.log");
+        GameEventLog log = new GameEventLog(file);
+        log.open(0);
+        log.append(GameEventLog.TYPE_REFUEL, 1, 4, null);
+        log.writePending(false);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            // the start of a record that was never finished
+            out.write(new byte[]{0, 0, 0, 30, 1, 2, 3});
+        }
+
+        GameEventLog reopened = new GameEventLog(file);
+        assertEquals(1, reopened.open(0).size());
+        reopened.append(GameEventLog.TYPE_DRIVE, -1, 3, null);
+        reopened.writePending(false);
+        List<GameEventLog.Event> events = new GameEventLog(file).open(0);
+        assertEquals(2, events.size());
+        assertEquals(2, events.get(1).seq);
+    }
+
+    @Test
+    public void compactionKeepsTheTailAndEveryGrant() throws Exception {
+        File file = folder.newFile("events.log");
+        GameEventLog log = new GameEventLog(file);
+        log.open(0);
+        log.append(GameEventLog.TYPE_GRANT, 1, 4, "first");
+        for (int i = 0; i < 10; i++) {
+            log.append(GameEventLog.TYPE_DRIVE, -1, 3, null);
+        }
+        log.writePending(false);
+        log.onSnapshot(log.getLastSeq());
+        log.append(GameEventLog.TYPE_DRIVE, -1, 2, null);
+        log.writePending(false);
+        log.compact();
+
+        assertEquals(1, log.readGrants().size());
+        List<GameEventLog.Event> tail = new GameEventLog(file).open(11);
+        assertEquals(1, tail.size());
+        assertEquals(12, tail.get(0).seq);
+        assertTrue(file.length() > 0);
+    }
+
+    @Test
+    public void grantsDontCountTowardsCompaction() throws Exception {
+        File file = folder.newFile("events.log");
+        GameEventLog log = new GameEventLog(file);
+        log.open(0);
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            token.append('t');
+        }
+        for (int i = 0; i < 400; i++) {
+            log.append(GameEventLog.TYPE_GRANT, 1, 4, token.toString() + i);
+        }
+        log.writePending(false);
+        log.onSnapshot(log.getLastSeq());
+        assertTrue(file.length() > 64 * 1024);
+        assertFalse(log.needsCompaction());
+        // and still not once the log has been reopened
+        GameEventLog reopened = new GameEventLog(file);
+        reopened.open(log.getLastSeq());
+        assertFalse(reopened.needsCompaction());
+
+        for (int i = 0; i < 3000; i++) {
+            log.append(GameEventLog.TYPE_DRIVE, -1, 3, null);
+        }
+        log.writePending(false);
+        log.onSnapshot(log.getLastSeq());
+        assertTrue(log.needsCompaction());
+        log.compact();
+        assertFalse(log.needsCompaction());
+        assertEquals(400, log.readGrants().size());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.annotation.SuppressLint;
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a mixed workload of observe, increment, decrement and put against the real GameStateDao
+ * under each combination of:
+ * <p>
+ * journal mode: write-ahead logging or rollback (truncate)
+ * synchronous: NORMAL or FULL
+ * invalidation tracker: with an observer on GameState (so every write is tracked, and observing
+ * means refreshing the tracker and re-running the query, like a LiveData does), or without one
+ * (observing is just the query)
+ * <p>
+ * Each configuration reports per-operation latency percentiles and the overall throughput. The
+ * operation mix comes from a fixed seed, so every configuration runs the same sequence.
+ * <p>
+ * Robolectric's SQLite isn't the device's, so compare configurations with each other and with
+ * previous runs rather than reading too much into the absolute numbers. The measurements are only
+ * taken when the tests are run with -Pbenchmark.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GameStateDaoBenchmark {
+    private static final String DATABASE_NAME = "GameStateDaoBenchmark.db";
+    private static final String PROFILE = GameState.DEFAULT_PROFILE;
+    private static final String KEY = "gas";
+    private static final int MAX_LEVEL = 4;
+    private static final int WARMUP_OPERATIONS = 200;
+    private static final int MEASURED_OPERATIONS = 2000;
+    private static final long SEED = 42L;
+
+    private static final int OBSERVE = 0;
+    private static final int INCREMENT = 1;
+    private static final int DECREMENT = 2;
+    private static final int PUT = 3;
+    private static final String[] OPERATION_NAMES = {"observe", "increment", "decrement", "put"};
+    // Out of 100: mostly gameplay, with the occasional put and a UI that observes.
+    private static final int[] OPERATION_WEIGHTS = {20, 35, 35, 10};
+
+    private static final class Config {
+        final RoomDatabase.JournalMode journalMode;
+        final String synchronous;
+        final boolean invalidationTracker;
+
+        Config(RoomDatabase.JournalMode journalMode, String synchronous,
+                boolean invalidationTracker) {
+            this.journalMode = journalMode;
+            this.synchronous = synchronous;
+            this.invalidationTracker = invalidationTracker;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-5s %-6s %s",
+                    journalMode == RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING ? "wal" : "rbj",
+                    synchronous.toLowerCase(Locale.US),
+                    invalidationTracker ? "tracker" : "no-tracker");
+        }
+    }
+
+    private Application application;
+    private GameStateDatabase db;
+
+    @Before
+    public void setUp() {
+        application = ApplicationProvider.getApplicationContext();
+    }
+
+    @After
+    public void tearDown() {
+        closeDatabase();
+    }
+
+    private void closeDatabase() {
+        if (null != db) {
+            db.close();
+            db = null;
+        }
+        application.deleteDatabase(DATABASE_NAME);
+    }
+
+    private GameStateDao open(@NonNull Config config) {
+        closeDatabase();
+        db = Room.databaseBuilder(application, GameStateDatabase.class, DATABASE_NAME)
+                .createFromAsset("database/initialgamestate.db")
+                .addMigrations(GameStateDatabase.MIGRATIONS)
+                .setJournalMode(config.journalMode)
+                .addCallback(new RoomDatabase.Callback() {
+                    @Override
+                    public void onOpen(@NonNull SupportSQLiteDatabase db) {
+                        db.query("PRAGMA synchronous = " + config.synchronous).close();
+                    }
+                })
+                .allowMainThreadQueries()
+                .build();
+        return db.gameStateDao();
+    }
+
+    private static List<Config> allConfigs() {
+        List<Config> configs = new ArrayList<>();
+        for (RoomDatabase.JournalMode journalMode : new RoomDatabase.JournalMode[]{
+                RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING, RoomDatabase.JournalMode.TRUNCATE}) {
+            for (String synchronous : new String[]{"NORMAL", "FULL"}) {
+                for (boolean invalidationTracker : new boolean[]{true, false}) {
+                    configs.add(new Config(journalMode, synchronous, invalidationTracker));
+                }
+            }
+        }
+        return configs;
+    }
+
+    private static int[] operationSequence(int length) {
+        Random random = new Random(SEED);
+        int[] operations = new int[length];
+        for (int i = 0; i < length; i++) {
+            int roll = random.nextInt(100);
+            int operation = 0;
+            while (roll >= OPERATION_WEIGHTS[operation]) {
+                roll -= OPERATION_WEIGHTS[operation];
+                operation++;
+            }
+            operations[i] = operation;
+        }
+        return operations;
+    }
+
+    @Test
+    public void configurationsBehaveTheSame() {
+        int[] operations = operationSequence(WARMUP_OPERATIONS);
+        Integer expectedLevel = null;
+        for (Config config : allConfigs()) {
+            GameStateDao dao = open(config);
+            for (int i = 0; i < operations.length; i++) {
+                run(dao, operations[i], i, false);
+            }
+            Integer level = dao.get(PROFILE, KEY);
+            if (null == expectedLevel) {
+                expectedLevel = level;
+            }
+            assertEquals(config.toString(), expectedLevel, level);
+        }
+    }
+
+    @Test
+    public void compareConfigurations() {
+        assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        int[] operations = operationSequence(WARMUP_OPERATIONS + MEASURED_OPERATIONS);
+        System.out.println("config                 op         count   p50(us)   p90(us)   p99(us)");
+        for (Config config : allConfigs()) {
+            GameStateDao dao = open(config);
+            final AtomicLong invalidations = new AtomicLong();
+            if (config.invalidationTracker) {
+                db.getInvalidationTracker().addObserver(
+                        new InvalidationTracker.Observer("GameState") {
+                            @Override
+                            public void onInvalidated(@NonNull Set<String> tables) {
+                                invalidations.incrementAndGet();
+                            }
+                        });
+            }
+            long[][] latencies = new long[OPERATION_NAMES.length][MEASURED_OPERATIONS];
+            int[] counts = new int[OPERATION_NAMES.length];
+            long measuredStart = 0;
+            for (int i = 0; i < operations.length; i++) {
+                if (i == WARMUP_OPERATIONS) {
+                    measuredStart = System.nanoTime();
+                }
+                long start = System.nanoTime();
+                run(dao, operations[i], i, config.invalidationTracker);
+                long nanos = System.nanoTime() - start;
+                if (i >= WARMUP_OPERATIONS) {
+                    latencies[operations[i]][counts[operations[i]]++] = nanos;
+                }
+            }
+            double seconds = (System.nanoTime() - measuredStart) / 1e9;
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                System.out.println(String.format(Locale.US, "%-22s %-10s %5d %s", config,
+                        OPERATION_NAMES[operation], counts[operation],
+                        percentiles(Arrays.copyOf(latencies[operation], counts[operation]))));
+            }
+            System.out.println(String.format(Locale.US, "%-22s throughput %.0f ops/s%s", config,
+                    MEASURED_OPERATIONS / seconds, config.invalidationTracker ?
+                            " (" + invalidations.get() + " invalidations)" : ""));
+            assertTrue(counts[OBSERVE] > 0);
+        }
+    }
+
+    /*
+        With the tracker, observing does what a LiveData does when it becomes active: sync the
+        tracker, then run the query.
+     */
+    @SuppressLint("RestrictedApi")
+    private void run(@NonNull GameStateDao dao, int operation, int i, boolean tracked) {
+        switch (operation) {
+            case OBSERVE:
+                if (tracked) {
+                    db.getInvalidationTracker().refreshVersionsSync();
+                }
+                dao.get(PROFILE, KEY);
+                break;
+            case INCREMENT:
+                dao.increment(PROFILE, KEY, MAX_LEVEL);
+                break;
+            case DECREMENT:
+                dao.decrement(PROFILE, KEY, 0);
+                break;
+            case PUT:
+                dao.put(PROFILE, KEY, i % (MAX_LEVEL + 1));
+                break;
+        }
+    }
+
+    private static String percentiles(long[] nanos) {
+        if (nanos.length == 0) return "";
+        long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "%9.1f %9.1f %9.1f",
+                sorted[sorted.length / 2] / 1e3,
+                sorted[sorted.length * 9 / 10] / 1e3,
+                sorted[sorted.length * 99 / 100] / 1e3);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Application;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class GameStateModelTest {
+    private static final int MAX_LEVEL = GameStateModel.INITIAL_GAS_LEVEL;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private Application application;
+    private GameStateDatabase db;
+    private AppScheduler scheduler;
+    private GameStateModel model;
+
+    @Before
+    public void setUp() throws Exception {
+        application = ApplicationProvider.getApplicationContext();
+        // the event logs go with the database
+        File[] files = application.getFilesDir().listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        db = Room.inMemoryDatabaseBuilder(application, GameStateDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+        model = startModel();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    /*
+        A new model on the same database, like the app after its process has been restarted.
+     */
+    private GameStateModel startModel() throws Exception {
+        return startModel(GameStateModel.Backend.ROOM);
+    }
+
+    private GameStateModel startModel(GameStateModel.Backend backend) throws Exception {
+        scheduler = new AppScheduler();
+        GameStateModel model = new GameStateModel(application, db, backend, scheduler);
+        drain(Lane.USER_INTERACTIVE);
+        return model;
+    }
+
+    private void drain(Lane lane) throws Exception {
+        scheduler.submit(lane, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+        Like the app going into the background: flushes right away instead of after the delay.
+     */
+    private void stop() throws Exception {
+        model.stop();
+        drain(Lane.USER_INTERACTIVE);
+    }
+
+    private void switchProfile(String profileId) throws Exception {
+        assertTrue(model.switchProfile(profileId));
+        // the profile is loaded in the user-interactive lane the first time
+        drain(Lane.USER_INTERACTIVE);
+    }
+
+    private Integer storedGasLevel() {
+        return new RoomGameStateStore(db).get(GasLevelPersistence.GAS_LEVEL);
+    }
+
+    @Test
+    public void changesArePublishedBeforeTheyAreWritten() throws Exception {
+        model.decrementGas(0);
+        model.decrementGas(0);
+        assertEquals(MAX_LEVEL - 2, (int) model.getCurrentGasTankLevel());
+        // the write is behind, and the events go to the log rather than the store
+        assertNull(storedGasLevel());
+
+        stop();
+        assertEquals(MAX_LEVEL - 2, (int) storedGasLevel());
+    }
+
+    @Test
+    public void changesSurviveARestartWithoutAStop() throws Exception {
+        model.decrementGas(0);
+        model.decrementGas(0);
+        model.incrementGas(MAX_LEVEL);
+        // wait out the write-behind delay
+        Thread.sleep(1000);
+        drain(Lane.USER_INTERACTIVE);
+
+        model = startModel();
+        assertEquals(MAX_LEVEL - 1, (int) model.getCurrentGasTankLevel());
+    }
+
+    @Test
+    public void laterChangesAreWrittenAfterAnEarlierFlush() throws Exception {
+        model.decrementGas(0);
+        stop();
+        model.decrementGas(0);
+        stop();
+
+        assertEquals(MAX_LEVEL - 2, (int) storedGasLevel());
+        model = startModel();
+        assertEquals(MAX_LEVEL - 2, (int) model.getCurrentGasTankLevel());
+    }
+
+    @Test
+    public void incrementGasCompletesOnceTheLevelHasBeenWritten() throws Exception {
+        AtomicInteger completed = new AtomicInteger();
+        // the tank is full, so there is nothing to write
+        model.incrementGas(MAX_LEVEL, completed::incrementAndGet);
+        assertEquals(1, completed.get());
+
+        model.decrementGas(0);
+        model.incrementGas(MAX_LEVEL, completed::incrementAndGet);
+        assertEquals(1, completed.get());
+        stop();
+        assertEquals(2, completed.get());
+    }
+
+    @Test
+    public void everyDriveUsesExactlyOneUnit() throws Exception {
+        final int threadCount = 4;
+        final int drivesPerThread = 10;
+        List<Integer> levels = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < drivesPerThread; j++) {
+                        model.consumeGas(GameState.DEFAULT_PROFILE, 0, levels::add);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        assertEquals(threadCount * drivesPerThread, levels.size());
+        // no two drives saw the same level, and the rest found the tank empty
+        List<Integer> sorted = new ArrayList<>(levels);
+        Collections.sort(sorted);
+        for (int i = 0; i < sorted.size(); i++) {
+            int expected = i < sorted.size() - MAX_LEVEL ? -1 : i - (sorted.size() - MAX_LEVEL);
+            assertEquals(expected, (int) sorted.get(i));
+        }
+        assertEquals(0, (int) model.getCurrentGasTankLevel());
+    }
+
+    @Test
+    public void profilesKeepTheirOwnGasLevel() throws Exception {
+        LiveData<Integer> gasTankLevel = model.gasTankLevel();
+        model.decrementGas(0);
+
+        switchProfile("kid");
+        assertEquals("kid", model.getActiveProfileId());
+        assertEquals(MAX_LEVEL, (int) gasTankLevel.getValue());
+        model.decrementGas(0);
+        model.decrementGas(0);
+
+        switchProfile(GameState.DEFAULT_PROFILE);
+        // republished from the cache, on the same LiveData
+        assertSame(gasTankLevel, model.gasTankLevel());
+        assertEquals(MAX_LEVEL - 1, (int) gasTankLevel.getValue());
+        assertTrue(model.getProfileSwitchLatency().getCount() >= 2);
+
+        stop();
+        model = startModel();
+        assertEquals(MAX_LEVEL - 1, (int) model.getCurrentGasTankLevel());
+        switchProfile("kid");
+        assertEquals(MAX_LEVEL - 2, (int) model.getCurrentGasTankLevel());
+    }
+
+    @Test
+    public void drivesUseTheGasOfTheProfileTheyWereMadeFor() throws Exception {
+        List<Integer> levels = Collections.synchronizedList(new ArrayList<>());
+        // the profile isn't loaded yet, so the drive waits for it
+        model.consumeGas("kid", 0, levels::add);
+        drain(Lane.USER_INTERACTIVE);
+
+        assertEquals(Collections.singletonList(MAX_LEVEL - 1), levels);
+        assertEquals(MAX_LEVEL, (int) model.getCurrentGasTankLevel());
+        switchProfile("kid");
+        assertEquals(MAX_LEVEL - 1, (int) model.getCurrentGasTankLevel());
+    }
+
+    @Test
+    public void mappedStoreOnlyHoldsTheDefaultProfile() throws Exception {
+        model = startModel(GameStateModel.Backend.MAPPED_FILE);
+        assertFalse(model.supportsProfiles());
+        assertFalse(model.switchProfile("kid"));
+        assertEquals(GameState.DEFAULT_PROFILE, model.getActiveProfileId());
+    }
+}
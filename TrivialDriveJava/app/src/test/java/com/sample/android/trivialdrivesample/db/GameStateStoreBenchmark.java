@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assume.assumeTrue;
+
+import android.app.Application;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+/**
+ * Compares the Room and memory-mapped GameStateStores: the time to open the store (up to and
+ * including the first query, since Room opens lazily) and the latency of each operation.
+ * <p>
+ * Robolectric's SQLite isn't the device's, so the absolute numbers are only indicative; run it to
+ * compare the two stores with each other. It only runs when the tests are run with -Pbenchmark;
+ * the stores' contract is tested by RoomGameStateStoreTest and MappedGameStateStoreTest.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GameStateStoreBenchmark {
+    private static final String KEY = "gas";
+    private static final int MAX_LEVEL = 4;
+    private static final int WARMUP_OPERATIONS = 200;
+    private static final int MEASURED_OPERATIONS = 2000;
+
+    private Application application;
+    private GameStateDatabase db;
+    private File mapFile;
+
+    @Before
+    public void setUp() {
+        application = ApplicationProvider.getApplicationContext();
+        application.deleteDatabase("GameStateBenchmark.db");
+        mapFile = new File(application.getFilesDir(), "GameStateBenchmark.map");
+        mapFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (null != db) {
+            db.close();
+        }
+    }
+
+    private RoomGameStateStore openRoomStore() {
+        db = Room.databaseBuilder(application, GameStateDatabase.class, "GameStateBenchmark.db")
+                .createFromAsset("database/initialgamestate.db")
+                .addMigrations(GameStateDatabase.MIGRATIONS)
+                .allowMainThreadQueries()
+                .build();
+        return new RoomGameStateStore(db);
+    }
+
+    private MappedGameStateStore openMappedStore() throws IOException {
+        return new MappedGameStateStore(mapFile,
+                Collections.singletonMap(KEY, GameStateModel.INITIAL_GAS_LEVEL));
+    }
+
+    @Test
+    public void compareOpenAndOperationLatency() throws IOException {
+        assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        long start = System.nanoTime();
+        GameStateStore roomStore = openRoomStore();
+        roomStore.get(KEY);
+        long roomOpenNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        GameStateStore mappedStore = openMappedStore();
+        mappedStore.get(KEY);
+        long mappedOpenNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%-10s open=%.2fms",
+                "room", roomOpenNanos / 1e6));
+        System.out.println(String.format(Locale.US, "%-10s open=%.2fms",
+                "mapped", mappedOpenNanos / 1e6));
+        report("room", roomStore);
+        report("mapped", mappedStore);
+    }
+
+    private void report(String name, GameStateStore store) {
+        long[] get = new long[MEASURED_OPERATIONS];
+        long[] put = new long[MEASURED_OPERATIONS];
+        long[] increment = new long[MEASURED_OPERATIONS];
+        long[] decrement = new long[MEASURED_OPERATIONS];
+        for (int i = -WARMUP_OPERATIONS; i < MEASURED_OPERATIONS; i++) {
+            long t0 = System.nanoTime();
+            store.get(KEY);
+            long t1 = System.nanoTime();
+            store.put(KEY, i & 3);
+            long t2 = System.nanoTime();
+            store.increment(KEY, MAX_LEVEL);
+            long t3 = System.nanoTime();
+            store.decrement(KEY, 0);
+            long t4 = System.nanoTime();
+            if (i >= 0) {
+                get[i] = t1 - t0;
+                put[i] = t2 - t1;
+                increment[i] = t3 - t2;
+                decrement[i] = t4 - t3;
+            }
+        }
+        System.out.println(name + " get       " + percentiles(get));
+        System.out.println(name + " put       " + percentiles(put));
+        System.out.println(name + " increment " + percentiles(increment));
+        System.out.println(name + " decrement " + percentiles(decrement));
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "p50=%.1fus p90=%.1fus p99=%.1fus",
+                sorted[sorted.length / 2] / 1e3,
+                sorted[sorted.length * 9 / 10] / 1e3,
+                sorted[sorted.length * 99 / 100] / 1e3);
+    }
+}
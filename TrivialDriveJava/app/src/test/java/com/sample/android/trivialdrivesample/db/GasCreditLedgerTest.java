@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.app.Application;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler;
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class GasCreditLedgerTest {
+    private static final String SKU = "gas";
+    private static final int MAX_LEVEL = 10;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private Application application;
+    private GameStateDatabase db;
+    private AppScheduler scheduler;
+    private GameStateModel model;
+
+    @Before
+    public void setUp() throws Exception {
+        application = ApplicationProvider.getApplicationContext();
+        // the event logs go with the database
+        File[] files = application.getFilesDir().listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        db = Room.inMemoryDatabaseBuilder(application, GameStateDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+        model = startModel();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    /*
+        A new model on the same database, like the app after its process has been restarted.
+     */
+    private GameStateModel startModel() throws Exception {
+        scheduler = new AppScheduler();
+        GameStateModel model = new GameStateModel(application, db, GameStateModel.Backend.ROOM,
+                scheduler);
+        drain(Lane.USER_INTERACTIVE);
+        return model;
+    }
+
+    private void drain(Lane lane) throws Exception {
+        scheduler.submit(lane, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void recordPending(String purchaseToken) throws Exception {
+        model.recordPendingCredit(purchaseToken, SKU, 1, () -> { },
+                () -> fail("Unable to record " + purchaseToken));
+        drain(Lane.BILLING);
+    }
+
+    private int storedGasLevel() {
+        return new RoomGameStateStore(db).get("gas");
+    }
+
+    @Test
+    public void recordedPurchaseIsCreditedOnceConsumed() throws Exception {
+        recordPending("token");
+        assertEquals(1, db.purchaseCreditDao().getAllPending().size());
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) model.getCurrentGasTankLevel());
+
+        AtomicInteger completed = new AtomicInteger();
+        model.creditPurchase("token", SKU, 1, MAX_LEVEL, completed::incrementAndGet);
+        drain(Lane.BILLING);
+
+        assertEquals(1, completed.get());
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL + 1, (int) model.getCurrentGasTankLevel());
+        // the level is written in the same transaction as the ledger
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL + 1, storedGasLevel());
+        assertTrue(db.purchaseCreditDao().getAllPending().isEmpty());
+        assertEquals(1, db.purchaseCreditDao().getAllCredited().size());
+    }
+
+    @Test
+    public void purchaseConsumedBeforeTheProcessDiedIsCreditedByReconcile() throws Exception {
+        recordPending("consumed");
+        recordPending("still-owned");
+        // the purchase was consumed, but the process died before it was credited
+        model = startModel();
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) model.getCurrentGasTankLevel());
+
+        // the query started after both purchases were recorded
+        model.reconcileCredits(Collections.singleton("still-owned"),
+                System.currentTimeMillis() + 1, MAX_LEVEL);
+        drain(Lane.RECONCILIATION);
+
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL + 1, (int) model.getCurrentGasTankLevel());
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL + 1, storedGasLevel());
+        assertEquals(1, db.purchaseCreditDao().getAllCredited().size());
+        assertEquals("still-owned", db.purchaseCreditDao().getAllPending().get(0).purchaseToken);
+    }
+
+    @Test
+    public void duplicateCreditIsOnlyAppliedOnce() throws Exception {
+        recordPending("token");
+        AtomicInteger completed = new AtomicInteger();
+        model.creditPurchase("token", SKU, 1, MAX_LEVEL, completed::incrementAndGet);
+        drain(Lane.BILLING);
+        model.creditPurchase("token", SKU, 1, MAX_LEVEL, completed::incrementAndGet);
+        drain(Lane.BILLING);
+        // and once more by a reconciliation that finds it gone
+        model.reconcileCredits(Collections.emptySet(), System.currentTimeMillis() + 1, MAX_LEVEL);
+        drain(Lane.RECONCILIATION);
+
+        assertEquals(2, completed.get());
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL + 1, (int) model.getCurrentGasTankLevel());
+        assertEquals(1, db.purchaseCreditDao().getAllCredited().size());
+    }
+
+    @Test
+    public void reconcileLeavesPurchasesRecordedAfterTheQueryStarted() throws Exception {
+        final long queryStartedMillis = System.currentTimeMillis() - 1;
+        recordPending("token");
+
+        model.reconcileCredits(Collections.emptySet(), queryStartedMillis, MAX_LEVEL);
+        drain(Lane.RECONCILIATION);
+
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) model.getCurrentGasTankLevel());
+        assertEquals(1, db.purchaseCreditDao().getAllPending().size());
+    }
+
+    @Test
+    public void creditsNeverFillTheTankBeyondTheMaximum() throws Exception {
+        model.creditPurchase("token", SKU, MAX_LEVEL, MAX_LEVEL, null);
+        drain(Lane.BILLING);
+
+        assertEquals(MAX_LEVEL, (int) model.getCurrentGasTankLevel());
+        // credited without having been recorded as pending first
+        assertEquals(1, db.purchaseCreditDao().getAllCredited().size());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+public class MappedGameStateStoreTest {
+    private static final GameStateKey<Integer> GAS = GameStateKey.intKey("gas");
+    private static final GameStateKey<Integer> TRIPS = GameStateKey.intKey("trips");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private File file;
+    private MappedGameStateStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "GameState.map");
+        store = new MappedGameStateStore(file,
+                Collections.singletonMap(GAS.name, GameStateModel.INITIAL_GAS_LEVEL));
+    }
+
+    @Test
+    public void singleKeyOperationsStayWithinTheirBounds() {
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) store.get(GAS.name));
+        assertNull(store.get("unknown"));
+        // increment and decrement return the number of values they changed
+        assertEquals(0, store.increment(GAS.name, GameStateModel.INITIAL_GAS_LEVEL));
+        assertEquals(1, store.decrement(GAS.name, 0));
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL - 1, (int) store.get(GAS.name));
+        store.put(GAS.name, 0);
+        assertEquals(0, store.decrement(GAS.name, 0));
+        assertEquals(1, store.increment(GAS.name, GameStateModel.INITIAL_GAS_LEVEL));
+        assertEquals(1, (int) store.get(GAS.name));
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws Exception {
+        store.put(GAS.name, 2);
+        MappedGameStateStore reopened = new MappedGameStateStore(file,
+                Collections.singletonMap(GAS.name, GameStateModel.INITIAL_GAS_LEVEL));
+        assertEquals(2, (int) reopened.get(GAS.name));
+    }
+
+    @Test
+    public void onlyHoldsInts() {
+        assertTrue(store.supportsType(GameStateKey.Type.INT));
+        assertFalse(store.supportsType(GameStateKey.Type.LONG));
+        assertFalse(store.supportsType(GameStateKey.Type.STRING));
+        try {
+            store.putAll(new GameStateValues.Builder()
+                    .put(GameStateKey.longKey("distance"), 1L)
+                    .build());
+            fail("A long key was accepted");
+        } catch (IllegalArgumentException expected) {
+            // a long would be truncated
+        }
+    }
+
+    @Test
+    public void applyDeltasRejectsOverflowWithoutChangingAnything() {
+        store.put(TRIPS.name, Integer.MAX_VALUE - 1);
+        Map<GameStateKey<?>, Long> deltas = new HashMap<>();
+        deltas.put(GAS, -1L);
+        deltas.put(TRIPS, 2L);
+        try {
+            store.applyDeltas(deltas);
+            fail("The overflow wasn't detected");
+        } catch (ArithmeticException expected) {
+            // nothing was written
+        }
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) store.get(GAS.name));
+        assertEquals(Integer.MAX_VALUE - 1, (int) store.get(TRIPS.name));
+
+        deltas.put(TRIPS, 1L);
+        store.applyDeltas(deltas);
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL - 1, (int) store.get(GAS.name));
+        assertEquals(Integer.MAX_VALUE, (int) store.get(TRIPS.name));
+    }
+
+    @Test
+    public void observersOnlyGetValuesWhileObserved() {
+        LiveData<Integer> gas = store.observe(GAS.name);
+        Observer<Integer> observer = value -> { };
+        gas.observeForever(observer);
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) gas.getValue());
+        store.put(GAS.name, 1);
+        assertEquals(1, (int) gas.getValue());
+
+        // once it isn't observed, the store lets go of it
+        gas.removeObserver(observer);
+        store.put(GAS.name, 2);
+        assertEquals(1, (int) gas.getValue());
+        // and a new observer starts from the current value
+        gas.observeForever(observer);
+        assertEquals(2, (int) gas.getValue());
+    }
+}
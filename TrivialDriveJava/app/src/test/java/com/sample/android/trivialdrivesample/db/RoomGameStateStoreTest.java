@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import android.app.Application;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoomGameStateStoreTest {
+    private static final GameStateKey<Integer> GAS = GameStateKey.intKey("gas");
+    private static final GameStateKey<Integer> TRIPS = GameStateKey.intKey("trips");
+    private static final GameStateKey<Long> DISTANCE = GameStateKey.longKey("distance");
+    private static final GameStateKey<String> CAR = GameStateKey.stringKey("car");
+    private static final List<GameStateKey<?>> ALL_KEYS = Arrays.asList(GAS, TRIPS, DISTANCE, CAR);
+
+    private GameStateDatabase db;
+    private RoomGameStateStore store;
+
+    @Before
+    public void setUp() {
+        Application application = ApplicationProvider.getApplicationContext();
+        application.deleteDatabase("GameStateTest.db");
+        db = Room.databaseBuilder(application, GameStateDatabase.class, "GameStateTest.db")
+                .createFromAsset("database/initialgamestate.db")
+                .addMigrations(GameStateDatabase.MIGRATIONS)
+                .allowMainThreadQueries()
+                .build();
+        store = new RoomGameStateStore(db);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void getAllReadsTheInitialState() {
+        GameStateValues values = store.getAll(ALL_KEYS);
+        assertEquals(1, values.size());
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) values.get(GAS));
+        assertFalse(values.contains(TRIPS));
+        assertEquals(0L, (long) values.get(DISTANCE, 0L));
+    }
+
+    @Test
+    public void singleKeyOperationsStayWithinTheirBounds() {
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) store.get(GAS.name));
+        assertNull(store.get("unknown"));
+        // increment and decrement return the number of values they changed
+        assertEquals(0, store.increment(GAS.name, GameStateModel.INITIAL_GAS_LEVEL));
+        assertEquals(1, store.decrement(GAS.name, 0));
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL - 1, (int) store.get(GAS.name));
+        store.put(GAS.name, 0);
+        assertEquals(0, store.decrement(GAS.name, 0));
+        assertEquals(1, store.increment(GAS.name, GameStateModel.INITIAL_GAS_LEVEL));
+        assertEquals(1, (int) store.get(GAS.name));
+    }
+
+    @Test
+    public void putAllWritesTypedValues() {
+        store.putAll(new GameStateValues.Builder()
+                .put(TRIPS, 3)
+                .put(DISTANCE, 5_000_000_000L)
+                .put(CAR, "convertible")
+                .build());
+        GameStateValues values = store.getAll(ALL_KEYS);
+        assertEquals(3, (int) values.get(TRIPS));
+        assertEquals(5_000_000_000L, (long) values.get(DISTANCE));
+        assertEquals("convertible", values.get(CAR));
+    }
+
+    @Test
+    public void applyDeltasCreatesMissingKeys() {
+        Map<GameStateKey<?>, Long> deltas = new HashMap<>();
+        deltas.put(TRIPS, 1L);
+        deltas.put(DISTANCE, 42L);
+        store.applyDeltas(deltas);
+        store.applyDeltas(deltas);
+        GameStateValues values = store.getAll(ALL_KEYS);
+        assertEquals(2, (int) values.get(TRIPS));
+        assertEquals(84L, (long) values.get(DISTANCE));
+        // the single-key contract still works on the same rows
+        assertEquals(1, store.increment(TRIPS.name, 10));
+        assertEquals(3, (int) store.get(TRIPS.name));
+    }
+
+    @Test
+    public void profilesHaveTheirOwnState() {
+        GameStateStore kid = store.forProfile("kid");
+        // the initial state migrated into the default profile
+        assertNull(kid.get(GAS.name));
+        kid.put(GAS.name, 1);
+        assertEquals(1, kid.decrement(GAS.name, 0));
+        assertEquals(0, (int) kid.get(GAS.name));
+        assertEquals(GameStateModel.INITIAL_GAS_LEVEL, (int) store.get(GAS.name));
+        assertEquals(0, (int) store.forProfile("kid").getAll(ALL_KEYS).get(GAS));
+    }
+}
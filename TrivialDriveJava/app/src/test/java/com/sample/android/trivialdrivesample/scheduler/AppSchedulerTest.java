@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2021 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sample.android.trivialdrivesample.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sample.android.trivialdrivesample.scheduler.AppScheduler.Lane;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class AppSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void tasksInALaneRunInOrder() throws Exception {
+        AppScheduler scheduler = new AppScheduler(4);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            scheduler.execute(Lane.RECONCILIATION, () -> order.add(task));
+        }
+        scheduler.submit(Lane.RECONCILIATION, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(100, order.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void userInteractiveTasksDontWaitForABacklog() throws Exception {
+        AppScheduler scheduler = new AppScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Lane> order = Collections.synchronizedList(new ArrayList<>());
+        // hold the only thread, then build up a backlog behind it
+        scheduler.execute(Lane.RECONCILIATION, () -> {
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            scheduler.execute(Lane.RECONCILIATION, () -> order.add(Lane.RECONCILIATION));
+        }
+        scheduler.execute(Lane.USER_INTERACTIVE, () -> order.add(Lane.USER_INTERACTIVE));
+        release.countDown();
+        scheduler.submit(Lane.RECONCILIATION, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(Lane.USER_INTERACTIVE, order.get(0));
+        assertEquals(11, order.size());
+    }
+
+    @Test
+    public void fullLanesRejectTasks() throws Exception {
+        AppScheduler scheduler = new AppScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.execute(Lane.BILLING, () -> {
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // wait until the blocking task has been taken off the queue
+        while (scheduler.getLaneStats(Lane.BILLING).queueDepth > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < Lane.BILLING.capacity; i++) {
+            scheduler.execute(Lane.BILLING, () -> { });
+        }
+        try {
+            scheduler.execute(Lane.BILLING, () -> { });
+            fail("Expected the full lane to reject the task");
+        } catch (RejectedExecutionException expected) {
+            // expected
+        }
+        assertFalse(scheduler.tryExecute(Lane.BILLING, () -> { }));
+        AppScheduler.LaneStats stats = scheduler.getLaneStats(Lane.BILLING);
+        assertEquals(Lane.BILLING.capacity, stats.queueDepth);
+        assertEquals(2, stats.rejected);
+        release.countDown();
+        scheduler.submit(Lane.BILLING, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(scheduler.getLaneStats(Lane.BILLING).runTime.getCount() > 0);
+    }
+
+    @Test
+    public void oneThreadIsKeptForTheUserInteractiveLane() throws Exception {
+        AppScheduler scheduler = new AppScheduler(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        Runnable block = () -> {
+            started.countDown();
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        scheduler.execute(Lane.BILLING, block);
+        scheduler.execute(Lane.RECONCILIATION, block);
+        // only one of the lower priority lanes gets a thread
+        assertFalse(started.await(100, TimeUnit.MILLISECONDS));
+        scheduler.submit(Lane.USER_INTERACTIVE, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        release.countDown();
+        scheduler.submit(Lane.RECONCILIATION, () -> { }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(0, started.getCount());
+    }
+}